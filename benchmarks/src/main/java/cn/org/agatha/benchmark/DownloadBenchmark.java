@@ -0,0 +1,65 @@
+package cn.org.agatha.benchmark;
+
+import cn.org.agatha.FileInfo;
+import cn.org.agatha.FtpManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个文件的下载：{@link FtpManager#downloadFile(String, String, long, java.io.OutputStream)}
+ * <p>
+ * 每种目录树形状下载其中最大的文件，小文件场景主要反映每个文件的命令往返开销，大文件场景反映传输吞吐。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+    private FtpManager ftpManager;
+    private FileInfo remoteFile;
+    private File localFile;
+
+    @Setup(Level.Trial)
+    public void setUp(FtpFixture fixture) {
+        ftpManager = fixture.newFtpManager("auto");
+        remoteFile = ftpManager.fetchFileInfo().stream()
+                .max(Comparator.comparingLong(FileInfo::getSize))
+                .orElseThrow(() -> new IllegalStateException("Remote tree is empty"));
+        localFile = new File(fixture.freshDir("download"), "target");
+    }
+
+    @Setup(Level.Invocation)
+    public void removeLocalFile() {
+        // 保留已有文件时不会影响下载，但未完成文件会被当作断点续传，每次都从空目录开始
+        localFile.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ftpManager.disconnect();
+    }
+
+    @Benchmark
+    public boolean downloadFile() {
+        if (!ftpManager.downloadFile(remoteFile.getPath(), localFile.getPath(), remoteFile.getModifiedTime(), null)) {
+            throw new IllegalStateException("Download failed: " + remoteFile.getPath());
+        }
+        return true;
+    }
+}
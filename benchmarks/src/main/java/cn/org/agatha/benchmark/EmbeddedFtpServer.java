@@ -0,0 +1,79 @@
+package cn.org.agatha.benchmark;
+
+import org.apache.ftpserver.ConnectionConfigFactory;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.ConcurrentLoginPermission;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+
+/**
+ * 进程内的 FTP 服务器（Apache FtpServer），只监听回环地址，基准测试不受外部网络影响
+ */
+public class EmbeddedFtpServer implements AutoCloseable {
+    public static final String USERNAME = "bench";
+    public static final String PASSWORD = "bench";
+
+    private final FtpServer server;
+    private final int port;
+
+    /**
+     * 启动服务器
+     *
+     * @param homeDirectory 用户根目录
+     * @throws IOException  端口分配失败
+     * @throws FtpException 服务器启动失败
+     */
+    public EmbeddedFtpServer(File homeDirectory) throws IOException, FtpException {
+        this.port = freePort();
+
+        FtpServerFactory serverFactory = new FtpServerFactory();
+        ListenerFactory listenerFactory = new ListenerFactory();
+        listenerFactory.setServerAddress("127.0.0.1");
+        listenerFactory.setPort(port);
+        serverFactory.addListener("default", listenerFactory.createListener());
+
+        // 并行下载和并行爬取会同时打开多个会话
+        ConnectionConfigFactory connectionConfig = new ConnectionConfigFactory();
+        connectionConfig.setMaxLogins(200);
+        connectionConfig.setMaxThreads(200);
+        serverFactory.setConnectionConfig(connectionConfig.createConnectionConfig());
+
+        BaseUser user = new BaseUser();
+        user.setName(USERNAME);
+        user.setPassword(PASSWORD);
+        user.setHomeDirectory(homeDirectory.getAbsolutePath());
+        user.setAuthorities(List.of(new WritePermission(), new ConcurrentLoginPermission(200, 200)));
+        serverFactory.getUserManager().save(user);
+
+        this.server = serverFactory.createServer();
+        server.start();
+    }
+
+    /**
+     * 获取监听端口
+     *
+     * @return 端口
+     */
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
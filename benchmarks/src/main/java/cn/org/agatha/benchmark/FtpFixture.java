@@ -0,0 +1,85 @@
+package cn.org.agatha.benchmark;
+
+import cn.org.agatha.FtpManager;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+/**
+ * 基准测试共用的环境：临时目录下生成远程目录树，并启动指向它的嵌入式 FTP 服务器
+ * <p>
+ * 同步代码通过 System.out 打印每个文件的进度，会淹没 JMH 的输出并拖慢测试，
+ * 因此默认关闭标准输出，需要排查时可用 -Dbench.verbose=true 打开。
+ */
+@State(Scope.Benchmark)
+public class FtpFixture {
+    @Param({"SMALL_FILES", "HUGE_FILES", "DEEP_TREE"})
+    public SyntheticTree.Shape shape;
+
+    public File workDir;
+    public File remoteDir;
+    public long remoteBytes;
+    public EmbeddedFtpServer server;
+
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (!Boolean.getBoolean("bench.verbose")) {
+            originalOut = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        workDir = Files.createTempDirectory("incsync-bench").toFile();
+        remoteDir = new File(workDir, "remote");
+        remoteBytes = SyntheticTree.generate(remoteDir, shape);
+        server = new EmbeddedFtpServer(remoteDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+        SyntheticTree.delete(workDir);
+        if (originalOut != null) {
+            System.setOut(originalOut);
+        }
+    }
+
+    /**
+     * 创建连接到嵌入式服务器的 FtpManager
+     *
+     * @param listingMode 列表方式
+     * @return 已连接的 FtpManager
+     */
+    public FtpManager newFtpManager(String listingMode) {
+        FtpManager ftpManager = new FtpManager("127.0.0.1", server.getPort(),
+                EmbeddedFtpServer.USERNAME, EmbeddedFtpServer.PASSWORD);
+        ftpManager.setListingMode(listingMode);
+        if (!ftpManager.connect()) {
+            throw new IllegalStateException("Failed to connect to embedded FTP server");
+        }
+        return ftpManager;
+    }
+
+    /**
+     * 在工作目录下创建一个空目录，已存在时先清空
+     *
+     * @param name 目录名
+     * @return 目录
+     */
+    public File freshDir(String name) {
+        File dir = new File(workDir, name);
+        SyntheticTree.delete(dir);
+        dir.mkdirs();
+        return dir;
+    }
+}
@@ -0,0 +1,58 @@
+package cn.org.agatha.benchmark;
+
+import cn.org.agatha.FileListing;
+import cn.org.agatha.FtpManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 远程目录遍历：{@link FtpManager#fetchListing()}，比较不同列表方式和并发爬取的会话数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingBenchmark {
+    @Param({"list", "mlsd", "recursive"})
+    public String listingMode;
+
+    @Param({"1", "4"})
+    public int crawlThreads;
+
+    private FtpManager ftpManager;
+
+    @Setup(Level.Trial)
+    public void setUp(FtpFixture fixture) {
+        ftpManager = fixture.newFtpManager(listingMode);
+        ftpManager.setCrawlThreads(crawlThreads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ftpManager.disconnect();
+    }
+
+    @Benchmark
+    public FileListing fetchListing() {
+        FileListing files = ftpManager.fetchListing();
+        if (!ftpManager.isLastListingComplete()) {
+            throw new IllegalStateException("Remote listing incomplete");
+        }
+        return files;
+    }
+}
@@ -0,0 +1,94 @@
+package cn.org.agatha.benchmark;
+
+import cn.org.agatha.CompressionPolicy;
+import cn.org.agatha.FileInfo;
+import cn.org.agatha.FileListing;
+import cn.org.agatha.FtpManager;
+import cn.org.agatha.IncrementArchive;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 不经过网络的本地阶段：本地目录遍历，以及把一批文件压缩为增量 ZIP
+ * <p>
+ * 压缩部分与 AutoEngine 的 compressToZip 相同，即 {@link IncrementArchive#addFiles} 后 {@link IncrementArchive#finish()}，
+ * 只是不触发回调通知。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalBenchmark {
+    @Param({"1", "4"})
+    public int compressionThreads;
+
+    @Param({"-1", "1"})
+    public int compressionLevel;
+
+    private FtpManager ftpManager;
+    private List<String> localPaths;
+    private File incrementsDir;
+    private ExecutorService pool;
+
+    @Setup(Level.Trial)
+    public void setUp(FtpFixture fixture) {
+        // 仅使用本地方法，不需要连接
+        ftpManager = new FtpManager("127.0.0.1", fixture.server.getPort(),
+                EmbeddedFtpServer.USERNAME, EmbeddedFtpServer.PASSWORD);
+        localPaths = new ArrayList<>();
+        for (FileInfo fileInfo : ftpManager.getLocalFileInfo(fixture.remoteDir.getPath())) {
+            localPaths.add(new File(fixture.remoteDir, fileInfo.getPath()).getPath());
+        }
+        incrementsDir = fixture.freshDir("increments");
+        pool = Executors.newFixedThreadPool(compressionThreads);
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeArchives() {
+        SyntheticTree.delete(incrementsDir);
+        incrementsDir.mkdirs();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    public FileListing getLocalListing(FtpFixture fixture) {
+        return ftpManager.getLocalListing(fixture.remoteDir.getPath());
+    }
+
+    @Benchmark
+    public List<IncrementArchive.ArchivedEntry> compressToZip(FtpFixture fixture) throws IOException {
+        IncrementArchive archive = new IncrementArchive(incrementsDir.getPath(), fixture.remoteDir.getPath(),
+                compressionThreads * 2, new CompressionPolicy().withLevel(compressionLevel));
+        try {
+            archive.addFiles(localPaths, pool, compressionThreads);
+        } finally {
+            archive.finish();
+        }
+        return archive.getEntries();
+    }
+}
@@ -0,0 +1,83 @@
+package cn.org.agatha.benchmark;
+
+import cn.org.agatha.AutoEngine;
+import cn.org.agatha.FtpManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 完整的一轮同步：{@link AutoEngine#syncFiles()}，包括列目录、比较、下载和压缩
+ * <p>
+ * full 从空的本地目录开始，所有文件都要下载；unchanged 在已同步的目录上再执行一轮，只反映列目录和比较的开销。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SyncBenchmark {
+    @Param({"1", "4"})
+    public int downloadThreads;
+
+    @Param({"false", "true"})
+    public boolean pipelineMode;
+
+    @Param({"full", "unchanged"})
+    public String scenario;
+
+    private FtpFixture fixture;
+    private FtpManager ftpManager;
+    private AutoEngine autoEngine;
+
+    @Setup(Level.Trial)
+    public void setUp(FtpFixture fixture) {
+        this.fixture = fixture;
+        ftpManager = fixture.newFtpManager("auto");
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareLocalDir() {
+        File localDir = fixture.freshDir("local");
+        File incrementsDir = fixture.freshDir("increments");
+        autoEngine = new AutoEngine(ftpManager, localDir.getPath() + File.separator, incrementsDir.getPath(), null);
+        autoEngine.setDownloadThreads(downloadThreads);
+        autoEngine.setPipelineMode(pipelineMode);
+        if ("unchanged".equals(scenario) && autoEngine.syncFiles().isFailed()) {
+            throw new IllegalStateException("Initial sync failed");
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeEngine() {
+        autoEngine.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ftpManager.disconnect();
+    }
+
+    @Benchmark
+    public AutoEngine.SyncResult syncFiles() {
+        AutoEngine.SyncResult result = autoEngine.syncFiles();
+        if (result.isFailed()) {
+            throw new IllegalStateException("Sync failed");
+        }
+        return result;
+    }
+}
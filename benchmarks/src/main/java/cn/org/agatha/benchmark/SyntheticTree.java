@@ -0,0 +1,139 @@
+package cn.org.agatha.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * 合成测试目录树，内容由固定种子生成，每次运行的数据完全相同
+ * <p>
+ * 文件内容一半是可压缩的日志文本，一半是随机字节，同时覆盖 DEFLATE 和直接存储两种路径。
+ */
+public final class SyntheticTree {
+    /**
+     * 目录树形状
+     */
+    public enum Shape {
+        /**
+         * 大量小文件：20 个目录，每个目录 250 个 4KB 文件
+         */
+        SMALL_FILES,
+        /**
+         * 少量大文件：4 个 64MB 文件
+         */
+        HUGE_FILES,
+        /**
+         * 深层目录：深度 8 的二叉目录树，每个目录 2 个 16KB 文件
+         */
+        DEEP_TREE
+    }
+
+    private static final long SEED = 0x42656E6368L;
+    private static final byte[] LOG_LINE = ("2024-01-01 00:00:00.000 INFO  [worker-1] cn.org.agatha.Sync"
+            + " - synchronized file batch completed without errors\n").getBytes(StandardCharsets.US_ASCII);
+
+    private SyntheticTree() {
+    }
+
+    /**
+     * 在目录下生成指定形状的文件树
+     *
+     * @param root  根目录
+     * @param shape 形状
+     * @return 生成的文件总字节数
+     * @throws IOException 写入失败
+     */
+    public static long generate(File root, Shape shape) throws IOException {
+        Random random = new Random(SEED);
+        switch (shape) {
+            case SMALL_FILES: {
+                long total = 0;
+                for (int d = 0; d < 20; d++) {
+                    for (int f = 0; f < 250; f++) {
+                        total += writeFile(new File(root, "dir" + d + "/file" + f + ".log"), 4 * 1024, random);
+                    }
+                }
+                return total;
+            }
+            case HUGE_FILES: {
+                long total = 0;
+                for (int f = 0; f < 4; f++) {
+                    total += writeFile(new File(root, "huge" + f + ".bin"), 64L * 1024 * 1024, random);
+                }
+                return total;
+            }
+            case DEEP_TREE:
+                return writeDeep(root, 8, random);
+            default:
+                throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+    }
+
+    /**
+     * 生成单个文件
+     *
+     * @param file 文件
+     * @param size 大小
+     * @param seed 随机种子
+     * @return 写入的字节数
+     * @throws IOException 写入失败
+     */
+    public static long generateFile(File file, long size, long seed) throws IOException {
+        return writeFile(file, size, new Random(seed));
+    }
+
+    private static long writeDeep(File directory, int depth, Random random) throws IOException {
+        long total = writeFile(new File(directory, "a.log"), 16 * 1024, random)
+                + writeFile(new File(directory, "b.bin"), 16 * 1024, random);
+        if (depth > 0) {
+            total += writeDeep(new File(directory, "l"), depth - 1, random);
+            total += writeDeep(new File(directory, "r"), depth - 1, random);
+        }
+        return total;
+    }
+
+    private static long writeFile(File file, long size, Random random) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory: " + parent);
+        }
+        byte[] block = new byte[64 * 1024];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            long written = 0;
+            boolean text = random.nextBoolean();
+            while (written < size) {
+                if (text) {
+                    for (int i = 0; i < block.length; i++) {
+                        block[i] = LOG_LINE[i % LOG_LINE.length];
+                    }
+                } else {
+                    random.nextBytes(block);
+                }
+                text = !text;
+                int length = (int) Math.min(block.length, size - written);
+                out.write(block, 0, length);
+                written += length;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 递归删除目录
+     *
+     * @param file 文件或目录
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -3,161 +3,990 @@ package cn.org.agatha;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
-import java.util.zip.ZipOutputStream;
-import java.util.zip.ZipEntry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Date;
 
 public class AutoEngine {
+    private static final int CALLBACK_QUEUE_CAPACITY = 1000; // 等待发送的回调队列容量
+    private static final String JOURNAL_FILE = ".sync-journal"; // 增量目录下的同步日志文件名
+    private static final long COMPACTION_INTERVAL = 60 * 60 * 1000L; // 自动合并增量的最短间隔（毫秒）
+
     private final FtpManager ftpManager;
     private final String localDir;
     private final String incrementsDir;
     private final String callbackUrl; // 新增：回调地址
-    private AtomicBoolean autoSyncRunning = new AtomicBoolean(false);
-    private long autoSyncInterval = 0;
+    private final ScheduledExecutorService schedulerExecutor; // 共享的调度线程池，为 null 时使用独立的调度线程
+    private SyncScheduler scheduler; // 自动同步调度器，首次使用时创建
+    private final SyncMetrics metrics = new SyncMetrics(); // 同步指标
+    private final ReentrantLock syncLock = new ReentrantLock(); // 保证同一时间只有一轮同步
+    private volatile boolean cancelRequested = false; // 是否请求提前结束当前一轮同步
+    private int downloadThreads = 1; // 并发下载会话数
+    private DownloadEngine downloadEngine;
+    private boolean pipelineMode = false; // 边下载边写入增量归档
+    private long segmentThreshold = 0; // 分段下载阈值（字节）
+    private int maxSegments = 4; // 单个文件的最大分段数
+    private CompressionPolicy compressionPolicy = new CompressionPolicy();
+    private int compressionThreads = Runtime.getRuntime().availableProcessors(); // 压缩线程数
+    private ExecutorService compressionPool;
+    private boolean sharedCompressionPool = false; // 压缩线程池由多个任务共享，不在此关闭
+    private long deltaThreshold = 0; // 不小于该大小的已有文件写入块级差异，0 表示不启用
+    private boolean renameDetection = false; // 把远程改名或移动的文件在本地移动，不再重新下载
+    private boolean deduplication = false; // 相同内容只在增量目录的去重存储中保存一次
+    private CallbackDispatcher callbackDispatcher;
+    private int callbackBatch = 20; // 一次回调最多合并的增量数
+    private int callbackAttempts = 6; // 单次回调的最大尝试次数
+    private String changeDetection = "metadata"; // 变更检测方式：timestamp / metadata / hash
+    private ChangeDetector changeDetector;
+    private final TransferScheduler transferScheduler = new TransferScheduler(); // 下载顺序策略
+    private IncrementCatalog catalog; // 增量索引，首次使用时打开
+    private long compactionWindow = 0; // 合并增量的时间窗口（毫秒），0 表示不自动合并
+    private long lastCompaction = 0; // 上次自动合并的时间
+
+    /**
+     * 一轮同步的结果
+     */
+    public static class SyncResult {
+        private final int syncedFiles;
+        private final int failedFiles;
+        private final boolean listingComplete;
+        private final boolean cancelled;
+
+        /**
+         * 构造函数
+         *
+         * @param syncedFiles     下载成功的文件数
+         * @param failedFiles     下载失败的文件数
+         * @param listingComplete 远程列表是否完整
+         * @param cancelled       是否被提前结束
+         */
+        public SyncResult(int syncedFiles, int failedFiles, boolean listingComplete, boolean cancelled) {
+            this.syncedFiles = syncedFiles;
+            this.failedFiles = failedFiles;
+            this.listingComplete = listingComplete;
+            this.cancelled = cancelled;
+        }
+
+        public int getSyncedFiles() {
+            return syncedFiles;
+        }
+
+        public int getFailedFiles() {
+            return failedFiles;
+        }
+
+        public boolean isListingComplete() {
+            return listingComplete;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * 是否应视为失败：远程列表不完整，或者所有需要下载的文件都失败了
+         *
+         * @return 是否失败
+         */
+        public boolean isFailed() {
+            return !listingComplete || (failedFiles > 0 && syncedFiles == 0 && !cancelled);
+        }
+    }
 
     public AutoEngine(FtpManager ftpManager, String localDir, String incrementsDir, String callbackUrl) {
+        this(ftpManager, localDir, incrementsDir, callbackUrl, null);
+    }
+
+    /**
+     * 构造函数，自动同步在共享的调度线程池中执行（多任务运行时使用）
+     *
+     * @param ftpManager    FTP 管理器
+     * @param localDir      本地同步目录
+     * @param incrementsDir 增量目录
+     * @param callbackUrl   回调地址
+     * @param executor      共享的调度线程池，为 null 时使用独立的调度线程
+     */
+    public AutoEngine(FtpManager ftpManager, String localDir, String incrementsDir, String callbackUrl,
+                      ScheduledExecutorService executor) {
         this.ftpManager = ftpManager;
         this.localDir = localDir;
         this.incrementsDir = incrementsDir;
         this.callbackUrl = callbackUrl; // 初始化回调地址
+        this.schedulerExecutor = executor;
+        ftpManager.setMetrics(metrics);
     }
 
     /**
-     * 同步本地和 FTP 文件
+     * 获取同步指标，可注册到 JMX 或由 {@link MetricsServer} 输出
+     *
+     * @return 同步指标
      */
-    public void syncFiles() {
-        List<FileInfo> localFiles = ftpManager.getLocalFileInfo(localDir);
-        List<FileInfo> ftpFiles = ftpManager.fetchFileInfo();
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
 
-        // 构建本地文件路径和时间戳的映射
-        Map<String, Long> localFileMap = new HashMap<>();
-        for (FileInfo fileInfo : localFiles) {
-            localFileMap.put(fileInfo.getPath(), fileInfo.getTimestamp());
+    /**
+     * 获取自动同步调度器，用于设置调度方式和自适应间隔
+     * <p>
+     * 调度器持有本引擎的引用，在首次获取时创建，避免构造过程中泄漏尚未初始化完成的对象。
+     *
+     * @return 调度器
+     */
+    public synchronized SyncScheduler getScheduler() {
+        if (scheduler == null) {
+            scheduler = schedulerExecutor != null
+                    ? new SyncScheduler(this, schedulerExecutor) : new SyncScheduler(this);
         }
+        return scheduler;
+    }
 
-        // 遍历 FTP 文件，筛选需要同步的文件
-        List<String> syncedFiles = new ArrayList<>(); // 新增：记录已同步的文件
-        for (FileInfo fileInfo : ftpFiles) {
-            String remotePath = fileInfo.getPath();
-            long remoteTimestamp = fileInfo.getTimestamp();
+    /**
+     * 设置并发下载会话数，大于 1 时使用连接池并发下载
+     *
+     * @param downloadThreads 并发下载会话数
+     */
+    public synchronized void setDownloadThreads(int downloadThreads) {
+        this.downloadThreads = Math.max(1, downloadThreads);
+        if (downloadEngine != null && downloadEngine.getSessions() != this.downloadThreads) {
+            downloadEngine.close();
+            downloadEngine = null;
+        }
+    }
+
+    /**
+     * 设置是否启用流水线模式：下载的字节同时写入本地文件和增量 ZIP，无需下载完成后再读回磁盘压缩
+     *
+     * @param pipelineMode 是否启用
+     */
+    public void setPipelineMode(boolean pipelineMode) {
+        this.pipelineMode = pipelineMode;
+    }
+
+    /**
+     * 设置分段下载，大于阈值的文件用多个会话并发下载不同区间，仅在并发下载会话数大于 1 时生效
+     *
+     * @param segmentThreshold 分段阈值（字节），0 表示不分段
+     * @param maxSegments      单个文件的最大分段数
+     */
+    public synchronized void setSegmentedDownload(long segmentThreshold, int maxSegments) {
+        this.segmentThreshold = segmentThreshold;
+        this.maxSegments = maxSegments;
+        if (downloadEngine != null) {
+            downloadEngine.setSegmentedDownload(segmentThreshold, maxSegments);
+        }
+    }
+
+    /**
+     * 设置增量归档的 DEFLATE 压缩级别
+     *
+     * @param level 压缩级别（0-9，-1 为默认），0 表示只存储不压缩
+     */
+    public void setCompressionLevel(int level) {
+        this.compressionPolicy = compressionPolicy.withLevel(level);
+    }
+
+    /**
+     * 设置从磁盘压缩增量归档时使用的线程数
+     *
+     * @param compressionThreads 线程数
+     */
+    public synchronized void setCompressionThreads(int compressionThreads) {
+        if (sharedCompressionPool) {
+            return;
+        }
+        this.compressionThreads = Math.max(1, compressionThreads);
+        if (compressionPool != null) {
+            compressionPool.shutdown();
+            compressionPool = null;
+        }
+    }
+
+    /**
+     * 使用多个任务共享的压缩线程池，之后不再创建自己的线程池，关闭时也不关闭共享的线程池
+     *
+     * @param pool        共享的压缩线程池
+     * @param parallelism 线程池并行度
+     */
+    public synchronized void setCompressionPool(ExecutorService pool, int parallelism) {
+        if (compressionPool != null && !sharedCompressionPool) {
+            compressionPool.shutdown();
+        }
+        this.compressionPool = pool;
+        this.compressionThreads = Math.max(1, parallelism);
+        this.sharedCompressionPool = true;
+    }
+
+    /**
+     * 设置差异模式：本地已有旧版本且不小于阈值的文件，增量中只保存与旧版本不同的块
+     *
+     * @param deltaThreshold 差异阈值（字节），0 表示不启用
+     */
+    public void setDeltaThreshold(long deltaThreshold) {
+        this.deltaThreshold = Math.max(0, deltaThreshold);
+    }
+
+    /**
+     * 设置是否检测改名和移动：远程列表完整时，远程已消失的本地文件与新出现的路径按大小、修改时间
+     * （服务器支持时还有校验和）配对，配对成功的文件在本地移动，增量中只记录改名
+     *
+     * @param renameDetection 是否启用
+     */
+    public void setRenameDetection(boolean renameDetection) {
+        this.renameDetection = renameDetection;
+    }
+
+    /**
+     * 设置是否去重：每份不同的文件内容只在增量目录下的去重存储中保存一次，增量中只记录内容散列，
+     * 不再被任何增量引用的内容在合并增量后删除。启用后增量 ZIP 不再自包含
+     *
+     * @param deduplication 是否启用
+     */
+    public void setDeduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+    }
+
+    /**
+     * 设置变更检测方式
+     * <ul>
+     *     <li>timestamp：只比较秒级修改时间</li>
+     *     <li>metadata：比较大小和毫秒级修改时间</li>
+     *     <li>hash：在 metadata 的基础上，服务器支持时用远程校验和确认内容是否变化</li>
+     * </ul>
+     *
+     * @param changeDetection 变更检测方式
+     */
+    public synchronized void setChangeDetection(String changeDetection) {
+        this.changeDetection = changeDetection.toLowerCase();
+        this.changeDetector = null;
+    }
 
-            // 检查本地是否存在对应的文件
-            Long localTimestamp = localFileMap.get(remotePath);
+    /**
+     * 获取变更检测方式，首次调用时探测本地文件系统的时间精度
+     *
+     * @return 变更检测方式
+     */
+    private synchronized ChangeDetector getChangeDetector() {
+        if (changeDetector == null) {
+            if ("timestamp".equals(changeDetection)) {
+                changeDetector = new TimestampChangeDetector();
+            } else {
+                ChangeDetector metadata = new MetadataChangeDetector(
+                        MetadataChangeDetector.probeTimestampPrecision(new File(localDir)));
+                changeDetector = "hash".equals(changeDetection)
+                        ? new HashChangeDetector(metadata, ftpManager, HashChangeDetector.DEFAULT_MIN_SIZE)
+                        : metadata;
+            }
+            System.out.println("Using change detection: " + changeDetector.getName());
+        }
+        return changeDetector;
+    }
 
-            // 如果本地文件不存在或修改时间较早，则下载
-            if (localTimestamp == null || localTimestamp < remoteTimestamp) {
+    /**
+     * 获取下载顺序策略，用于设置排序方式和优先路径
+     *
+     * @return 下载顺序策略
+     */
+    public TransferScheduler getTransferScheduler() {
+        return transferScheduler;
+    }
+
+    /**
+     * 设置自动合并增量：每轮同步后（至多每小时一次）把已经过去的时间窗口内的增量合并为一个，
+     * 每个路径只保留窗口内的最新版本
+     *
+     * @param windowSeconds 时间窗口（秒），0 表示不自动合并
+     */
+    public void setCompaction(long windowSeconds) {
+        this.compactionWindow = Math.max(0, windowSeconds) * 1000;
+    }
+
+    /**
+     * 获取增量索引，首次调用时打开并与增量目录对账，同时清理去重存储中没有被引用的内容
+     * <p>
+     * 启用去重时创建归档之前就会打开索引，清理不会删除正在写入的归档刚存入的内容。
+     *
+     * @return 增量索引，未设置增量目录或无法打开时返回 null
+     */
+    public synchronized IncrementCatalog getCatalog() {
+        if (catalog == null && incrementsDir != null) {
+            try {
+                catalog = IncrementCatalog.open(new File(incrementsDir));
+                catalog.sweepBlobs();
+            } catch (IOException e) {
+                System.out.println("Error opening increment catalog: " + e.getMessage());
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * 立即合并增量，与同步串行执行
+     *
+     * @param windowSeconds 时间窗口（秒）
+     * @return 被合并掉的增量数
+     */
+    public int compactIncrements(long windowSeconds) {
+        syncLock.lock();
+        try {
+            return compact(windowSeconds * 1000);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * 合并增量，调用方必须持有同步锁
+     *
+     * @param window 时间窗口（毫秒）
+     * @return 被合并掉的增量数
+     */
+    private int compact(long window) {
+        IncrementCatalog catalog = getCatalog();
+        if (catalog == null || window <= 0) {
+            return 0;
+        }
+        lastCompaction = System.currentTimeMillis();
+        IncrementArchive.cleanupTemporaryFiles(new File(incrementsDir));
+        return new IncrementCompactor(catalog, new File(incrementsDir), window, compressionPolicy).compact();
+    }
+
+    /**
+     * 从增量还原指定时间点的目录树，与同步和合并串行执行
+     *
+     * @param timestamp 时间点（毫秒）
+     * @param targetDir 还原到的目录
+     * @param filter    只还原匹配的路径，为 null 时还原全部
+     * @return 还原成功的文件数
+     */
+    public int restore(long timestamp, String targetDir, PathPattern filter) {
+        syncLock.lock();
+        try {
+            IncrementCatalog catalog = getCatalog();
+            if (catalog == null) {
+                System.out.println("Increments directory not specified.");
+                return 0;
+            }
+            return new IncrementRestorer(catalog, compressionThreads).restore(timestamp, new File(targetDir), filter);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * 请求提前结束正在执行的一轮同步：尚未开始下载的文件跳过，已经下载的文件照常写入增量
+     */
+    public void cancelSync() {
+        cancelRequested = true;
+    }
+
+    /**
+     * 同步本地和 FTP 文件，与正在执行的另一轮同步串行执行
+     *
+     * @return 本轮同步结果
+     */
+    public SyncResult syncFiles() {
+        syncLock.lock();
+        SyncResult result = null;
+        try {
+            cancelRequested = false;
+            metrics.beginCycle();
+            result = runSync();
+            if (compactionWindow > 0 && System.currentTimeMillis() - lastCompaction >= COMPACTION_INTERVAL) {
+                compact(compactionWindow);
+            }
+            return result;
+        } finally {
+            metrics.endCycle(result);
+            syncLock.unlock();
+        }
+    }
+
+    private SyncResult runSync() {
+        SyncJournal journal = recoverJournal();
+        if (journal != null) {
+            return resumeSync(journal);
+        }
+
+        long crawlStart = System.nanoTime();
+        FileListing localFiles = ftpManager.getLocalListing(localDir);
+        FileListing ftpFiles = ftpManager.fetchListing();
+        boolean listingComplete = ftpManager.isLastListingComplete();
+        metrics.recordCrawl((System.nanoTime() - crawlStart) / 1_000_000, ftpFiles.size());
+        if (cancelRequested) {
+            System.out.println("Sync cancelled.");
+            return new SyncResult(0, 0, listingComplete, true);
+        }
+
+        // 按路径顺序归并比较本地和 FTP 文件，筛选需要同步的文件
+        ChangeDetector detector = getChangeDetector();
+        List<DownloadEngine.Task> tasks = new ArrayList<>();
+        // 远程列表完整时才能判断哪些本地文件已在远程消失
+        boolean collectDisappeared = renameDetection && listingComplete;
+        Map<String, FileInfo> disappeared = new HashMap<>();
+        ListingDiff.diff(localFiles, ftpFiles, (localInfo, fileInfo) -> {
+            if (fileInfo == null) {
+                if (collectDisappeared) {
+                    disappeared.put(localInfo.getPath(), localInfo);
+                }
+                return;
+            }
+            String remotePath = fileInfo.getPath();
+            String localDownloadPath = localDir.endsWith("/")
+                ? localDir + remotePath.substring(1)
+                : localDir + remotePath;
+
+            // 如果本地文件不存在或已经过期，则下载
+            if (detector.hasChanged(localInfo, fileInfo, new File(localDownloadPath))) {
                 System.out.println("Syncing file: " + remotePath);
-                String localDownloadPath = localDir.endsWith("/") 
-                    ? localDir + remotePath.substring(1) 
-                    : localDir + remotePath;
-                if (ftpManager.downloadFile(remotePath, localDownloadPath)) {
-                    syncedFiles.add(localDownloadPath); // 记录已同步的文件
+                tasks.add(new DownloadEngine.Task(remotePath, localDownloadPath,
+                    fileInfo.getModifiedTime(), fileInfo.getSize()));
+            }
+        });
+
+        List<RenameDetector.Rename> renames = new ArrayList<>();
+        Map<String, DownloadEngine.Task> renamedTasks = new HashMap<>();
+        if (collectDisappeared && !tasks.isEmpty() && !disappeared.isEmpty()) {
+            renames = new RenameDetector(ftpManager, localDir, RenameDetector.DEFAULT_MIN_SIZE)
+                .detect(tasks, disappeared);
+            for (RenameDetector.Rename rename : renames) {
+                renamedTasks.put(rename.getToPath(), null);
+            }
+            for (DownloadEngine.Task task : tasks) {
+                if (renamedTasks.containsKey(task.getLocalPath())) {
+                    renamedTasks.put(task.getLocalPath(), task);
                 }
             }
+            tasks.removeIf(task -> renamedTasks.containsKey(task.getLocalPath()));
+        }
+
+        List<DownloadEngine.Task> scheduled = transferScheduler.schedule(tasks);
+        SyncJournal plan = startJournal(scheduled, renames);
+        List<RenameDetector.Rename> applied = new ArrayList<>();
+        for (RenameDetector.Rename rename : renames) {
+            if (plan != null) {
+                plan.recordRenamed(rename);
+            }
+            if (moveLocal(rename)) {
+                applied.add(rename);
+            } else {
+                // 移动失败的文件照常下载，日志中的计划没有它，中途退出时留到下一轮
+                scheduled.add(renamedTasks.get(rename.getToPath()));
+            }
         }
+        return executeTasks(scheduled, applied, new ArrayList<>(), plan, listingComplete, pipelineMode);
+    }
 
-        // 如果有文件被同步，则压缩为 ZIP 文件
-        if (!syncedFiles.isEmpty()) {
+    /**
+     * 在本地执行一次改名，目标已存在且原文件已不在时视为已经完成（恢复中断的一轮时）
+     *
+     * @param rename 改名
+     * @return 是否成功
+     */
+    private boolean moveLocal(RenameDetector.Rename rename) {
+        File from = new File(rename.getFromPath());
+        File to = new File(rename.getToPath());
+        if (!from.isFile()) {
+            return to.isFile();
+        }
+        try {
+            File parent = to.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            Files.move(from.toPath(), to.toPath());
+            System.out.println("Renamed locally: " + rename);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error renaming " + rename + ", downloading instead: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 继续上次中途退出的一轮同步：不重新爬取，只下载计划中剩余的文件，并把本轮所有已下载的文件写入增量
+     *
+     * @param journal 上次留下的同步日志
+     * @return 本轮同步结果
+     */
+    private SyncResult resumeSync(SyncJournal journal) {
+        IncrementArchive.cleanupTemporaryFiles(new File(incrementsDir));
+
+        String archivedZip = journal.getArchivedZip();
+        if (archivedZip != null && new File(archivedZip).isFile()) {
+            // ZIP 已经完整写入，只差提交回调
+            System.out.println("Resuming interrupted sync: increment already written: " + archivedZip);
             try {
-                compressToZip(syncedFiles); // 调用压缩方法
+                List<IncrementArchive.ArchivedEntry> entries =
+                    IncrementArchive.readEntries(new File(archivedZip), localDir);
+                recordIncrement(archivedZip, entries);
+                notifyCallback(archivedZip, entries);
             } catch (IOException e) {
-                System.out.println("Error compressing files to ZIP: " + e.getMessage());
+                System.out.println("Error reading increment " + archivedZip + ": " + e.getMessage());
+            }
+            journal.complete();
+            return new SyncResult(0, 0, true, false);
+        }
+
+        List<RenameDetector.Rename> renames = new ArrayList<>();
+        for (RenameDetector.Rename rename : journal.getRenames()) {
+            if (moveLocal(rename)) {
+                renames.add(rename);
+            }
+        }
+        List<String> downloadedFiles = new ArrayList<>();
+        for (String localPath : journal.getDownloadedFiles()) {
+            if (new File(localPath).isFile()) {
+                downloadedFiles.add(localPath);
             }
         }
+        List<DownloadEngine.Task> remaining = journal.getRemainingTasks();
+        System.out.println("Resuming interrupted sync: " + renames.size() + " renamed, " + downloadedFiles.size()
+            + " downloaded, " + remaining.size() + " remaining of " + journal.getPlannedTasks().size() + " files");
+        // 已下载的文件只能从磁盘读取后写入归档，恢复的一轮不使用流水线模式
+        return executeTasks(remaining, renames, downloadedFiles, journal, true, false);
     }
 
     /**
-     * 将同步的文件压缩为 ZIP 文件
+     * 下载需要同步的文件并写入增量归档，归档完成后删除同步日志
      *
-     * @param files 要压缩的文件列表
-     * @throws IOException 压缩过程中发生异常
+     * @param tasks           下载任务列表
+     * @param renames         本轮已在本地完成的改名
+     * @param downloadedFiles 本轮此前已经下载完成的本地文件路径（恢复中断的一轮时）
+     * @param journal         同步日志，为 null 时不记录
+     * @param listingComplete 远程列表是否完整
+     * @param pipeline        是否边下载边写入增量归档
+     * @return 本轮同步结果
      */
-    private void compressToZip(List<String> files) throws IOException {
-        // 创建 ZIP 文件名，使用时间戳命名
-        String zipFileName = incrementsDir + File.separator + new Date().getTime() + ".zip";
-        File zipFile = new File(zipFileName);
-        if (!zipFile.getParentFile().exists()) {
-            zipFile.getParentFile().mkdirs();
-        }
-
-        try (ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(zipFile))) {
-            for (String filePath : files) {
-                File fileToZip = new File(filePath);
-                FileInputStream fis = new FileInputStream(fileToZip);
-                // 使用相对路径作为 ZIP 条目名称，避免文件名冲突
-                String relativePath = filePath.replace(localDir, "").replace("\\", "/");
-                ZipEntry zipEntry = new ZipEntry(relativePath.startsWith("/") ? relativePath.substring(1) : relativePath);
-                zipOut.putNextEntry(zipEntry);
-
-                byte[] bytes = new byte[1024];
-                int length;
-                while ((length = fis.read(bytes)) >= 0) {
-                    zipOut.write(bytes, 0, length);
-                }
-                fis.close();
+    private SyncResult executeTasks(List<DownloadEngine.Task> tasks, List<RenameDetector.Rename> renames,
+                                    List<String> downloadedFiles, SyncJournal journal, boolean listingComplete,
+                                    boolean pipeline) {
+        IncrementArchive archive = null;
+        if (!tasks.isEmpty() && (pipeline || deltaThreshold > 0) || !renames.isEmpty()) {
+            archive = newArchive(pipeline ? Math.max(2, downloadThreads * 2) : compressionThreads * 2);
+            if (!pipeline) {
+                // 下载会覆盖旧版本，先为其建立块索引
+                prepareDeltaBases(archive, tasks);
             }
+            addRenames(archive, renames);
         }
-        System.out.println("Files compressed to ZIP: " + zipFileName);
+        List<String> syncedFiles = downloadFiles(tasks, pipeline ? archive : null, journal); // 新增：记录已同步的文件
+        SyncResult result = new SyncResult(renames.size() + downloadedFiles.size() + syncedFiles.size(),
+            tasks.size() - syncedFiles.size(), listingComplete, cancelRequested);
 
-        // 执行 HTTP 回调
-        long ts = System.currentTimeMillis() / 1000;
-        // 修改 commit 参数的格式
-        String commit = files.stream()
-            .map(file -> new File(file).getName())
-            .collect(Collectors.joining("|"));
-        String response = HttpCallback.sendPost(callbackUrl, ts, commit); // 使用传入的回调地址
-        if (response != null) {
-            System.out.println("HTTP Callback Response: " + response);
+        boolean archived = true;
+        if (pipeline && archive != null) {
+            archived = finishArchive(archive, renames, syncedFiles, journal);
         } else {
-            System.out.println("HTTP Callback failed.");
+            List<String> files = new ArrayList<>(downloadedFiles);
+            files.addAll(syncedFiles);
+            // 如果有文件被同步或改名，则压缩为 ZIP 文件
+            if (!files.isEmpty() || !renames.isEmpty()) {
+                try {
+                    compressToZip(files, renames, archive, journal); // 调用压缩方法
+                } catch (IOException e) {
+                    System.out.println("Error compressing files to ZIP: " + e.getMessage());
+                    archived = false;
+                }
+            } else if (archive != null) {
+                try {
+                    archive.finish();
+                } catch (IOException e) {
+                    System.out.println("Error finishing ZIP: " + e.getMessage());
+                }
+            }
+        }
+
+        if (journal != null) {
+            if (archived) {
+                journal.complete();
+            } else {
+                // 已下载的文件还没有进入任何增量，保留日志，下一轮重新归档
+                journal.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 为本轮的下载计划建立同步日志
+     *
+     * @param tasks   下载任务列表
+     * @param renames 即将在本地执行的改名
+     * @return 同步日志，没有任务和改名、未设置增量目录或写入失败时返回 null
+     */
+    private SyncJournal startJournal(List<DownloadEngine.Task> tasks, List<RenameDetector.Rename> renames) {
+        if (tasks.isEmpty() && renames.isEmpty() || incrementsDir == null) {
+            return null;
+        }
+        File dir = new File(incrementsDir);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        try {
+            return SyncJournal.create(new File(dir, JOURNAL_FILE), tasks);
+        } catch (IOException e) {
+            System.out.println("Error creating sync journal, continuing without it: " + e.getMessage());
+            return null;
         }
     }
 
+    /**
+     * 读取上次中途退出时留下的同步日志
+     *
+     * @return 同步日志，不存在时返回 null
+     */
+    private SyncJournal recoverJournal() {
+        if (incrementsDir == null) {
+            return null;
+        }
+        return SyncJournal.recover(new File(incrementsDir, JOURNAL_FILE));
+    }
+
+    /**
+     * 创建增量归档
+     *
+     * @param queueCapacity 等待写入的条目队列容量
+     * @return 增量归档
+     */
+    private IncrementArchive newArchive(int queueCapacity) {
+        IncrementArchive archive = new IncrementArchive(incrementsDir, localDir, queueCapacity, compressionPolicy);
+        archive.setDeltaThreshold(deltaThreshold);
+        IncrementCatalog catalog = deduplication ? getCatalog() : null;
+        if (catalog != null) {
+            archive.setBlobStore(catalog.getBlobStore(), BlobStore.DEFAULT_MIN_SIZE);
+        }
+        return archive;
+    }
+
+    /**
+     * 把本轮的改名写入增量归档，写入失败时由 {@link IncrementArchive#finish()} 报告
+     *
+     * @param archive 增量归档
+     * @param renames 已在本地完成的改名
+     */
+    private void addRenames(IncrementArchive archive, List<RenameDetector.Rename> renames) {
+        for (RenameDetector.Rename rename : renames) {
+            try {
+                archive.addRename(rename.getFromPath(), rename.getToPath());
+            } catch (IOException e) {
+                System.out.println("Error archiving rename " + rename + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * 使用压缩线程池并行为即将被覆盖的本地文件建立块索引
+     *
+     * @param archive 增量归档
+     * @param tasks   下载任务列表
+     */
+    private void prepareDeltaBases(IncrementArchive archive, List<DownloadEngine.Task> tasks) {
+        ExecutorService pool = getCompressionPool();
+        List<Future<?>> futures = new ArrayList<>();
+        for (DownloadEngine.Task task : tasks) {
+            futures.add(pool.submit(() -> archive.prepareDelta(task.getLocalPath())));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                System.out.println("Error preparing delta: " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    /**
+     * 下载需要同步的文件，并发会话数大于 1 时交给下载引擎
+     *
+     * @param tasks   下载任务列表
+     * @param archive 边下载边写入的增量归档，为 null 时只下载
+     * @param journal 同步日志，为 null 时不记录
+     * @return 下载成功的本地文件路径
+     */
+    private List<String> downloadFiles(List<DownloadEngine.Task> tasks, IncrementArchive archive,
+                                       SyncJournal journal) {
+        DownloadEngine engine;
+        synchronized (this) {
+            if (downloadThreads > 1 && downloadEngine == null) {
+                downloadEngine = new DownloadEngine(ftpManager, downloadThreads);
+                downloadEngine.setSegmentedDownload(segmentThreshold, maxSegments);
+            }
+            engine = downloadEngine;
+        }
+
+        if (engine != null && (tasks.size() > 1 || segmentThreshold > 0)) {
+            return engine.downloadAll(tasks, archive, () -> cancelRequested, task -> {
+                if (journal != null) {
+                    journal.recordDownloaded(task.getLocalPath());
+                }
+            });
+        }
+
+        List<String> syncedFiles = new ArrayList<>();
+        for (DownloadEngine.Task task : tasks) {
+            if (cancelRequested) {
+                System.out.println("Sync cancelled, skipping remaining downloads.");
+                break;
+            }
+            IncrementArchive.EntrySink sink = archive != null ? archive.openEntry(task.getLocalPath()) : null;
+            try {
+                if (ftpManager.downloadFile(task.getRemotePath(), task.getLocalPath(), task.getModifiedTime(), sink)) {
+                    if (sink != null) {
+                        sink.commit();
+                    }
+                    syncedFiles.add(task.getLocalPath()); // 记录已同步的文件
+                    if (journal != null) {
+                        journal.recordDownloaded(task.getLocalPath());
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error archiving file: " + e.getMessage());
+            } finally {
+                if (sink != null) {
+                    sink.abort();
+                }
+            }
+        }
+        return syncedFiles;
+    }
+
+    /**
+     * 完成流水线模式下的增量归档，写入失败时退回到从磁盘重新压缩
+     *
+     * @param archive     增量归档
+     * @param renames     已写入归档的改名
+     * @param syncedFiles 下载成功的本地文件路径
+     * @param journal     同步日志，为 null 时不记录
+     * @return 下载的文件是否都已写入增量
+     */
+    private boolean finishArchive(IncrementArchive archive, List<RenameDetector.Rename> renames,
+                                  List<String> syncedFiles, SyncJournal journal) {
+        try {
+            long start = System.nanoTime();
+            List<String> archived = archive.finish();
+            recordCompression(archive, archived, start);
+            if (!archived.isEmpty()) {
+                System.out.println("Files compressed to ZIP: " + archive.getZipFileName());
+                if (journal != null) {
+                    journal.recordArchived(archive.getZipFileName());
+                }
+                recordIncrement(archive.getZipFileName(), archive.getEntries());
+                notifyCallback(archive);
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error writing ZIP during download: " + e.getMessage());
+            if (!syncedFiles.isEmpty() || !renames.isEmpty()) {
+                try {
+                    compressToZip(syncedFiles, renames, null, journal);
+                } catch (IOException ex) {
+                    System.out.println("Error compressing files to ZIP: " + ex.getMessage());
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 将同步的文件压缩为 ZIP 文件
+     *
+     * @param files   要压缩的文件列表
+     * @param renames 本轮的改名，新建归档时写入
+     * @param archive 下载前已创建并写入改名的增量归档，为 null 时新建
+     * @param journal 同步日志，为 null 时不记录
+     * @throws IOException 压缩过程中发生异常
+     */
+    private void compressToZip(List<String> files, List<RenameDetector.Rename> renames, IncrementArchive archive,
+                               SyncJournal journal) throws IOException {
+        ExecutorService pool = getCompressionPool();
+
+        // 创建 ZIP 文件，使用时间戳命名
+        if (archive == null) {
+            archive = newArchive(compressionThreads * 2);
+            addRenames(archive, renames);
+        }
+        long start = System.nanoTime();
+        try {
+            archive.addFiles(files, pool, compressionThreads);
+        } finally {
+            archive.finish();
+        }
+        recordCompression(archive, files, start);
+        System.out.println("Files compressed to ZIP: " + archive.getZipFileName());
+        if (journal != null && !archive.getEntries().isEmpty()) {
+            journal.recordArchived(archive.getZipFileName());
+        }
+
+        recordIncrement(archive.getZipFileName(), archive.getEntries());
+        notifyCallback(archive);
+    }
+
+    /**
+     * 记录本轮归档的耗时和压缩比，压缩比按文件原始大小计算，包含块级差异节省的部分
+     *
+     * @param archive    已完成的增量归档
+     * @param files      归档的本地文件路径
+     * @param startNanos 开始写入归档的时间
+     */
+    private void recordCompression(IncrementArchive archive, List<String> files, long startNanos) {
+        long inputBytes = 0;
+        for (String file : files) {
+            inputBytes += new File(file).length();
+        }
+        metrics.recordCompression((System.nanoTime() - startNanos) / 1_000_000, inputBytes,
+            new File(archive.getZipFileName()).length());
+    }
+
+    /**
+     * 获取压缩线程池，首次调用时创建
+     *
+     * @return 压缩线程池
+     */
+    private synchronized ExecutorService getCompressionPool() {
+        if (compressionPool == null) {
+            compressionPool = Executors.newFixedThreadPool(compressionThreads, runnable -> {
+                Thread thread = new Thread(runnable, "compression-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return compressionPool;
+    }
+
+    /**
+     * 设置 HTTP 回调的合并和重试参数
+     *
+     * @param maxBatch    一次通知最多合并的增量数
+     * @param maxAttempts 单次通知的最大尝试次数
+     */
+    public synchronized void setCallbackOptions(int maxBatch, int maxAttempts) {
+        this.callbackBatch = maxBatch;
+        this.callbackAttempts = maxAttempts;
+        if (callbackDispatcher != null) {
+            callbackDispatcher.setMaxBatch(maxBatch);
+            callbackDispatcher.setMaxAttempts(maxAttempts);
+        }
+    }
+
+    /**
+     * 把新写完的增量记入增量索引
+     *
+     * @param zipFileName ZIP 文件路径
+     * @param entries     归档中的条目
+     */
+    private void recordIncrement(String zipFileName, List<IncrementArchive.ArchivedEntry> entries) {
+        IncrementCatalog catalog = getCatalog();
+        if (catalog != null && !entries.isEmpty()) {
+            catalog.add(new File(zipFileName), entries);
+        }
+    }
+
+    /**
+     * 执行 HTTP 回调，通知新的增量已生成，回调在后台发送，不阻塞同步流程
+     *
+     * @param archive 已完成的增量归档
+     */
+    private void notifyCallback(IncrementArchive archive) {
+        notifyCallback(archive.getZipFileName(), archive.getEntries());
+    }
+
+    /**
+     * 执行 HTTP 回调，通知新的增量已生成
+     *
+     * @param zipFileName ZIP 文件路径
+     * @param entries     归档中的条目
+     */
+    private void notifyCallback(String zipFileName, List<IncrementArchive.ArchivedEntry> entries) {
+        if (callbackUrl == null || callbackUrl.isEmpty() || entries.isEmpty()) {
+            return;
+        }
+        CallbackDispatcher dispatcher;
+        synchronized (this) {
+            if (callbackDispatcher == null) {
+                File spoolFile = incrementsDir != null ? new File(incrementsDir, ".callback-queue") : null;
+                callbackDispatcher = new CallbackDispatcher(callbackUrl, spoolFile, CALLBACK_QUEUE_CAPACITY);
+                callbackDispatcher.setMaxBatch(callbackBatch);
+                callbackDispatcher.setMaxAttempts(callbackAttempts);
+                callbackDispatcher.setMetrics(metrics);
+            }
+            dispatcher = callbackDispatcher;
+        }
+        long ts = System.currentTimeMillis() / 1000;
+        dispatcher.submit(new CallbackDispatcher.Increment(new File(zipFileName).getName(), ts, entries));
+    }
+
     /**
      * 启动自动同步
      *
      * @param interval 同步间隔（秒）
      */
     public void startAutoSync(long interval) {
-        if (autoSyncRunning.get()) {
+        if (!getScheduler().start(interval)) {
             System.out.println("Auto sync is already running.");
             return;
         }
-
-        autoSyncInterval = interval * 1000; // 转换为毫秒
-        autoSyncRunning.set(true);
         System.out.println("Auto sync started with interval: " + interval + " seconds");
-
-        Thread autoSyncThread = new Thread(() -> {
-            while (autoSyncRunning.get()) {
-                try {
-                    syncFiles(); // 调用 AutoEngine 的 syncFiles 方法
-                    Thread.sleep(autoSyncInterval);
-                } catch (InterruptedException e) {
-                    System.out.println("Auto sync thread interrupted.");
-                }
-            }
-        });
-        autoSyncThread.start();
     }
 
     /**
-     * 停止自动同步
+     * 停止自动同步，正在执行的一轮会在当前文件下载完成后结束
      */
     public void stopAutoSync() {
-        if (!autoSyncRunning.get()) {
+        if (!getScheduler().stop()) {
             System.out.println("Auto sync is not running.");
             return;
         }
-
-        autoSyncRunning.set(false);
         System.out.println("Auto sync stopped.");
     }
+
+    /**
+     * 停止自动同步并等待正在执行的一轮结束，然后释放下载引擎和压缩线程池占用的连接和线程，
+     * 并等待排队的 HTTP 回调发送完成
+     */
+    public void close() {
+        SyncScheduler scheduler;
+        synchronized (this) {
+            scheduler = this.scheduler;
+        }
+        if (scheduler != null) {
+            scheduler.close();
+        }
+        synchronized (this) {
+            if (downloadEngine != null) {
+                downloadEngine.close();
+                downloadEngine = null;
+            }
+            if (compressionPool != null && !sharedCompressionPool) {
+                compressionPool.shutdownNow();
+            }
+            compressionPool = null;
+        }
+        CallbackDispatcher dispatcher;
+        synchronized (this) {
+            dispatcher = callbackDispatcher;
+            callbackDispatcher = null;
+        }
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        synchronized (this) {
+            if (catalog != null) {
+                catalog.close();
+                catalog = null;
+            }
+        }
+        metrics.unregisterMBean();
+    }
 }
\ No newline at end of file
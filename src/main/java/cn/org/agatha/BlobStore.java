@@ -0,0 +1,242 @@
+package cn.org.agatha;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 增量目录下按内容寻址的去重存储，每份不同的文件内容只保存一次
+ * <p>
+ * 内容以解压后数据的 SHA-256 命名，保存在 "{@value #DIRECTORY}/散列前两位/散列"。
+ * 文件开头是魔数、压缩方式、原始大小和 CRC32，其后是与 ZIP 条目相同格式的数据（DEFLATE 原始流或直接存储），
+ * 写入时直接复用归档已经压缩好的数据，不再压缩一次。增量中只写入记录散列的引用条目，见 {@link IncrementArchive}。
+ * <p>
+ * 内容先写入同目录下以点开头的临时文件，落盘后再改名，中途退出不会留下残缺的内容；同一散列已存在时不再写入。
+ * 本类不记录内容被哪些增量引用，引用计数和删除由 {@link IncrementCatalog} 负责。
+ */
+public class BlobStore {
+    public static final String DIRECTORY = ".blobs"; // 增量目录下的存储目录名
+    public static final String ALGORITHM = "SHA-256";
+    public static final long DEFAULT_MIN_SIZE = 4 * 1024; // 小于该大小的文件引用条目节省不了多少空间，照常写入增量
+    private static final int MAGIC = 0x49424C42; // "IBLB"
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final File dir;
+
+    /**
+     * 构造函数，目录在第一次写入时才创建
+     *
+     * @param incrementsDir 增量目录
+     */
+    public BlobStore(File incrementsDir) {
+        this.dir = new File(incrementsDir, DIRECTORY);
+    }
+
+    /**
+     * 创建计算内容散列的摘要
+     *
+     * @return 摘要
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    }
+
+    /**
+     * 把摘要结果转换为小写十六进制
+     *
+     * @param digest 摘要结果
+     * @return 十六进制散列
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 是否已保存该内容
+     *
+     * @param hash 内容散列
+     * @return 是否存在
+     */
+    public boolean contains(String hash) {
+        return HASH.matcher(hash).matches() && fileOf(hash).isFile();
+    }
+
+    /**
+     * 保存一份内容，已存在时不再写入
+     *
+     * @param hash   内容散列
+     * @param method 数据的压缩方式，{@link ZipStreamWriter#DEFLATED} 或 {@link ZipStreamWriter#STORED}
+     * @param size   原始大小
+     * @param crc    原始数据的 CRC32
+     * @param data   压缩后的数据
+     * @return 是否新写入，已存在时返回 false
+     * @throws IOException 写入失败
+     */
+    public boolean put(String hash, int method, long size, long crc, InputStream data) throws IOException {
+        if (!HASH.matcher(hash).matches()) {
+            throw new IOException("Invalid blob hash: " + hash);
+        }
+        File file = fileOf(hash);
+        if (file.isFile()) {
+            return false;
+        }
+        File parent = file.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        File tmp = File.createTempFile(".blob-", ".tmp", parent);
+        try {
+            try (FileOutputStream stream = new FileOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 256 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeByte(method);
+                out.writeLong(size);
+                out.writeLong(crc);
+                data.transferTo(out);
+                out.flush();
+                stream.getFD().sync();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * 读取一份内容
+     *
+     * @param hash 内容散列
+     * @return 解压后的数据
+     * @throws IOException 内容不存在或格式错误
+     */
+    public InputStream open(String hash) throws IOException {
+        if (!HASH.matcher(hash).matches()) {
+            throw new IOException("Invalid blob hash: " + hash);
+        }
+        File file = fileOf(hash);
+        if (!file.isFile()) {
+            throw new IOException("Blob " + hash + " missing from " + dir);
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a blob file: " + file);
+            }
+            int method = in.readByte();
+            in.readLong();
+            in.readLong();
+            if (method == ZipStreamWriter.STORED) {
+                return in;
+            }
+            if (method != ZipStreamWriter.DEFLATED) {
+                throw new IOException("Unknown blob method " + method + ": " + file);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        // 与 ZipFile 相同，在原始 DEFLATE 流末尾补一个字节供 Inflater 判断结束
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(new SequenceInputStream(in, new ByteArrayInputStream(new byte[1])),
+                inflater, 64 * 1024) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * 删除一份内容
+     *
+     * @param hash 内容散列
+     * @return 是否已删除
+     */
+    public boolean delete(String hash) {
+        return HASH.matcher(hash).matches() && fileOf(hash).delete();
+    }
+
+    /**
+     * 列出所有已保存的内容
+     *
+     * @return 内容散列
+     */
+    public List<String> list() {
+        List<String> hashes = new ArrayList<>();
+        File[] prefixes = dir.listFiles(File::isDirectory);
+        if (prefixes == null) {
+            return hashes;
+        }
+        for (File prefix : prefixes) {
+            String[] names = prefix.list();
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                if (HASH.matcher(name).matches() && name.startsWith(prefix.getName())) {
+                    hashes.add(name);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * 删除中途退出时遗留的临时文件，只能在没有内容正在写入时调用
+     */
+    public void cleanupTemporaryFiles() {
+        File[] prefixes = dir.listFiles(File::isDirectory);
+        if (prefixes == null) {
+            return;
+        }
+        for (File prefix : prefixes) {
+            File[] files = prefix.listFiles((parent, name) -> name.startsWith(".") && name.endsWith(".tmp"));
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.delete()) {
+                    System.out.println("Removed leftover temporary file: " + file.getName());
+                }
+            }
+        }
+    }
+
+    private File fileOf(String hash) {
+        return new File(new File(dir, hash.substring(0, 2)), hash);
+    }
+}
@@ -0,0 +1,389 @@
+package cn.org.agatha;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 异步 HTTP 回调分发器，同步流程只把新增量放入队列，由后台线程发送通知
+ * <p>
+ * 所有请求复用同一个 {@link HttpClient} 的连接。接收方较慢或暂时不可用时，排队的多个增量会合并为一次通知；
+ * 发送失败按指数退避重试，多次失败或队列已满的通知写入暂存文件，接收方恢复后（或下次启动时）重新发送，不会丢失。
+ * <p>
+ * 请求体仍是表单格式，保留原有的 ts 和 commit 参数，并增加 JSON 格式的 manifest 参数：
+ * <pre>
+ * {"increments":[{"zip":"1700000000000.zip","ts":1700000000,
+ *   "files":[{"path":"a/b.log","entry":"a/b.log.incdelta","size":1234,"crc32":"0a1b2c3d","delta":true,
+ *   "rename":false,"blob":false}]}]}
+ * </pre>
+ * rename 为 true 的条目内容是该路径改名前的相对路径，blob 为 true 的条目内容是去重存储中完整内容的散列，
+ * 见 {@link IncrementArchive}。
+ */
+public class CallbackDispatcher implements AutoCloseable {
+    private static final int SPOOL_MAGIC = 0x43425150; // "CBQP"
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+    private final String url;
+    private final File spoolFile;
+    private final HttpClient client;
+    private final BlockingQueue<Increment> queue;
+    private final Thread dispatcherThread;
+    private int maxBatch = 20;
+    private int maxAttempts = 6;
+    private volatile SyncMetrics metrics;
+    private volatile boolean closing = false;
+
+    /**
+     * 一个增量 ZIP 的通知内容
+     */
+    public static class Increment {
+        private final String zipName;
+        private final long timestamp;
+        private final List<IncrementArchive.ArchivedEntry> entries;
+
+        /**
+         * 构造函数
+         *
+         * @param zipName   ZIP 文件名
+         * @param timestamp 时间戳（秒）
+         * @param entries   归档中的条目
+         */
+        public Increment(String zipName, long timestamp, List<IncrementArchive.ArchivedEntry> entries) {
+            this.zipName = zipName;
+            this.timestamp = timestamp;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * 构造函数，立即启动后台发送线程，并把暂存文件中上次未送达的通知重新排队
+     *
+     * @param url           回调地址
+     * @param spoolFile     未送达通知的暂存文件，为 null 时不暂存
+     * @param queueCapacity 队列容量
+     */
+    public CallbackDispatcher(String url, File spoolFile, int queueCapacity) {
+        this.url = url;
+        this.spoolFile = spoolFile;
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.dispatcherThread = new Thread(this::dispatchLoop, "callback-dispatcher");
+        this.dispatcherThread.setDaemon(true);
+        this.dispatcherThread.start();
+    }
+
+    /**
+     * 设置一次通知最多合并的增量数
+     *
+     * @param maxBatch 最多合并的增量数
+     */
+    public void setMaxBatch(int maxBatch) {
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * 设置单次通知的最大尝试次数，超过后写入暂存文件
+     *
+     * @param maxAttempts 最大尝试次数
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * 设置指标统计，记录每次请求的耗时和结果
+     *
+     * @param metrics 同步指标
+     */
+    public void setMetrics(SyncMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 提交一个增量的通知，不等待发送
+     *
+     * @param increment 增量
+     */
+    public void submit(Increment increment) {
+        if (closing || !queue.offer(increment)) {
+            System.out.println("Callback queue full, spooling notification for " + increment.zipName);
+            spool(List.of(increment));
+        }
+    }
+
+    /**
+     * 等待队列中的通知发送完成（最多 30 秒），未送达的写入暂存文件
+     */
+    @Override
+    public void close() {
+        closing = true;
+        try {
+            dispatcherThread.join(30 * 1000);
+            if (dispatcherThread.isAlive()) {
+                dispatcherThread.interrupt();
+                dispatcherThread.join(5 * 1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Increment> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            spool(remaining);
+        }
+    }
+
+    private void dispatchLoop() {
+        requeueSpooled();
+        while (true) {
+            Increment first;
+            try {
+                first = queue.poll(500, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                if (closing) {
+                    return;
+                }
+                continue;
+            }
+            List<Increment> batch = new ArrayList<>();
+            batch.add(first);
+            queue.drainTo(batch, maxBatch - 1);
+            if (!deliver(batch)) {
+                spool(batch);
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            } else {
+                requeueSpooled();
+            }
+        }
+    }
+
+    /**
+     * 发送一批增量的通知，失败时指数退避重试
+     *
+     * @param batch 增量列表
+     * @return 是否送达
+     */
+    private boolean deliver(List<Increment> batch) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(formBody(batch)))
+                .build();
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            long start = System.nanoTime();
+            try {
+                HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                recordCallback(start, response.statusCode() / 100 == 2);
+                if (response.statusCode() / 100 == 2) {
+                    System.out.println("HTTP Callback delivered " + batch.size() + " increment(s), response code: "
+                            + response.statusCode());
+                    return true;
+                }
+                System.out.println("HTTP Callback failed with response code: " + response.statusCode());
+            } catch (IOException e) {
+                recordCallback(start, false);
+                System.out.println("Error sending HTTP callback: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (attempt == maxAttempts) {
+                break;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        }
+        return false;
+    }
+
+    private void recordCallback(long startNanos, boolean delivered) {
+        SyncMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.recordCallback((System.nanoTime() - startNanos) / 1_000_000, delivered);
+        }
+    }
+
+    /**
+     * 构建表单请求体
+     *
+     * @param batch 增量列表
+     * @return 表单请求体
+     */
+    static String formBody(List<Increment> batch) {
+        long ts = 0;
+        List<String> names = new ArrayList<>();
+        StringBuilder manifest = new StringBuilder("{\"increments\":[");
+        for (int i = 0; i < batch.size(); i++) {
+            Increment increment = batch.get(i);
+            ts = Math.max(ts, increment.timestamp);
+            if (i > 0) {
+                manifest.append(',');
+            }
+            manifest.append("{\"zip\":").append(jsonString(increment.zipName))
+                    .append(",\"ts\":").append(increment.timestamp)
+                    .append(",\"files\":[");
+            for (int j = 0; j < increment.entries.size(); j++) {
+                IncrementArchive.ArchivedEntry entry = increment.entries.get(j);
+                names.add(new File(entry.getLocalPath()).getName());
+                String path = IncrementCatalog.pathOf(entry.getName());
+                if (j > 0) {
+                    manifest.append(',');
+                }
+                manifest.append("{\"path\":").append(jsonString(path))
+                        .append(",\"entry\":").append(jsonString(entry.getName()))
+                        .append(",\"size\":").append(entry.getSize())
+                        .append(",\"crc32\":\"").append(String.format("%08x", entry.getCrc())).append('"')
+                        .append(",\"delta\":").append(entry.isDelta())
+                        .append(",\"rename\":").append(entry.isRename())
+                        .append(",\"blob\":").append(entry.isBlob())
+                        .append('}');
+            }
+            manifest.append("]}");
+        }
+        manifest.append("]}");
+        return "ts=" + ts
+                + "&commit=" + URLEncoder.encode(String.join("|", names), StandardCharsets.UTF_8)
+                + "&manifest=" + URLEncoder.encode(manifest.toString(), StandardCharsets.UTF_8);
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * 把未送达的通知追加到暂存文件
+     *
+     * @param increments 增量列表
+     */
+    private synchronized void spool(List<Increment> increments) {
+        if (spoolFile == null) {
+            System.out.println("HTTP Callback dropped for " + increments.stream()
+                    .map(increment -> increment.zipName).collect(Collectors.joining(", ")));
+            return;
+        }
+        boolean exists = spoolFile.exists();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(spoolFile, true)))) {
+            if (!exists) {
+                out.writeInt(SPOOL_MAGIC);
+            }
+            for (Increment increment : increments) {
+                out.writeUTF(increment.zipName);
+                out.writeLong(increment.timestamp);
+                out.writeInt(increment.entries.size());
+                for (IncrementArchive.ArchivedEntry entry : increment.entries) {
+                    out.writeUTF(entry.getName());
+                    out.writeUTF(entry.getLocalPath());
+                    out.writeLong(entry.getSize());
+                    out.writeLong(entry.getCrc());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error spooling HTTP callback: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 把暂存文件中的通知重新放回队列
+     */
+    private synchronized void requeueSpooled() {
+        if (spoolFile == null || !spoolFile.exists()) {
+            return;
+        }
+        List<Increment> increments = new ArrayList<>();
+        boolean corrupt = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spoolFile)))) {
+            if (in.readInt() != SPOOL_MAGIC) {
+                throw new IOException("Unknown callback spool format");
+            }
+            while (true) {
+                String zipName;
+                try {
+                    zipName = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                long timestamp = in.readLong();
+                int count = in.readInt();
+                List<IncrementArchive.ArchivedEntry> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    entries.add(new IncrementArchive.ArchivedEntry(in.readUTF(), in.readUTF(), in.readLong(),
+                            in.readLong()));
+                }
+                increments.add(new Increment(zipName, timestamp, entries));
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading callback spool: " + e.getMessage());
+            corrupt = true;
+        }
+        // 无法完整读取的暂存文件保留一份供人工检查，已读出的通知照常重新发送
+        boolean removed = corrupt
+                ? spoolFile.renameTo(new File(spoolFile.getPath() + ".bad"))
+                : spoolFile.delete();
+        if (!removed) {
+            return;
+        }
+        List<Increment> overflow = new ArrayList<>();
+        for (Increment increment : increments) {
+            if (!queue.offer(increment)) {
+                overflow.add(increment);
+            }
+        }
+        if (!overflow.isEmpty()) {
+            spool(overflow);
+        }
+        if (!increments.isEmpty()) {
+            System.out.println("Requeued " + (increments.size() - overflow.size()) + " spooled HTTP callback(s)");
+        }
+    }
+}
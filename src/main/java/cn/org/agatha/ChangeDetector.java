@@ -0,0 +1,25 @@
+package cn.org.agatha;
+
+import java.io.File;
+
+/**
+ * 变更检测方式，判断远程文件相对本地副本是否需要重新下载
+ */
+public interface ChangeDetector {
+    /**
+     * 获取检测方式名称，用于日志输出
+     *
+     * @return 检测方式名称
+     */
+    String getName();
+
+    /**
+     * 判断远程文件是否需要下载
+     *
+     * @param local     本地文件信息，本地不存在时为 null
+     * @param remote    远程文件信息
+     * @param localFile 本地文件，需要读取内容的检测方式使用
+     * @return 是否需要下载
+     */
+    boolean hasChanged(FileInfo local, FileInfo remote, File localFile);
+}
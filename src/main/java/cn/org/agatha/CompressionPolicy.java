@@ -0,0 +1,126 @@
+package cn.org.agatha;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * 增量归档的压缩策略：压缩级别，以及哪些条目直接存储（STORED）而不压缩
+ * <p>
+ * 已经压缩过的媒体、归档等文件再做 DEFLATE 几乎没有收益却占满 CPU，
+ * 因此按扩展名或对开头一段数据做字节熵估算，判定为不可压缩时直接存储。
+ */
+public class CompressionPolicy {
+    public static final int SAMPLE_SIZE = 64 * 1024; // 熵估算使用的采样大小
+    private static final int MIN_SAMPLE_SIZE = 4 * 1024; // 采样不足该值时不做熵估算
+    private static final double INCOMPRESSIBLE_ENTROPY = 7.5; // 每字节比特数超过该值视为不可压缩
+
+    private static final Set<String> DEFAULT_STORED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar", "war", "apk",
+            "docx", "xlsx", "pptx", "odt", "ods", "epub",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "m4a", "aac", "ogg", "opus", "flac",
+            "mp4", "m4v", "mkv", "avi", "mov", "webm", "wmv"));
+
+    private final int level;
+    private final Set<String> storedExtensions;
+    private final boolean sampleEntropy;
+
+    /**
+     * 使用默认压缩级别和默认的不压缩扩展名列表
+     */
+    public CompressionPolicy() {
+        this(Deflater.DEFAULT_COMPRESSION, DEFAULT_STORED_EXTENSIONS, true);
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param level            DEFLATE 压缩级别（0-9，-1 为默认），0 表示所有条目都直接存储
+     * @param storedExtensions 直接存储的扩展名（小写，不含点）
+     * @param sampleEntropy    是否对采样数据做熵估算
+     */
+    public CompressionPolicy(int level, Set<String> storedExtensions, boolean sampleEntropy) {
+        this.level = level;
+        this.storedExtensions = storedExtensions;
+        this.sampleEntropy = sampleEntropy;
+    }
+
+    /**
+     * 使用指定压缩级别，其余保持默认
+     *
+     * @param level DEFLATE 压缩级别（0-9，-1 为默认）
+     * @return 新的压缩策略
+     */
+    public CompressionPolicy withLevel(int level) {
+        return new CompressionPolicy(level, storedExtensions, sampleEntropy);
+    }
+
+    /**
+     * 获取 DEFLATE 压缩级别
+     *
+     * @return 压缩级别
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * 仅根据条目名称判断是否直接存储
+     *
+     * @param name 条目名称
+     * @return 是否直接存储
+     */
+    public boolean isStoredByName(String name) {
+        if (level == 0) {
+            return true;
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf('/')) {
+            return false;
+        }
+        return storedExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * 根据条目名称和开头的采样数据选择压缩方式
+     *
+     * @param name   条目名称
+     * @param sample 采样数据
+     * @param length 采样长度
+     * @return {@link ZipStreamWriter#STORED} 或 {@link ZipStreamWriter#DEFLATED}
+     */
+    public int chooseMethod(String name, byte[] sample, int length) {
+        if (isStoredByName(name)) {
+            return ZipStreamWriter.STORED;
+        }
+        if (sampleEntropy && length >= MIN_SAMPLE_SIZE && entropy(sample, length) > INCOMPRESSIBLE_ENTROPY) {
+            return ZipStreamWriter.STORED;
+        }
+        return ZipStreamWriter.DEFLATED;
+    }
+
+    /**
+     * 估算数据的字节熵
+     *
+     * @param data   数据
+     * @param length 数据长度
+     * @return 每字节比特数（0-8）
+     */
+    private static double entropy(byte[] data, int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[data[i] & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * (Math.log(p) / Math.log(2));
+            }
+        }
+        return entropy;
+    }
+}
@@ -0,0 +1,90 @@
+package cn.org.agatha;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * 基于内容的分块器，使用 gear 滚动哈希确定块边界
+ * <p>
+ * 块边界只取决于边界附近的 64 字节内容，文件中间插入或删除数据后，
+ * 变化位置之后很快就会重新切出与旧版本相同的块，因此适合做块级差异。
+ */
+class ContentChunker {
+    static final int MIN_CHUNK = 4 * 1024; // 最小块大小
+    static final int MAX_CHUNK = 64 * 1024; // 最大块大小
+    private static final long BOUNDARY_MASK = 0xFFFC000000000000L; // 取高 14 位，平均块大小约 20 KB
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // 固定种子，保证不同版本、不同进程切出的块一致
+        Random random = new Random(0x496E6353796E63L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * 块回调
+     */
+    interface ChunkConsumer {
+        /**
+         * 处理一个块，数据只在回调期间有效
+         *
+         * @param data   块数据
+         * @param length 块长度
+         * @throws IOException 处理过程中发生异常
+         */
+        void accept(byte[] data, int length) throws IOException;
+    }
+
+    private final ChunkConsumer consumer;
+    private final byte[] buffer = new byte[MAX_CHUNK];
+    private int length = 0;
+    private long hash = 0;
+
+    /**
+     * 构造函数
+     *
+     * @param consumer 块回调
+     */
+    ContentChunker(ChunkConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * 追加数据，遇到块边界时回调
+     *
+     * @param b   数据
+     * @param off 起始位置
+     * @param len 长度
+     * @throws IOException 回调过程中发生异常
+     */
+    void update(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte value = b[i];
+            buffer[length++] = value;
+            hash = (hash << 1) + GEAR[value & 0xFF];
+            if ((length >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0) || length == MAX_CHUNK) {
+                emit();
+            }
+        }
+    }
+
+    /**
+     * 输出剩余数据作为最后一块
+     *
+     * @throws IOException 回调过程中发生异常
+     */
+    void finish() throws IOException {
+        if (length > 0) {
+            emit();
+        }
+    }
+
+    private void emit() throws IOException {
+        consumer.accept(buffer, length);
+        length = 0;
+        hash = 0;
+    }
+}
@@ -0,0 +1,260 @@
+package cn.org.agatha;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 合并两个连续的块级差异：A→B 与 B→C 合并为 A→C，不需要任何一个版本的文件内容
+ * <p>
+ * 先读入第一个差异的记录表（B 中每个区间来自 A 的哪段或哪段新数据），
+ * 再把第二个差异中每个从 B 复制的区间映射回 A 的区间或第一个差异中的新数据。
+ * 结果的头部沿用第一个差异（A 的大小和 SHA-256），结束记录沿用第二个差异（C 的大小和 SHA-256），
+ * 因此 {@link DeltaReader} 重建时仍会校验。
+ */
+public class DeltaComposer {
+    private static final int MAX_RECORD = Integer.MAX_VALUE; // 单条记录长度上限
+
+    /**
+     * 第一个差异中的一段，对应中间版本 B 的 [start, start + length)
+     */
+    private static class Segment {
+        private final long start;
+        private final long length;
+        private final boolean copy;
+        private final long source; // COPY 为 A 中的偏移，DATA 为新数据在暂存文件中的偏移
+
+        private Segment(long start, long length, boolean copy, long source) {
+            this.start = start;
+            this.length = length;
+            this.copy = copy;
+            this.source = source;
+        }
+    }
+
+    private DeltaComposer() {
+    }
+
+    /**
+     * 合并两个连续的差异
+     *
+     * @param first  A→B 的差异
+     * @param second B→C 的差异
+     * @param out    A→C 差异的输出流
+     * @param tmpDir 暂存第一个差异中新数据的目录
+     * @throws IOException 差异格式错误、两个差异不连续或读写失败
+     */
+    public static void compose(InputStream first, InputStream second, OutputStream out, File tmpDir)
+            throws IOException {
+        File dataFile = File.createTempFile(".delta-", ".tmp", tmpDir);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(first, 64 * 1024));
+            long baseSize = readHeader(in);
+            byte[] baseDigest = new byte[32];
+            in.readFully(baseDigest);
+
+            // 读入 A→B 的记录表，新数据写入暂存文件
+            List<Segment> segments = new ArrayList<>();
+            long middleSize;
+            byte[] middleDigest = new byte[32];
+            try (OutputStream data = new BufferedOutputStream(new FileOutputStream(dataFile), 64 * 1024)) {
+                long position = 0;
+                long dataPosition = 0;
+                byte[] buffer = new byte[64 * 1024];
+                while (true) {
+                    int op = in.readUnsignedByte();
+                    if (op == DeltaEncoder.OP_END) {
+                        middleSize = in.readLong();
+                        in.readFully(middleDigest);
+                        break;
+                    }
+                    if (op == DeltaEncoder.OP_COPY) {
+                        long offset = in.readLong();
+                        long length = in.readInt() & 0xFFFFFFFFL;
+                        segments.add(new Segment(position, length, true, offset));
+                        position += length;
+                    } else if (op == DeltaEncoder.OP_DATA) {
+                        long length = in.readInt() & 0xFFFFFFFFL;
+                        segments.add(new Segment(position, length, false, dataPosition));
+                        for (long remaining = length; remaining > 0; ) {
+                            int read = (int) Math.min(buffer.length, remaining);
+                            in.readFully(buffer, 0, read);
+                            data.write(buffer, 0, read);
+                            remaining -= read;
+                        }
+                        position += length;
+                        dataPosition += length;
+                    } else {
+                        throw new IOException("Unknown delta operation: " + op);
+                    }
+                }
+                if (position != middleSize) {
+                    throw new IOException("Delta size mismatch: " + position + " != " + middleSize);
+                }
+            }
+
+            DataInputStream next = new DataInputStream(new BufferedInputStream(second, 64 * 1024));
+            long secondBaseSize = readHeader(next);
+            byte[] secondBaseDigest = new byte[32];
+            next.readFully(secondBaseDigest);
+            if (secondBaseSize != middleSize || !Arrays.equals(secondBaseDigest, middleDigest)) {
+                throw new IOException("Deltas are not consecutive");
+            }
+
+            try (RandomAccessFile data = new RandomAccessFile(dataFile, "r")) {
+                Writer writer = new Writer(new DataOutputStream(new BufferedOutputStream(out, 64 * 1024)), data);
+                writer.out.write(DeltaEncoder.MAGIC);
+                writer.out.writeByte(DeltaEncoder.VERSION);
+                writer.out.writeLong(baseSize);
+                writer.out.write(baseDigest);
+                while (true) {
+                    int op = next.readUnsignedByte();
+                    if (op == DeltaEncoder.OP_END) {
+                        long size = next.readLong();
+                        byte[] digest = new byte[32];
+                        next.readFully(digest);
+                        writer.flushCopy();
+                        writer.out.writeByte(DeltaEncoder.OP_END);
+                        writer.out.writeLong(size);
+                        writer.out.write(digest);
+                        writer.out.flush();
+                        return;
+                    }
+                    if (op == DeltaEncoder.OP_COPY) {
+                        long offset = next.readLong();
+                        long length = next.readInt() & 0xFFFFFFFFL;
+                        if (offset < 0 || offset + length > middleSize) {
+                            throw new IOException("Delta copy out of range: " + offset);
+                        }
+                        mapRange(segments, offset, length, writer);
+                    } else if (op == DeltaEncoder.OP_DATA) {
+                        writer.writeData(next, next.readInt() & 0xFFFFFFFFL);
+                    } else {
+                        throw new IOException("Unknown delta operation: " + op);
+                    }
+                }
+            }
+        } finally {
+            dataFile.delete();
+        }
+    }
+
+    private static long readHeader(DataInputStream in) throws IOException {
+        byte[] magic = new byte[DeltaEncoder.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, DeltaEncoder.MAGIC) || in.readUnsignedByte() != DeltaEncoder.VERSION) {
+            throw new IOException("Not a supported delta stream");
+        }
+        return in.readLong();
+    }
+
+    /**
+     * 把 B 中的一个区间按第一个差异的记录表映射为若干输出记录
+     */
+    private static void mapRange(List<Segment> segments, long offset, long length, Writer writer)
+            throws IOException {
+        int index = findSegment(segments, offset);
+        while (length > 0) {
+            Segment segment = segments.get(index);
+            long skip = offset - segment.start;
+            long count = Math.min(length, segment.length - skip);
+            if (segment.copy) {
+                writer.copy(segment.source + skip, count);
+            } else {
+                writer.copyData(segment.source + skip, count);
+            }
+            offset += count;
+            length -= count;
+            index++;
+        }
+    }
+
+    private static int findSegment(List<Segment> segments, long offset) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments.get(mid).start <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 输出 A→C 的记录，合并相邻的复制区间
+     */
+    private static class Writer {
+        private final DataOutputStream out;
+        private final RandomAccessFile data;
+        private final byte[] buffer = new byte[64 * 1024];
+        private long copyOffset = -1;
+        private long copyLength = 0;
+
+        private Writer(DataOutputStream out, RandomAccessFile data) {
+            this.out = out;
+            this.data = data;
+        }
+
+        private void copy(long offset, long length) throws IOException {
+            if (copyOffset >= 0 && copyOffset + copyLength == offset && copyLength + length <= MAX_RECORD) {
+                copyLength += length;
+                return;
+            }
+            flushCopy();
+            copyOffset = offset;
+            copyLength = length;
+            while (copyLength > MAX_RECORD) {
+                out.writeByte(DeltaEncoder.OP_COPY);
+                out.writeLong(copyOffset);
+                out.writeInt(MAX_RECORD);
+                copyOffset += MAX_RECORD;
+                copyLength -= MAX_RECORD;
+            }
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyOffset < 0) {
+                return;
+            }
+            out.writeByte(DeltaEncoder.OP_COPY);
+            out.writeLong(copyOffset);
+            out.writeInt((int) copyLength);
+            copyOffset = -1;
+            copyLength = 0;
+        }
+
+        private void copyData(long position, long length) throws IOException {
+            data.seek(position);
+            writeData(data, length);
+        }
+
+        private void writeData(java.io.DataInput in, long length) throws IOException {
+            flushCopy();
+            while (length > 0) {
+                int record = (int) Math.min(MAX_RECORD, length);
+                out.writeByte(DeltaEncoder.OP_DATA);
+                out.writeInt(record);
+                for (int remaining = record; remaining > 0; ) {
+                    int read = Math.min(buffer.length, remaining);
+                    in.readFully(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+                length -= record;
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package cn.org.agatha;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * 块级差异编码器：把写入的新版本内容按内容分块，与旧版本的块索引比对，
+ * 旧版本中已有的块只记录位置，新的块原样写出
+ * <p>
+ * 差异格式（大端序）：
+ * <pre>
+ * "IDLT" 版本(1 字节) 旧文件大小(8) 旧文件 SHA-256(32)
+ * 之后若干记录，每条以操作字节开头：
+ *   1 COPY  旧文件偏移(8) 长度(4)   —— 从旧文件复制，相邻的复制会合并
+ *   2 DATA  长度(4) 数据            —— 新数据
+ *   0 END   新文件大小(8) 新文件 SHA-256(32)
+ * </pre>
+ * 由 {@link DeltaReader} 根据旧版本文件重建新版本。
+ */
+public class DeltaEncoder extends OutputStream {
+    public static final String ENTRY_SUFFIX = ".incdelta"; // 增量归档中差异条目的后缀
+    static final byte[] MAGIC = {'I', 'D', 'L', 'T'};
+    static final int VERSION = 1;
+    static final int OP_END = 0;
+    static final int OP_COPY = 1;
+    static final int OP_DATA = 2;
+
+    private final DeltaIndex base;
+    private final DataOutputStream out;
+    private final ContentChunker chunker;
+    private final MessageDigest fileDigest = DeltaIndex.newDigest();
+    private final MessageDigest chunkDigest = DeltaIndex.newDigest();
+    private long copyOffset = -1; // 尚未写出的复制区间
+    private long copyLength = 0;
+    private long size = 0;
+    private long copiedBytes = 0;
+    private boolean headerWritten = false;
+    private boolean finished = false;
+
+    /**
+     * 构造函数
+     *
+     * @param base 旧版本的块索引
+     * @param out  差异输出流
+     */
+    public DeltaEncoder(DeltaIndex base, OutputStream out) {
+        this.base = base;
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.chunker = new ContentChunker(this::encodeChunk);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Delta already finished");
+        }
+        writeHeader();
+        fileDigest.update(b, off, len);
+        size += len;
+        chunker.update(b, off, len);
+    }
+
+    /**
+     * 写出剩余的块和结束记录，不关闭底层输出流
+     *
+     * @throws IOException 写入过程中发生异常
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writeHeader();
+        chunker.finish();
+        flushCopy();
+        finished = true;
+        out.writeByte(OP_END);
+        out.writeLong(size);
+        out.write(fileDigest.digest());
+        out.flush();
+    }
+
+    /**
+     * 获取新版本文件大小
+     *
+     * @return 文件大小
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * 获取从旧版本复用的字节数
+     *
+     * @return 复用的字节数
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    private void writeHeader() throws IOException {
+        if (headerWritten) {
+            return;
+        }
+        headerWritten = true;
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(base.getBaseSize());
+        out.write(base.getBaseDigest());
+    }
+
+    private void encodeChunk(byte[] data, int length) throws IOException {
+        long offset = base.find(DeltaIndex.chunkKey(chunkDigest, data, length), length);
+        if (offset >= 0) {
+            copiedBytes += length;
+            if (copyOffset >= 0 && copyOffset + copyLength == offset && copyLength + length <= Integer.MAX_VALUE) {
+                copyLength += length;
+                return;
+            }
+            flushCopy();
+            copyOffset = offset;
+            copyLength = length;
+            return;
+        }
+        flushCopy();
+        out.writeByte(OP_DATA);
+        out.writeInt(length);
+        out.write(data, 0, length);
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyOffset < 0) {
+            return;
+        }
+        out.writeByte(OP_COPY);
+        out.writeLong(copyOffset);
+        out.writeInt((int) copyLength);
+        copyOffset = -1;
+        copyLength = 0;
+    }
+}
@@ -0,0 +1,166 @@
+package cn.org.agatha;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 旧版本文件的块索引，记录每个块的摘要和在旧文件中的位置，用于生成块级差异
+ * <p>
+ * 每块只保存 SHA-256 的前 8 字节，使用开放寻址的数组存储，每块约占 20 字节，
+ * 数 GB 的文件也只需要十几 MB 内存。重建时会校验完整文件的 SHA-256，摘要碰撞不会产生静默错误。
+ */
+public class DeltaIndex {
+    private long baseSize = 0;
+    private byte[] baseDigest;
+    private long[] keys = new long[1024];
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024]; // 0 表示空槽
+    private int count = 0;
+
+    private DeltaIndex() {
+    }
+
+    /**
+     * 读取旧版本文件并建立块索引
+     *
+     * @param base 旧版本文件
+     * @return 块索引
+     * @throws IOException 读取文件失败
+     */
+    public static DeltaIndex build(File base) throws IOException {
+        DeltaIndex index = new DeltaIndex();
+        MessageDigest fileDigest = newDigest();
+        MessageDigest chunkDigest = newDigest();
+        ContentChunker chunker = new ContentChunker((data, length) -> {
+            index.put(chunkKey(chunkDigest, data, length), index.baseSize, length);
+            index.baseSize += length;
+        });
+        byte[] buffer = new byte[256 * 1024];
+        try (InputStream in = new FileInputStream(base)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                fileDigest.update(buffer, 0, read);
+                chunker.update(buffer, 0, read);
+            }
+        }
+        chunker.finish();
+        index.baseDigest = fileDigest.digest();
+        return index;
+    }
+
+    /**
+     * 获取旧版本文件大小
+     *
+     * @return 文件大小
+     */
+    public long getBaseSize() {
+        return baseSize;
+    }
+
+    /**
+     * 获取旧版本文件的 SHA-256
+     *
+     * @return SHA-256 摘要
+     */
+    public byte[] getBaseDigest() {
+        return baseDigest.clone();
+    }
+
+    /**
+     * 获取块数
+     *
+     * @return 块数
+     */
+    public int getChunkCount() {
+        return count;
+    }
+
+    /**
+     * 查找与给定块相同的旧块
+     *
+     * @param key    块摘要
+     * @param length 块长度
+     * @return 旧块在旧版本文件中的位置，不存在时返回 -1
+     */
+    long find(long key, int length) {
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); lengths[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key && lengths[slot] == length) {
+                return offsets[slot];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 计算块摘要（SHA-256 的前 8 字节）
+     *
+     * @param digest 复用的摘要对象
+     * @param data   块数据
+     * @param length 块长度
+     * @return 块摘要
+     */
+    static long chunkKey(MessageDigest digest, byte[] data, int length) {
+        digest.update(data, 0, length);
+        byte[] hash = digest.digest();
+        long key = 0;
+        for (int i = 0; i < 8; i++) {
+            key = (key << 8) | (hash[i] & 0xFF);
+        }
+        return key;
+    }
+
+    /**
+     * 创建 SHA-256 摘要对象
+     *
+     * @return 摘要对象
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private void put(long key, long offset, int length) {
+        if ((count + 1) * 2 > keys.length) {
+            resize();
+        }
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (lengths[slot] != 0) {
+            if (keys[slot] == key && lengths[slot] == length) {
+                return; // 重复的块保留第一次出现的位置
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        count++;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldOffsets = offsets;
+        int[] oldLengths = lengths;
+        keys = new long[oldKeys.length * 2];
+        offsets = new long[oldKeys.length * 2];
+        lengths = new int[oldKeys.length * 2];
+        count = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldLengths[i] != 0) {
+                put(oldKeys[i], oldOffsets[i], oldLengths[i]);
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,143 @@
+package cn.org.agatha;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * 根据旧版本文件和 {@link DeltaEncoder} 生成的差异重建新版本文件的输入流
+ * <p>
+ * 打开时校验旧版本文件的大小和 SHA-256，读到结尾时校验重建结果的大小和 SHA-256，
+ * 任何不一致都会抛出 IOException，不会得到错误的内容。
+ */
+public class DeltaReader extends InputStream {
+    private final DataInputStream delta;
+    private final RandomAccessFile base;
+    private final MessageDigest digest = DeltaIndex.newDigest();
+    private int op = -1; // 当前记录的操作，-1 表示需要读取下一条记录
+    private long remaining = 0; // 当前记录剩余的字节数
+    private long size = 0;
+    private boolean ended = false;
+
+    /**
+     * 构造函数
+     *
+     * @param baseFile 旧版本文件
+     * @param delta    差异数据
+     * @throws IOException 差异格式错误或旧版本文件不匹配
+     */
+    public DeltaReader(File baseFile, InputStream delta) throws IOException {
+        this.delta = new DataInputStream(delta);
+        byte[] magic = new byte[DeltaEncoder.MAGIC.length];
+        this.delta.readFully(magic);
+        if (!Arrays.equals(magic, DeltaEncoder.MAGIC) || this.delta.readUnsignedByte() != DeltaEncoder.VERSION) {
+            throw new IOException("Not a supported delta stream");
+        }
+        long baseSize = this.delta.readLong();
+        byte[] baseDigest = new byte[32];
+        this.delta.readFully(baseDigest);
+        if (baseFile.length() != baseSize || !Arrays.equals(baseDigest, fileDigest(baseFile))) {
+            throw new IOException("Delta base does not match: " + baseFile);
+        }
+        this.base = new RandomAccessFile(baseFile, "r");
+    }
+
+    /**
+     * 重建新版本文件
+     *
+     * @param baseFile 旧版本文件
+     * @param delta    差异数据
+     * @param target   重建结果的输出流
+     * @throws IOException 差异格式错误、旧版本文件不匹配或校验失败
+     */
+    public static void reconstruct(File baseFile, InputStream delta, OutputStream target) throws IOException {
+        try (DeltaReader reader = new DeltaReader(baseFile, delta)) {
+            reader.transferTo(target);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (remaining == 0) {
+            if (ended || !nextRecord()) {
+                return -1;
+            }
+        }
+        int count = (int) Math.min(len, remaining);
+        if (op == DeltaEncoder.OP_COPY) {
+            base.readFully(b, off, count);
+        } else {
+            delta.readFully(b, off, count);
+        }
+        remaining -= count;
+        size += count;
+        digest.update(b, off, count);
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            base.close();
+        } finally {
+            delta.close();
+        }
+    }
+
+    /**
+     * 读取下一条记录
+     *
+     * @return 是否还有数据，读到结束记录时返回 false
+     * @throws IOException 差异格式错误或校验失败
+     */
+    private boolean nextRecord() throws IOException {
+        op = delta.readUnsignedByte();
+        switch (op) {
+            case DeltaEncoder.OP_COPY:
+                base.seek(delta.readLong());
+                remaining = delta.readInt() & 0xFFFFFFFFL;
+                return true;
+            case DeltaEncoder.OP_DATA:
+                remaining = delta.readInt() & 0xFFFFFFFFL;
+                return true;
+            case DeltaEncoder.OP_END:
+                ended = true;
+                long expectedSize = delta.readLong();
+                byte[] expectedDigest = new byte[32];
+                delta.readFully(expectedDigest);
+                if (size != expectedSize || !Arrays.equals(expectedDigest, digest.digest())) {
+                    throw new IOException("Reconstructed file does not match delta checksum");
+                }
+                return false;
+            default:
+                throw new IOException("Corrupt delta stream: unknown operation " + op);
+        }
+    }
+
+    private static byte[] fileDigest(File file) throws IOException {
+        MessageDigest digest = DeltaIndex.newDigest();
+        byte[] buffer = new byte[256 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,615 @@
+package cn.org.agatha;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * 并发下载引擎，将下载任务分摊到连接池中的多个 FTP 会话上执行
+ */
+public class DownloadEngine implements AutoCloseable {
+    private static final long CHECKPOINT_SECONDS = 5; // 分段下载进度的保存间隔（秒）
+    private final FtpManager ftpManager;
+    private final FtpSessionPool sessionPool;
+    private final ExecutorService executor;
+    private final ExecutorService segmentExecutor;
+    private long segmentThreshold = 0; // 超过该大小的文件分段并发下载，0 表示不分段
+    private int maxSegments = 4; // 单个文件的最大分段数
+
+    /**
+     * 下载任务
+     */
+    public static class Task {
+        private final String remotePath;
+        private final String localPath;
+        private final long modifiedTime;
+        private final long size;
+
+        /**
+         * 构造函数
+         *
+         * @param remotePath   FTP 文件路径
+         * @param localPath    本地保存路径
+         * @param modifiedTime 远程文件修改时间（毫秒），未知时为 0
+         * @param size         远程文件大小，未知时为 -1
+         */
+        public Task(String remotePath, String localPath, long modifiedTime, long size) {
+            this.remotePath = remotePath;
+            this.localPath = localPath;
+            this.modifiedTime = modifiedTime;
+            this.size = size;
+        }
+
+        public String getRemotePath() {
+            return remotePath;
+        }
+
+        public String getLocalPath() {
+            return localPath;
+        }
+
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param ftpManager FTP 管理器
+     * @param sessions   并发会话数
+     */
+    public DownloadEngine(FtpManager ftpManager, int sessions) {
+        this.ftpManager = ftpManager;
+        this.sessionPool = new FtpSessionPool(ftpManager, sessions);
+        ftpManager.addSessionPool(sessionPool);
+        this.executor = Executors.newFixedThreadPool(sessionPool.getMaxSessions(), runnable -> {
+            Thread thread = new Thread(runnable, "download-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 分段由下载线程发起，辅助分段在独立线程中执行，避免占满下载线程池导致互相等待
+        this.segmentExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "segment-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 设置分段下载：大于阈值的文件拆成多个区间，用连接池中空闲的会话并发下载
+     *
+     * @param segmentThreshold 分段阈值（字节），0 表示不分段
+     * @param maxSegments      单个文件的最大分段数
+     */
+    public void setSegmentedDownload(long segmentThreshold, int maxSegments) {
+        this.segmentThreshold = segmentThreshold;
+        this.maxSegments = Math.max(1, maxSegments);
+    }
+
+    /**
+     * 获取并发会话数
+     *
+     * @return 并发会话数
+     */
+    public int getSessions() {
+        return sessionPool.getMaxSessions();
+    }
+
+    /**
+     * 并发执行一批下载任务
+     *
+     * @param tasks   下载任务列表
+     * @param archive 边下载边写入的增量归档，为 null 时只下载
+     * @return 下载成功的本地文件路径，顺序与任务列表一致
+     */
+    public List<String> downloadAll(List<Task> tasks, IncrementArchive archive) {
+        return downloadAll(tasks, archive, () -> false);
+    }
+
+    /**
+     * 并发执行一批下载任务，取消后尚未开始的任务直接跳过，正在下载的文件会完成
+     *
+     * @param tasks     下载任务列表
+     * @param archive   边下载边写入的增量归档，为 null 时只下载
+     * @param cancelled 是否已请求取消
+     * @return 下载成功的本地文件路径，顺序与任务列表一致
+     */
+    public List<String> downloadAll(List<Task> tasks, IncrementArchive archive, BooleanSupplier cancelled) {
+        return downloadAll(tasks, archive, cancelled, task -> {
+        });
+    }
+
+    /**
+     * 并发执行一批下载任务，每个文件下载完成（流水线模式下包括条目提交）后立即回调
+     *
+     * @param tasks     下载任务列表
+     * @param archive   边下载边写入的增量归档，为 null 时只下载
+     * @param cancelled 是否已请求取消
+     * @param completed 单个任务完成的回调，在下载线程中执行
+     * @return 下载成功的本地文件路径，顺序与任务列表一致
+     */
+    public List<String> downloadAll(List<Task> tasks, IncrementArchive archive, BooleanSupplier cancelled,
+                                    Consumer<Task> completed) {
+        List<Future<Boolean>> futures = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            futures.add(executor.submit(() -> {
+                if (cancelled.getAsBoolean() || !download(task, archive)) {
+                    return false;
+                }
+                completed.accept(task);
+                return true;
+            }));
+        }
+
+        List<String> downloaded = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                if (futures.get(i).get()) {
+                    downloaded.add(tasks.get(i).getLocalPath());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(future -> future.cancel(true));
+                break;
+            } catch (ExecutionException e) {
+                System.out.println("Error downloading file: " + e.getCause().getMessage());
+            }
+        }
+        return downloaded;
+    }
+
+    /**
+     * 在池中会话上下载单个文件，会话失效时换一个新会话重试一次
+     *
+     * @param task    下载任务
+     * @param archive 增量归档，为 null 时只下载
+     * @return 是否下载成功
+     * @throws InterruptedException 等待会话时被中断
+     */
+    private boolean download(Task task, IncrementArchive archive) throws InterruptedException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            FTPClient client = sessionPool.borrow();
+            if (client == null) {
+                System.out.println("No FTP session available for: " + task.getRemotePath());
+                return false;
+            }
+            IncrementArchive.EntrySink sink = archive != null ? archive.openEntry(task.getLocalPath()) : null;
+            boolean success = false;
+            boolean alive = false;
+            try {
+                long size = task.getSize();
+                if (segmentThreshold > 0 && size < 0) {
+                    size = ftpManager.querySize(client, task.getRemotePath());
+                }
+                if (segmentThreshold > 0 && size >= segmentThreshold) {
+                    success = downloadSegmented(client, task, size, sink);
+                } else {
+                    success = ftpManager.downloadFile(client, task.getRemotePath(), task.getLocalPath(),
+                            task.getModifiedTime(), sink);
+                }
+                alive = FtpManager.isHealthy(client);
+                if (success && sink != null) {
+                    sink.commit();
+                }
+            } catch (IOException e) {
+                System.out.println("Error archiving file: " + e.getMessage());
+                success = false;
+            } finally {
+                if (sink != null) {
+                    sink.abort();
+                }
+                sessionPool.release(client, alive);
+            }
+            if (success || alive) {
+                return success;
+            }
+            System.out.println("FTP session lost, retrying: " + task.getRemotePath());
+        }
+        return false;
+    }
+
+    /**
+     * 分段并发下载一个大文件
+     * <p>
+     * 除当前会话外，再从连接池中借用空闲会话（不等待），各会话从队列中领取区间，
+     * 用 REST 定位后按位置写入同一个未完成文件。当前会话优先负责最后一个区间并读到文件末尾，
+     * 因此可以继续复用；提前关闭过数据连接的会话在领取下一个区间前重新登录，借来的会话用完后直接关闭。
+     * 区间传输中断时重新登录该会话并从区间内的断点继续。
+     * <p>
+     * 每个区间已写入的长度定期保存到未完成文件旁的进度文件中，下载失败时保留未完成文件和进度文件，
+     * 下次运行时只要未完成文件不早于远程文件的修改时间，各区间就从记录的位置继续，
+     * 此时即使没有空闲会话也由当前会话依次下载剩余区间。分段写入是乱序的，
+     * 所以增量归档条目在文件完成后再从磁盘顺序读取一遍。
+     *
+     * @param client 当前会话
+     * @param task   下载任务
+     * @param size   文件大小
+     * @param sink   增量归档条目，为 null 时只下载
+     * @return 是否下载成功
+     * @throws IOException 写入本地文件或归档条目时发生异常
+     */
+    private boolean downloadSegmented(FTPClient client, Task task, long size, IncrementArchive.EntrySink sink)
+            throws IOException {
+        File localFile = new File(task.getLocalPath());
+        File partFile = FtpManager.partialFile(task.getLocalPath());
+        File rangesFile = FtpManager.rangesFile(task.getLocalPath());
+        if (partFile.exists() && partFile.lastModified() < task.getModifiedTime()) {
+            // 远程文件在上次写入之后又被修改过，遗留的未完成文件已经过期
+            partFile.delete();
+            rangesFile.delete();
+        }
+        SegmentProgress progress = null;
+        if (partFile.exists() && rangesFile.exists()) {
+            progress = SegmentProgress.load(rangesFile, size);
+            if (progress == null) {
+                partFile.delete();
+            }
+        }
+
+        List<FTPClient> helpers = new ArrayList<>();
+        int wanted = progress != null ? progress.pendingCount() : maxSegments;
+        while (helpers.size() + 1 < wanted) {
+            FTPClient helper = sessionPool.tryBorrow();
+            if (helper == null) {
+                break;
+            }
+            helpers.add(helper);
+        }
+        if (helpers.isEmpty() && progress == null) {
+            rangesFile.delete();
+            return ftpManager.downloadFile(client, task.getRemotePath(), task.getLocalPath(), task.getModifiedTime(), sink);
+        }
+
+        boolean success = true;
+        try {
+            if (!localFile.getParentFile().exists()) {
+                localFile.getParentFile().mkdirs();
+            }
+            if (progress == null) {
+                // 连续写入的未完成文件（来自不分段的下载）按已有长度折算到各区间
+                long existing = partFile.exists() ? partFile.length() : 0;
+                if (existing > size) {
+                    partFile.delete();
+                    existing = 0;
+                }
+                progress = SegmentProgress.create(rangesFile, size, helpers.size() + 1, existing);
+                System.out.println("Downloading " + task.getRemotePath() + " in " + progress.count() + " segments"
+                        + (existing > 0 ? " (resumed at " + existing + ")" : ""));
+            } else {
+                System.out.println("Resuming " + task.getRemotePath() + " at " + progress.completed() + " of "
+                        + size + " bytes in " + progress.pendingCount() + " segments");
+            }
+
+            try (FileChannel channel = FileChannel.open(partFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                Queue<Integer> queue = new ConcurrentLinkedQueue<>(progress.pending());
+                // 当前会话先领取最后一个区间，读到文件末尾后会话仍可复用
+                Integer last = progress.count() - 1;
+                Integer first = queue.remove(last) ? last : queue.poll();
+                SegmentProgress ranges = progress;
+                CountDownLatch finished = new CountDownLatch(1);
+                Future<?> checkpoint = segmentExecutor.submit(() -> {
+                    try {
+                        while (!finished.await(CHECKPOINT_SECONDS, TimeUnit.SECONDS)) {
+                            ranges.save(channel);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                List<Future<Boolean>> futures = new ArrayList<>();
+                for (FTPClient helper : helpers) {
+                    futures.add(segmentExecutor.submit(() -> downloadSegments(helper, task, channel, ranges,
+                            queue, null)));
+                }
+                try {
+                    success = first == null || downloadSegments(client, task, channel, ranges, queue, first);
+                    for (Future<Boolean> future : futures) {
+                        try {
+                            success &= future.get();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            futures.forEach(f -> f.cancel(true));
+                            success = false;
+                        } catch (ExecutionException e) {
+                            System.out.println("Error downloading segment: " + e.getCause().getMessage());
+                            success = false;
+                        }
+                    }
+                } finally {
+                    finished.countDown();
+                    try {
+                        checkpoint.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        System.out.println("Error saving segment progress: " + e.getCause().getMessage());
+                    }
+                    ranges.save(channel);
+                }
+            }
+        } finally {
+            for (FTPClient helper : helpers) {
+                sessionPool.release(helper, false);
+            }
+        }
+
+        if (!success) {
+            System.out.println("Failed to download file: " + task.getRemotePath() + " (" + progress.completed()
+                    + " of " + size + " bytes kept for resume)");
+            return false;
+        }
+        if (sink != null) {
+            try (InputStream in = new FileInputStream(partFile)) {
+                in.transferTo(sink);
+            }
+        }
+        FtpManager.commitPartialFile(partFile, localFile);
+        rangesFile.delete();
+        if (task.getModifiedTime() > 0) {
+            localFile.setLastModified(task.getModifiedTime());
+        }
+        System.out.println("File downloaded successfully: " + task.getRemotePath());
+        return true;
+    }
+
+    /**
+     * 用一个会话依次下载队列中的区间
+     * <p>
+     * 没有读到文件末尾的区间会提前关闭数据连接，之后先重新登录再领取下一个区间；
+     * 当前会话最终停在这种状态时标记为失效，由调用方丢弃。
+     *
+     * @param client  FTP 会话
+     * @param task    下载任务
+     * @param channel 本地文件通道
+     * @param ranges  分段下载进度
+     * @param queue   待下载区间的队列
+     * @param first   先下载的区间，为 null 时直接从队列领取
+     * @return 领取的区间是否全部下载成功
+     */
+    private boolean downloadSegments(FTPClient client, Task task, FileChannel channel, SegmentProgress ranges,
+                                     Queue<Integer> queue, Integer first) {
+        boolean clean = true;
+        for (Integer index = first != null ? first : queue.poll(); index != null; index = queue.poll()) {
+            if (!clean && !ftpManager.reconnect(client)) {
+                queue.add(index); // 交给其他会话
+                return false;
+            }
+            boolean success = downloadSegment(client, task, channel, ranges, index);
+            ranges.save(channel);
+            if (!success) {
+                return false;
+            }
+            clean = ranges.reachesEnd(index);
+        }
+        if (!clean) {
+            FtpManager.markFailed(client);
+        }
+        return true;
+    }
+
+    /**
+     * 下载一个区间，中断时重新登录会话并从断点继续
+     *
+     * @param client  FTP 会话
+     * @param task    下载任务
+     * @param channel 本地文件通道
+     * @param ranges  分段下载进度
+     * @param index   区间序号
+     * @return 是否下载成功
+     */
+    private boolean downloadSegment(FTPClient client, Task task, FileChannel channel, SegmentProgress ranges,
+                                    int index) {
+        AtomicLong done = ranges.done[index];
+        long start = ranges.starts[index];
+        long length = ranges.length(index);
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            try {
+                ftpManager.downloadRange(client, task.getRemotePath(), channel,
+                        start + done.get(), length - done.get(), done);
+                if (done.get() >= length) {
+                    return true;
+                }
+                System.out.println("Segment ended early at " + (start + done.get()) + ": " + task.getRemotePath());
+                return false;
+            } catch (IOException e) {
+                System.out.println("Error downloading segment at " + (start + done.get()) + ": " + e.getMessage());
+                if (attempt >= 3 || !ftpManager.reconnect(client)) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 分段下载的进度，保存在未完成文件旁的进度文件中
+     * <p>
+     * 每个区间记录从起点开始已连续写入的长度。保存前先把文件通道刷到磁盘，
+     * 因此记录的位置不会超过未完成文件中实际已有的数据。
+     */
+    private static class SegmentProgress {
+        private static final int MAGIC = 0x49535247; // 进度文件格式标识
+        private final File file;
+        private final long size;
+        private final long[] starts;
+        private final AtomicLong[] done;
+
+        private SegmentProgress(File file, long size, long[] starts, AtomicLong[] done) {
+            this.file = file;
+            this.size = size;
+            this.starts = starts;
+            this.done = done;
+        }
+
+        /**
+         * 按会话数均分文件，已有连续写入的前缀计入各区间
+         *
+         * @param file     进度文件
+         * @param size     文件大小
+         * @param segments 区间数
+         * @param existing 未完成文件中已连续写入的长度
+         * @return 分段下载进度
+         * @throws IOException 写入进度文件失败
+         */
+        static SegmentProgress create(File file, long size, int segments, long existing) throws IOException {
+            long segmentSize = Math.max(1, (size + segments - 1) / segments);
+            segments = (int) Math.max(1, (size + segmentSize - 1) / segmentSize); // 文件很小时末尾不留空区间
+            long[] starts = new long[segments];
+            AtomicLong[] done = new AtomicLong[segments];
+            for (int i = 0; i < segments; i++) {
+                starts[i] = i * segmentSize;
+                long length = Math.min(segmentSize, size - starts[i]);
+                done[i] = new AtomicLong(Math.max(0, Math.min(length, existing - starts[i])));
+            }
+            SegmentProgress progress = new SegmentProgress(file, size, starts, done);
+            // 写入任何分段数据之前先落盘，否则下次会把乱序写入的文件当作连续写入的续传
+            progress.write(progress.snapshot());
+            return progress;
+        }
+
+        /**
+         * 读取进度文件，格式不符或文件大小已变化时返回 null
+         *
+         * @param file 进度文件
+         * @param size 当前的文件大小
+         * @return 分段下载进度，无法使用时为 null
+         */
+        static SegmentProgress load(File file, long size) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readLong() != size) {
+                    return null;
+                }
+                int segments = in.readInt();
+                if (segments <= 0) {
+                    return null;
+                }
+                long[] starts = new long[segments];
+                AtomicLong[] done = new AtomicLong[segments];
+                for (int i = 0; i < segments; i++) {
+                    starts[i] = in.readLong();
+                    done[i] = new AtomicLong(in.readLong());
+                }
+                SegmentProgress progress = new SegmentProgress(file, size, starts, done);
+                for (int i = 0; i < segments; i++) {
+                    if (progress.length(i) < 0 || done[i].get() < 0 || done[i].get() > progress.length(i)) {
+                        return null;
+                    }
+                }
+                return progress;
+            } catch (IOException e) {
+                System.out.println("Error reading segment progress: " + e.getMessage());
+                return null;
+            }
+        }
+
+        int count() {
+            return starts.length;
+        }
+
+        long length(int index) {
+            return (index + 1 < starts.length ? starts[index + 1] : size) - starts[index];
+        }
+
+        boolean reachesEnd(int index) {
+            return index == starts.length - 1;
+        }
+
+        List<Integer> pending() {
+            List<Integer> pending = new ArrayList<>();
+            for (int i = 0; i < starts.length; i++) {
+                if (done[i].get() < length(i)) {
+                    pending.add(i);
+                }
+            }
+            return pending;
+        }
+
+        int pendingCount() {
+            return pending().size();
+        }
+
+        long completed() {
+            long completed = 0;
+            for (AtomicLong value : done) {
+                completed += value.get();
+            }
+            return completed;
+        }
+
+        /**
+         * 把已写入的数据刷到磁盘后保存进度，失败时只打印日志，下次从更早的位置继续
+         *
+         * @param channel 未完成文件的通道
+         */
+        synchronized void save(FileChannel channel) {
+            try {
+                if (channel.isOpen()) {
+                    long[] snapshot = snapshot(); // 先取进度再刷盘，记录的位置都已写入磁盘
+                    channel.force(false);
+                    write(snapshot);
+                }
+            } catch (IOException e) {
+                System.out.println("Error saving segment progress: " + e.getMessage());
+            }
+        }
+
+        private long[] snapshot() {
+            long[] snapshot = new long[done.length];
+            for (int i = 0; i < done.length; i++) {
+                snapshot[i] = done[i].get();
+            }
+            return snapshot;
+        }
+
+        private synchronized void write(long[] snapshot) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(size);
+                out.writeInt(starts.length);
+                for (int i = 0; i < starts.length; i++) {
+                    out.writeLong(starts[i]);
+                    out.writeLong(snapshot[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 关闭下载引擎及其连接池
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        segmentExecutor.shutdownNow();
+        sessionPool.close();
+    }
+}
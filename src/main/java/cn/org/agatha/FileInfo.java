@@ -1,11 +1,12 @@
 package cn.org.agatha;
 
 /**
- * 文件信息类，用于存储文件路径和时间戳
+ * 文件信息类，用于存储文件路径、修改时间和大小
  */
 public class FileInfo {
     private String path;
-    private long timestamp;
+    private long modifiedTime;
+    private long size;
 
     /**
      * 构造函数
@@ -14,8 +15,20 @@ public class FileInfo {
      * @param timestamp 时间戳（秒）
      */
     public FileInfo(String path, long timestamp) {
+        this(path, timestamp * 1000, -1);
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param path         文件路径
+     * @param modifiedTime 修改时间（毫秒），精度取决于来源（本地文件系统、MLSD 或 LIST）
+     * @param size         文件大小，未知时为 -1
+     */
+    public FileInfo(String path, long modifiedTime, long size) {
         this.path = path;
-        this.timestamp = timestamp;
+        this.modifiedTime = modifiedTime;
+        this.size = size;
     }
 
     /**
@@ -33,11 +46,29 @@ public class FileInfo {
      * @return 时间戳（秒）
      */
     public long getTimestamp() {
-        return timestamp;
+        return modifiedTime / 1000;
+    }
+
+    /**
+     * 获取修改时间
+     *
+     * @return 修改时间（毫秒）
+     */
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+
+    /**
+     * 获取文件大小
+     *
+     * @return 文件大小，未知时为 -1
+     */
+    public long getSize() {
+        return size;
     }
 
     @Override
     public String toString() {
-        return "FileInfo{path='" + path + "', timestamp=" + timestamp + "}";
+        return "FileInfo{path='" + path + "', timestamp=" + getTimestamp() + ", size=" + size + "}";
     }
-}
\ No newline at end of file
+}
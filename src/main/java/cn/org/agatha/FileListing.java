@@ -0,0 +1,275 @@
+package cn.org.agatha;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 紧凑的文件列表，用于数百万文件规模的目录树
+ * <p>
+ * 目录路径去重后只保存一份，每个文件只记录目录编号、文件名在共享字节数组中的位置（UTF-8）、
+ * 大小和修改时间，全部是基本类型数组；每个文件约 28 字节加文件名长度，不再为每个文件创建对象和完整路径字符串。
+ * 需要时才按下标构造 {@link FileInfo}。
+ * <p>
+ * {@link #sort()} 按"目录路径、文件名"排序，两个列表排序后可以由 {@link ListingDiff} 顺序归并比较。
+ * 不是线程安全的，并行爬取时每个线程各用一个列表，最后再合并。
+ */
+public class FileListing {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final List<String> directories = new ArrayList<>();
+    private final Map<String, Integer> directoryIndex = new HashMap<>();
+    private int[] directory = new int[INITIAL_CAPACITY];
+    private int[] nameOffset = new int[INITIAL_CAPACITY];
+    private int[] nameLength = new int[INITIAL_CAPACITY];
+    private long[] size = new long[INITIAL_CAPACITY];
+    private long[] modifiedTime = new long[INITIAL_CAPACITY];
+    private byte[] names = new byte[INITIAL_CAPACITY * 16];
+    private int namesLength = 0;
+    private int count = 0;
+    private boolean sorted = true;
+    private int[] directoryRank; // 目录路径的排序名次，排序后有效
+
+    /**
+     * 加入一个文件
+     *
+     * @param directoryPath 所在目录，以 / 开头和结尾
+     * @param name          文件名
+     * @param fileSize      文件大小，未知时为 -1
+     * @param fileTime      修改时间（毫秒），未知时为 0
+     */
+    public void add(String directoryPath, String name, long fileSize, long fileTime) {
+        Integer index = directoryIndex.get(directoryPath);
+        if (index == null) {
+            index = directories.size();
+            directories.add(directoryPath);
+            directoryIndex.put(directoryPath, index);
+        }
+        addEntry(index, name.getBytes(StandardCharsets.UTF_8), 0, -1, fileSize, fileTime);
+    }
+
+    /**
+     * 加入一个文件
+     *
+     * @param path     以 / 开头的文件路径
+     * @param fileSize 文件大小，未知时为 -1
+     * @param fileTime 修改时间（毫秒），未知时为 0
+     */
+    public void add(String path, long fileSize, long fileTime) {
+        int slash = path.lastIndexOf('/');
+        add(path.substring(0, slash + 1), path.substring(slash + 1), fileSize, fileTime);
+    }
+
+    /**
+     * 把另一个列表的全部文件加入本列表
+     *
+     * @param other 另一个列表
+     */
+    public void addAll(FileListing other) {
+        int[] mapping = new int[other.directories.size()];
+        for (int i = 0; i < mapping.length; i++) {
+            String path = other.directories.get(i);
+            Integer index = directoryIndex.get(path);
+            if (index == null) {
+                index = directories.size();
+                directories.add(path);
+                directoryIndex.put(path, index);
+            }
+            mapping[i] = index;
+        }
+        for (int i = 0; i < other.count; i++) {
+            addEntry(mapping[other.directory[i]], other.names, other.nameOffset[i], other.nameLength[i],
+                    other.size[i], other.modifiedTime[i]);
+        }
+    }
+
+    private void addEntry(int directoryId, byte[] source, int offset, int length, long fileSize, long fileTime) {
+        int nameBytes = length < 0 ? source.length : length;
+        if (count == size.length) {
+            int capacity = count + (count >> 1);
+            directory = Arrays.copyOf(directory, capacity);
+            nameOffset = Arrays.copyOf(nameOffset, capacity);
+            nameLength = Arrays.copyOf(nameLength, capacity);
+            size = Arrays.copyOf(size, capacity);
+            modifiedTime = Arrays.copyOf(modifiedTime, capacity);
+        }
+        if (namesLength + nameBytes > names.length) {
+            names = Arrays.copyOf(names, Math.max(namesLength + nameBytes, names.length + (names.length >> 1)));
+        }
+        System.arraycopy(source, offset, names, namesLength, nameBytes);
+        directory[count] = directoryId;
+        nameOffset[count] = namesLength;
+        nameLength[count] = nameBytes;
+        size[count] = fileSize;
+        modifiedTime[count] = fileTime;
+        namesLength += nameBytes;
+        count++;
+        sorted = false;
+    }
+
+    /**
+     * 获取文件数
+     *
+     * @return 文件数
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * 获取文件路径
+     *
+     * @param index 下标
+     * @return 以 / 开头的文件路径
+     */
+    public String getPath(int index) {
+        return directories.get(directory[index]) + new String(names, nameOffset[index], nameLength[index],
+                StandardCharsets.UTF_8);
+    }
+
+    public long getSize(int index) {
+        return size[index];
+    }
+
+    public long getModifiedTime(int index) {
+        return modifiedTime[index];
+    }
+
+    /**
+     * 构造一个文件的 {@link FileInfo}
+     *
+     * @param index 下标
+     * @return 文件信息
+     */
+    public FileInfo get(int index) {
+        return new FileInfo(getPath(index), modifiedTime[index], size[index]);
+    }
+
+    /**
+     * 转换为 {@link FileInfo} 列表，只用于文件数不多的场合
+     *
+     * @return 文件信息列表
+     */
+    public List<FileInfo> toList() {
+        List<FileInfo> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(get(i));
+        }
+        return files;
+    }
+
+    /**
+     * 按目录路径、文件名（UTF-8 字节序）排序
+     */
+    public void sort() {
+        if (sorted && directoryRank != null && directoryRank.length == directories.size()) {
+            return;
+        }
+        Integer[] order = new Integer[directories.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> directories.get(a).compareTo(directories.get(b)));
+        directoryRank = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            directoryRank[order[i]] = i;
+        }
+
+        int[] permutation = new int[count];
+        for (int i = 0; i < count; i++) {
+            permutation[i] = i;
+        }
+        mergeSort(permutation, new int[count], 0, count);
+        directory = permute(directory, permutation);
+        nameOffset = permute(nameOffset, permutation);
+        nameLength = permute(nameLength, permutation);
+        size = permute(size, permutation);
+        modifiedTime = permute(modifiedTime, permutation);
+        sorted = true;
+    }
+
+    private void mergeSort(int[] items, int[] buffer, int from, int to) {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; i++) {
+                int item = items[i];
+                int j = i - 1;
+                while (j >= from && compareEntries(items[j], item) > 0) {
+                    items[j + 1] = items[j];
+                    j--;
+                }
+                items[j + 1] = item;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(items, buffer, from, middle);
+        mergeSort(items, buffer, middle, to);
+        if (compareEntries(items[middle - 1], items[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(items, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || left < middle && compareEntries(buffer[left], buffer[right]) <= 0) {
+                items[i] = buffer[left++];
+            } else {
+                items[i] = buffer[right++];
+            }
+        }
+    }
+
+    private int compareEntries(int a, int b) {
+        int byDirectory = Integer.compare(directoryRank[directory[a]], directoryRank[directory[b]]);
+        if (byDirectory != 0) {
+            return byDirectory;
+        }
+        return compareNames(names, nameOffset[a], nameLength[a], names, nameOffset[b], nameLength[b]);
+    }
+
+    private static int[] permute(int[] values, int[] permutation) {
+        int[] result = new int[values.length];
+        for (int i = 0; i < permutation.length; i++) {
+            result[i] = values[permutation[i]];
+        }
+        return result;
+    }
+
+    private static long[] permute(long[] values, int[] permutation) {
+        long[] result = new long[values.length];
+        for (int i = 0; i < permutation.length; i++) {
+            result[i] = values[permutation[i]];
+        }
+        return result;
+    }
+
+    /**
+     * 比较两个列表中同一目录下文件的文件名，顺序与 {@link #sort()} 一致
+     *
+     * @param index      本列表中的下标
+     * @param other      另一个列表
+     * @param otherIndex 另一个列表中的下标
+     * @return 小于、等于或大于 0
+     */
+    int compareName(int index, FileListing other, int otherIndex) {
+        return compareNames(names, nameOffset[index], nameLength[index],
+                other.names, other.nameOffset[otherIndex], other.nameLength[otherIndex]);
+    }
+
+    /**
+     * 获取文件所在目录
+     *
+     * @param index 下标
+     * @return 以 / 开头和结尾的目录路径，同一目录下的文件返回同一个字符串对象
+     */
+    String directoryOf(int index) {
+        return directories.get(directory[index]);
+    }
+
+    private static int compareNames(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        return Arrays.compareUnsigned(a, aOffset, aOffset + aLength, b, bOffset, bOffset + bLength);
+    }
+}
@@ -5,15 +5,89 @@ import org.apache.commons.net.ftp.FTPFile;
 import org.apache.commons.net.ftp.FTPReply;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.ZipException;
 
+/**
+ * FTP 管理器，维护主会话并提供列目录、下载和校验和查询
+ * <p>
+ * 会话是否可用由 {@link SyncFtpClient} 根据实际命令的结果判断，操作前不再发送 NOOP 探测；
+ * 会话失效后在下一次使用时才重新连接。主会话和连接池中的空闲会话由后台线程定期保活，
+ * 空闲超过保活间隔时发送一次 NOOP。主会话同一时刻只执行一个操作，保活线程只在主会话空闲时使用它。
+ * <p>
+ * 启用传输压缩后，服务器在 FEAT 中声明 MODE Z 时用压缩的数据连接下载文件，已压缩格式的文件仍用 MODE S；
+ * 服务器拒绝 MODE Z 或压缩数据无法解压时改用 MODE S。
+ */
 public class FtpManager {
+    public static final String PARTIAL_SUFFIX = ".incsync-part"; // 未完成下载文件的后缀
+    public static final String RANGES_SUFFIX = ".incsync-ranges"; // 分段下载进度文件的后缀
+    private static final int LISTING_ATTEMPTS = 3; // 逐目录列表时单个目录的最大尝试次数
+    // 默认不使用 MODE Z 的扩展名，这些格式已经压缩过，再压缩只会增加两端的 CPU 开销
+    public static final List<String> DEFAULT_UNCOMPRESSED_EXTENSIONS = List.of(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "war", "apk",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "aac", "ogg", "flac", "mp4", "mkv", "avi", "mov", "webm",
+            "docx", "xlsx", "pptx", "pdf");
+
     private FTPClient ftpClient;
     private String server;
     private int port;
     private String username;
     private String password;
+    private int crawlThreads = 1; // 并发列目录的会话数
+    private File snapshotFile; // 远程目录列表快照文件
+    private long fullListingInterval = 0; // 完整列表间隔（秒）
+    private String listingMode = "auto"; // 列表方式：auto / list / mlsd / recursive
+    private volatile ListingStrategy listingStrategy; // 探测后确定的列表策略
+    private int downloadRetries = 3; // 单个文件下载的最大尝试次数
+    private volatile boolean lastListingComplete = false; // 最近一次远程列表是否完整
+    private boolean hashProbed = false; // 是否已探测远程校验和命令
+    private String hashCommand; // 远程校验和命令：HASH / XSHA256 / XSHA1 / XMD5 / XCRC
+    private String hashAlgorithm; // 远程校验和算法，服务器不支持时为 null
+    private volatile SyncMetrics metrics = new SyncMetrics(); // 列目录、下载字节数和重连次数的统计
+    private volatile boolean connectedBefore = false; // 是否成功连接过，之后的连接计为重连
+    private volatile RateLimiter rateLimiter; // 全局下载限速，为 null 时不限速
+    private volatile SyncFilter filter; // 同步范围过滤规则，为 null 时同步所有文件
+    private final ReentrantLock sessionLock = new ReentrantLock(); // 主会话的使用权
+    private volatile long keepAliveInterval = 60; // 空闲会话的保活间隔（秒），0 表示不保活
+    private ScheduledExecutorService keepAliveExecutor;
+    private final List<FtpSessionPool> sessionPools = new CopyOnWriteArrayList<>(); // 需要保活的连接池
+    private volatile boolean transferCompression = false; // 服务器支持时是否使用 MODE Z 下载
+    private volatile Set<String> uncompressedExtensions = new HashSet<>(DEFAULT_UNCOMPRESSED_EXTENSIONS);
+    private volatile Boolean modeZSupported; // 服务器是否支持 MODE Z，未探测时为 null
+    private final Object modeZProbeLock = new Object();
+    private boolean localIndexEnabled = false; // 是否用常驻索引代替每轮遍历本地目录
+    private long localVerifyInterval = 3600; // 本地索引完整重新读取的间隔（秒）
+    private LocalIndex localIndex;
+
+    // 按优先级排列的校验和算法及对应的非标准命令
+    private static final String[][] HASH_ALGORITHMS = {
+            {"SHA-256", "XSHA256"}, {"SHA-1", "XSHA1"}, {"MD5", "XMD5"}, {"CRC32", "XCRC"}};
 
     /**
      * 构造函数，初始化 FTP 服务器信息
@@ -28,7 +102,173 @@ public class FtpManager {
         this.port = port;
         this.username = username;
         this.password = password;
-        this.ftpClient = new FTPClient();
+        this.ftpClient = new SyncFtpClient();
+    }
+
+    /**
+     * 设置并发列目录的会话数，大于 1 时使用并行爬取
+     *
+     * @param crawlThreads 并发会话数
+     */
+    public void setCrawlThreads(int crawlThreads) {
+        this.crawlThreads = Math.max(1, crawlThreads);
+    }
+
+    /**
+     * 启用远程目录列表快照，未变化的目录直接复用上次的列表
+     *
+     * @param snapshotFile        快照文件
+     * @param fullListingInterval 完整列表的间隔（秒）
+     */
+    public void setListingSnapshot(File snapshotFile, long fullListingInterval) {
+        this.snapshotFile = snapshotFile;
+        this.fullListingInterval = fullListingInterval;
+    }
+
+    /**
+     * 设置远程目录列表方式
+     * <ul>
+     *     <li>auto：根据 FEAT 探测，支持 MLST 时每轮都逐目录 MLSD（时间精确且为 UTC），否则优先尝试 LIST -R，
+     *     不支持时逐目录 LIST</li>
+     *     <li>list：逐目录 LIST</li>
+     *     <li>mlsd：逐目录 MLSD</li>
+     *     <li>recursive：尝试 LIST -R，不支持时逐目录 LIST</li>
+     * </ul>
+     *
+     * @param listingMode 列表方式
+     */
+    public void setListingMode(String listingMode) {
+        this.listingMode = listingMode.toLowerCase();
+        this.listingStrategy = null;
+    }
+
+    /**
+     * 获取列表策略，首次调用时通过 FEAT 探测服务器能力
+     *
+     * @return 列表策略
+     */
+    public ListingStrategy getListingStrategy() {
+        ListingStrategy strategy = listingStrategy;
+        if (strategy != null) {
+            return strategy;
+        }
+        boolean mlsd = "mlsd".equals(listingMode);
+        if ("auto".equals(listingMode)) {
+            try {
+                mlsd = ftpClient.features() && ftpClient.hasFeature("MLST");
+            } catch (Exception e) {
+                System.out.println("Error probing FTP server features: " + e.getMessage());
+            }
+        }
+        strategy = mlsd ? new MlsdStrategy() : new ListStrategy();
+        // 完整列表和快照增量轮次必须使用同一种来源：LIST -R 的时间只精确到分钟且是服务器本地时区，
+        // 与 MLSD 的时间混用会让变更检测误判，所以能用 MLSD 时不再尝试 LIST -R
+        if ("auto".equals(listingMode) && !mlsd || "recursive".equals(listingMode)) {
+            strategy = new RecursiveListStrategy(strategy);
+        }
+        System.out.println("Using listing strategy: " + strategy.getName());
+        listingStrategy = strategy;
+        return strategy;
+    }
+
+    /**
+     * 设置指标统计，与同步引擎共用同一个实例
+     *
+     * @param metrics 同步指标
+     */
+    public void setMetrics(SyncMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 设置全局下载限速，所有会话（包括下载引擎的连接池和分段下载）共用
+     *
+     * @param rateLimiter 限速器，为 null 时不限速
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * 设置同步范围过滤规则，远程和本地列目录时都会跳过被排除的目录和文件
+     *
+     * @param filter 过滤规则，为 null 时同步所有文件
+     */
+    public synchronized void setFilter(SyncFilter filter) {
+        this.filter = filter != null && !filter.isEmpty() ? filter : null;
+        closeLocalIndex(); // 索引按过滤规则建立，规则变化后重新建立
+    }
+
+    /**
+     * 设置是否使用常驻的本地索引，见 {@link LocalIndex}
+     *
+     * @param enabled         是否启用
+     * @param verifyInterval 完整重新读取本地目录、检查遗漏事件的间隔（秒），0 表示不定期检查
+     */
+    public synchronized void setLocalIndex(boolean enabled, long verifyInterval) {
+        this.localIndexEnabled = enabled;
+        this.localVerifyInterval = Math.max(0, verifyInterval);
+        closeLocalIndex();
+    }
+
+    /**
+     * 获取指标统计
+     *
+     * @return 同步指标
+     */
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置单个文件下载的最大尝试次数，传输中断后从断点继续
+     *
+     * @param downloadRetries 最大尝试次数
+     */
+    public void setDownloadRetries(int downloadRetries) {
+        this.downloadRetries = Math.max(1, downloadRetries);
+    }
+
+    /**
+     * 设置是否使用 MODE Z 压缩传输，服务器在 FEAT 中声明支持时才会使用
+     *
+     * @param transferCompression 是否启用
+     */
+    public void setTransferCompression(boolean transferCompression) {
+        this.transferCompression = transferCompression;
+        this.modeZSupported = null;
+    }
+
+    /**
+     * 设置不使用 MODE Z 的文件扩展名，替换 {@link #DEFAULT_UNCOMPRESSED_EXTENSIONS}
+     *
+     * @param extensions 扩展名，不区分大小写，可以带开头的点
+     */
+    public void setUncompressedExtensions(Collection<String> extensions) {
+        Set<String> set = new HashSet<>();
+        for (String extension : extensions) {
+            String normalized = extension.trim().toLowerCase();
+            if (normalized.startsWith(".")) {
+                normalized = normalized.substring(1);
+            }
+            if (!normalized.isEmpty()) {
+                set.add(normalized);
+            }
+        }
+        this.uncompressedExtensions = set;
+    }
+
+    /**
+     * 设置空闲会话的保活间隔，主会话和连接池中的空闲会话空闲超过该时间时发送一次 NOOP
+     *
+     * @param seconds 保活间隔（秒），0 表示不保活
+     */
+    public synchronized void setKeepAliveInterval(long seconds) {
+        this.keepAliveInterval = Math.max(0, seconds);
+        if (keepAliveExecutor != null) {
+            stopKeepAlive();
+            startKeepAlive();
+        }
     }
 
     /**
@@ -37,26 +277,199 @@ public class FtpManager {
      * @return 是否成功连接
      */
     public boolean connect() {
+        sessionLock.lock();
         try {
-            ftpClient.connect(server, port);
-            int replyCode = ftpClient.getReplyCode();
+            if (ftpClient.isConnected()) {
+                try {
+                    ftpClient.disconnect();
+                } catch (IOException ignored) {
+                }
+            }
+            if (!login(ftpClient)) {
+                return false;
+            }
+            hashProbed = false; // OPTS HASH 只对当前会话有效，重新登录后需要重新协商
+        } finally {
+            sessionLock.unlock();
+        }
+        if (connectedBefore) {
+            metrics.recordReconnect();
+        }
+        connectedBefore = true;
+        startKeepAlive();
+        System.out.println("Connected to FTP server successfully.");
+        return true;
+    }
+
+    /**
+     * 主会话不可用时重新连接，调用方必须持有主会话的使用权
+     *
+     * @return 主会话是否可用
+     */
+    private boolean ensureConnected() {
+        if (isConnected()) {
+            return true;
+        }
+        System.out.println("Not connected to FTP server. Attempting to reconnect...");
+        if (!connect()) {
+            System.out.println("Failed to reconnect to FTP server.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 启动保活线程，已启动或未启用保活时忽略
+     */
+    private synchronized void startKeepAlive() {
+        long interval = keepAliveInterval;
+        if (keepAliveExecutor != null || interval <= 0) {
+            return;
+        }
+        keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ftp-keepalive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 检查周期短于保活间隔，会话空闲时间不会明显超过保活间隔
+        long period = Math.max(1000, interval * 1000 / 4);
+        keepAliveExecutor.scheduleWithFixedDelay(this::keepAlive, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopKeepAlive() {
+        if (keepAliveExecutor != null) {
+            keepAliveExecutor.shutdownNow();
+            keepAliveExecutor = null;
+        }
+    }
+
+    /**
+     * 为空闲的主会话和连接池中的空闲会话保活，主会话正在使用时跳过
+     */
+    private void keepAlive() {
+        long idleMillis = keepAliveInterval * 1000;
+        if (idleMillis <= 0) {
+            return;
+        }
+        if (sessionLock.tryLock()) {
+            try {
+                SyncFtpClient client = (SyncFtpClient) ftpClient;
+                if (client.isHealthy() && !client.keepAlive(idleMillis)) {
+                    System.out.println("FTP session lost while idle, will reconnect on next use.");
+                }
+            } finally {
+                sessionLock.unlock();
+            }
+        }
+        for (FtpSessionPool pool : sessionPools) {
+            pool.keepAlive(idleMillis);
+        }
+    }
+
+    /**
+     * 登记需要保活的连接池，在连接池构造完成后由创建者调用
+     *
+     * @param pool 连接池
+     */
+    void addSessionPool(FtpSessionPool pool) {
+        sessionPools.add(pool);
+    }
+
+    /**
+     * 取消登记连接池
+     *
+     * @param pool 连接池
+     */
+    void removeSessionPool(FtpSessionPool pool) {
+        sessionPools.remove(pool);
+    }
+
+    /**
+     * 会话是否可用，根据最近的命令结果判断，不与服务器通信
+     *
+     * @param client FTP 会话
+     * @return 是否可用
+     */
+    static boolean isHealthy(FTPClient client) {
+        return client instanceof SyncFtpClient ? ((SyncFtpClient) client).isHealthy() : client.isConnected();
+    }
+
+    /**
+     * 标记会话失效，之后归还连接池时关闭、主会话在下次使用时重新连接
+     *
+     * @param client FTP 会话
+     */
+    static void markFailed(FTPClient client) {
+        if (client instanceof SyncFtpClient) {
+            ((SyncFtpClient) client).markFailed();
+        }
+    }
+
+    /**
+     * 新建一个独立的已登录 FTP 会话，供连接池等并发场景使用
+     *
+     * @return 已登录的 FTPClient，失败时返回 null
+     */
+    public FTPClient openSession() {
+        FTPClient client = new SyncFtpClient();
+        if (!login(client)) {
+            return null;
+        }
+        return client;
+    }
+
+    /**
+     * 关闭一个由 {@link #openSession()} 创建的会话
+     *
+     * @param client FTP 会话
+     */
+    public void closeSession(FTPClient client) {
+        try {
+            if (client != null && client.isConnected()) {
+                try {
+                    if (isHealthy(client)) {
+                        client.logout();
+                    }
+                } finally {
+                    client.disconnect();
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Error closing FTP session: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 使用给定的客户端连接并登录 FTP 服务器
+     *
+     * @param client FTP 客户端
+     * @return 是否成功登录
+     */
+    private boolean login(FTPClient client) {
+        try {
+            client.connect(server, port);
+            int replyCode = client.getReplyCode();
             if (!FTPReply.isPositiveCompletion(replyCode)) {
-                ftpClient.disconnect();
+                client.disconnect();
                 System.out.println("FTP server refused connection.");
                 return false;
             }
-            boolean loginSuccess = ftpClient.login(username, password);
+            boolean loginSuccess = client.login(username, password);
             if (!loginSuccess) {
                 System.out.println("FTP login failed.");
+                client.disconnect();
                 return false;
             }
             // 设置被动模式
-            ftpClient.enterLocalPassiveMode();
+            client.enterLocalPassiveMode();
             // 设置文件类型为二进制
-            ftpClient.setFileType(FTPClient.BINARY_FILE_TYPE);
+            client.setFileType(FTPClient.BINARY_FILE_TYPE);
+            // 加大传输缓冲区，减少大文件下载时的读写次数
+            client.setBufferSize(64 * 1024);
+            // 数据连接长时间无数据时视为中断，以便断点续传
+            client.setDataTimeout(Duration.ofMinutes(2));
             // 设置控制编码为 UTF-8，支持中文路径和文件名
-            ftpClient.setControlEncoding("UTF-8");
-            System.out.println("Connected to FTP server successfully.");
+            client.setControlEncoding("UTF-8");
             return true;
         } catch (Exception e) {
             System.out.println("Error connecting to FTP server: " + e.getMessage());
@@ -71,13 +484,10 @@ public class FtpManager {
      * @return 是否执行成功
      */
     public boolean executeCommand(String command) {
+        sessionLock.lock();
         try {
-            if (!isConnected()) {
-                System.out.println("Not connected to FTP server. Attempting to reconnect...");
-                if (!connect()) {
-                    System.out.println("Failed to reconnect to FTP server.");
-                    return false;
-                }
+            if (!ensureConnected()) {
+                return false;
             }
             boolean success = ftpClient.sendSiteCommand(command);
             if (!success) {
@@ -89,6 +499,8 @@ public class FtpManager {
         } catch (Exception e) {
             System.out.println("Error executing command: " + e.getMessage());
             return false;
+        } finally {
+            sessionLock.unlock();
         }
     }
 
@@ -96,6 +508,9 @@ public class FtpManager {
      * 断开 FTP 连接
      */
     public void disconnect() {
+        stopKeepAlive();
+        closeLocalIndex();
+        sessionLock.lock();
         try {
             if (ftpClient != null && ftpClient.isConnected()) {
                 ftpClient.logout();
@@ -104,47 +519,46 @@ public class FtpManager {
             }
         } catch (Exception e) {
             System.out.println("Error disconnecting from FTP server: " + e.getMessage());
+        } finally {
+            sessionLock.unlock();
         }
     }
 
     /**
-     * 查询当前是否已连接到 FTP 服务器
+     * 查询主会话是否可用，根据最近的命令结果判断，不与服务器通信
      *
-     * @return 是否已连接
+     * @return 是否已连接且可用
      */
     public boolean isConnected() {
-        if (ftpClient == null || !ftpClient.isConnected()) {
-            return false;
-        }
-        try {
-            // 尝试发送一个 NOOP 命令来验证连接是否仍然有效
-            return ftpClient.sendNoOp();
-        } catch (Exception e) {
-            System.out.println("Error verifying connection: " + e.getMessage());
-            return false;
-        }
+        return ftpClient != null && isHealthy(ftpClient);
     }
 
     /**
      * 递归列出目录下的所有文件
      *
-     * @param directory 当前目录
-     * @param fileList  文件信息列表
-     * @param baseDir   基础目录路径
+     * @param directory    当前目录
+     * @param relativePath 当前目录的相对路径，以 / 开头和结尾
+     * @param fileList     文件列表
      */
-    private void listFilesRecursively(File directory, List<FileInfo> fileList, String baseDir) {
+    private void listFilesRecursively(File directory, String relativePath, FileListing fileList) {
         File[] files = directory.listFiles();
+        SyncFilter filter = this.filter;
         if (files != null) {
             for (File file : files) {
+                String name = file.getName();
                 if (file.isDirectory()) {
-                    listFilesRecursively(file, fileList, baseDir);
-                } else {
-                    // 构建 FileInfo 对象并添加到列表
-                    String relativePath = file.getAbsolutePath().replace(baseDir, "").replace("\\", "/");
-                    if (!relativePath.startsWith("/")) {
-                        relativePath = "/" + relativePath; // 确保路径以 / 开头
+                    // 被排除的目录不再进入
+                    String subdirectory = relativePath + name + "/";
+                    if (filter == null || filter.includesDirectory(subdirectory)) {
+                        listFilesRecursively(file, subdirectory, fileList);
+                    }
+                } else if (!isPartialName(name)) {
+                    // 未完成的下载由下载时续传或删除，不作为本地文件参与比较
+                    long modifiedTime = file.lastModified();
+                    long size = file.length();
+                    if (filter == null || filter.includesFile(relativePath + name, size, modifiedTime)) {
+                        fileList.add(relativePath, name, size, modifiedTime);
                     }
-                    fileList.add(new FileInfo(relativePath, file.lastModified() / 1000));
                 }
             }
         }
@@ -156,53 +570,192 @@ public class FtpManager {
      * @return 文件信息列表
      */
     public List<FileInfo> fetchFileInfo() {
-        if (!isConnected()) {
-            System.out.println("Not connected to FTP server. Attempting to reconnect...");
-            if (!connect()) {
-                System.out.println("Failed to reconnect to FTP server.");
-                return new ArrayList<>();
-            }
-        }
+        return fetchListing().toList();
+    }
 
-        List<FileInfo> fileList = new ArrayList<>();
+    /**
+     * 遍历 FTP 服务器上的所有目录，以紧凑形式返回文件列表
+     * <p>
+     * 逐目录列表时某个目录失败，重新连接后从待列目录队列继续，已经列出的目录不再重复列出。
+     *
+     * @return 文件列表，失败时为空列表或部分结果，见 {@link #isLastListingComplete()}
+     */
+    public FileListing fetchListing() {
+        sessionLock.lock();
         try {
-            List<String> directories = new ArrayList<>();
-            directories.add("/");
-
-            while (!directories.isEmpty()) {
-                String currentDir = directories.remove(0);
-                FTPFile[] files = ftpClient.listFiles(currentDir);
-
-                for (FTPFile file : files) {
-                    if (file.isDirectory()) {
-                        directories.add(currentDir + file.getName() + "/");
-                    } else {
-                        // 构建 FileInfo 对象并添加到列表
-                        String filePath = currentDir + file.getName();
-                        if (!filePath.startsWith("/")) {
-                            filePath = "/" + filePath; // 确保路径以 / 开头
-                        }
-                        fileList.add(new FileInfo(filePath, file.getTimestamp().getTimeInMillis() / 1000));
+            return fetchListingLocked();
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    private FileListing fetchListingLocked() {
+        lastListingComplete = false;
+        if (!ensureConnected()) {
+            return new FileListing();
+        }
+
+        ListingSnapshot snapshot = snapshotFile != null ? ListingSnapshot.load(snapshotFile, fullListingInterval) : null;
+        ListingStrategy strategy = getListingStrategy();
+
+        // 快照增量轮次只列出变化的目录，逐目录更省；其余情况优先一次性递归列出
+        if (strategy instanceof RecursiveListStrategy && (snapshot == null || snapshot.isFullListing())) {
+            FileListing fileList = new FileListing();
+            try {
+                if (strategy.listTree(ftpClient, "/", (directory, entries) -> {
+                    metrics.recordDirectoryListed();
+                    if (filter != null && !filter.includesTree(directory)) {
+                        // 一次性递归列表无法跳过服务器端的目录，只能丢弃其结果
+                        return;
+                    }
+                    if (snapshot != null) {
+                        snapshot.record(directory, entries);
+                    }
+                    collectEntries(directory, entries, snapshot, fileList, subdirectory -> {
+                    });
+                })) {
+                    if (snapshot != null) {
+                        snapshot.save();
                     }
+                    lastListingComplete = true;
+                    return fileList;
+                }
+                System.out.println("Recursive listing not supported by server, listing directories one by one.");
+                listingStrategy = ((RecursiveListStrategy) strategy).getFallback();
+            } catch (Exception e) {
+                System.out.println("Error fetching recursive listing: " + e.getMessage());
+                // 列表中途中断，控制连接上可能还有未读的应答
+                markFailed(ftpClient);
+                if (!ensureConnected()) {
+                    return new FileListing();
                 }
             }
-        } catch (Exception e) {
-            // 捕获异常后，检查连接状态并尝试重新连接
-            System.out.println("Error fetching file information: " + e.getMessage());
-            if (!isConnected()) {
-                System.out.println("Connection lost. Attempting to reconnect...");
-                if (connect()) {
-                    System.out.println("Reconnected successfully. Retrying fetchFileInfo...");
-                    return fetchFileInfo(); // 递归调用以重新获取文件信息
-                } else {
-                    System.out.println("Failed to reconnect. Returning empty file list.");
+        }
+
+        if (crawlThreads > 1) {
+            RemoteCrawler crawler = new RemoteCrawler(this, crawlThreads, snapshot);
+            try {
+                FileListing fileList = crawler.crawl("/");
+                if (snapshot != null) {
+                    snapshot.save();
                 }
+                lastListingComplete = true;
+                return fileList;
+            } catch (Exception e) {
+                System.out.println("Error fetching file information: " + e.getMessage());
+                return crawler.getFiles();
             }
         }
 
+        FileListing fileList = new FileListing();
+        Deque<String> directories = new ArrayDeque<>();
+        directories.add("/");
+        int attempt = 1;
+        while (!directories.isEmpty()) {
+            String currentDir = directories.poll();
+            try {
+                listDirectory(ftpClient, currentDir, snapshot, fileList, directories::add);
+                attempt = 1;
+            } catch (Exception e) {
+                // 目录的条目在列表成功后才加入结果，失败的目录放回队首，重新连接后从这里继续
+                System.out.println("Error listing " + currentDir + ": " + e.getMessage());
+                directories.addFirst(currentDir);
+                markFailed(ftpClient);
+                if (attempt++ >= LISTING_ATTEMPTS || !ensureConnected()) {
+                    System.out.println("Listing incomplete, " + directories.size() + " directories not listed.");
+                    return fileList;
+                }
+                System.out.println("Resuming listing at " + currentDir + " (" + directories.size()
+                        + " directories pending)");
+            }
+        }
+        if (snapshot != null) {
+            snapshot.save();
+        }
+        lastListingComplete = true;
         return fileList;
     }
 
+    /**
+     * 列出单个远程目录，文件写入结果列表，子目录交给回调继续遍历
+     *
+     * @param client         FTP 会话
+     * @param currentDir     当前目录，以 / 结尾
+     * @param snapshot       目录列表快照，未启用时为 null
+     * @param fileList       文件列表
+     * @param subdirectories 子目录回调
+     * @throws IOException 列目录过程中发生异常
+     */
+    void listDirectory(FTPClient client, String currentDir, ListingSnapshot snapshot, FileListing fileList,
+                       Consumer<String> subdirectories) throws IOException {
+        FTPFile[] files = null;
+        if (snapshot != null && !snapshot.isFullListing()) {
+            if (!snapshot.hasTimestamp(currentDir)) {
+                // 父目录复用了快照（或是根目录），本轮不知道该目录的修改时间，能用 MLST 查询时先查询
+                FTPFile self = getListingStrategy().probeDirectory(client, currentDir);
+                if (self != null && self.getTimestamp() != null) {
+                    snapshot.noteProbed(currentDir, self.getTimestamp().getTimeInMillis());
+                }
+            }
+            files = snapshot.reuse(currentDir);
+        }
+        boolean reused = files != null;
+        if (!reused) {
+            files = getListingStrategy().listDirectory(client, currentDir);
+            metrics.recordDirectoryListed();
+            if (snapshot != null) {
+                snapshot.record(currentDir, files);
+            }
+        }
+        // 复用的条目中子目录的修改时间是上次列出时的，不能用来判断子目录是否变化
+        collectEntries(currentDir, files, reused ? null : snapshot, fileList, subdirectories);
+    }
+
+    /**
+     * 处理一个目录的条目，文件写入结果列表，子目录交给回调继续遍历
+     *
+     * @param currentDir     当前目录，以 / 结尾
+     * @param files          目录条目
+     * @param snapshot       记录子目录修改时间的快照，未启用或条目来自快照时为 null
+     * @param fileList       文件列表
+     * @param subdirectories 子目录回调
+     */
+    private void collectEntries(String currentDir, FTPFile[] files, ListingSnapshot snapshot, FileListing fileList,
+                                Consumer<String> subdirectories) {
+        SyncFilter filter = this.filter;
+        for (FTPFile file : files) {
+            if (".".equals(file.getName()) || "..".equals(file.getName())) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                String subdirectory = currentDir + file.getName() + "/";
+                if (filter != null && !filter.includesDirectory(subdirectory)) {
+                    continue; // 被排除的目录不再列出
+                }
+                if (snapshot != null) {
+                    snapshot.noteDirectory(subdirectory,
+                            file.getTimestamp() != null ? file.getTimestamp().getTimeInMillis() : -1);
+                }
+                subdirectories.accept(subdirectory);
+            } else {
+                String directory = currentDir.startsWith("/") ? currentDir : "/" + currentDir; // 确保路径以 / 开头
+                long modifiedTime = file.getTimestamp() != null ? file.getTimestamp().getTimeInMillis() : 0;
+                if (filter == null || filter.includesFile(directory + file.getName(), file.getSize(), modifiedTime)) {
+                    fileList.add(directory, file.getName(), file.getSize(), modifiedTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * 最近一次 {@link #fetchListing()} 是否列出了完整的目录树，失败时返回的是空列表或部分结果
+     *
+     * @return 是否完整
+     */
+    public boolean isLastListingComplete() {
+        return lastListingComplete;
+    }
+
     /**
      * 遍历本地指定目录下的文件
      *
@@ -210,16 +763,53 @@ public class FtpManager {
      * @return 文件信息列表
      */
     public List<FileInfo> getLocalFileInfo(String localDir) {
+        return getLocalListing(localDir).toList();
+    }
+
+    /**
+     * 遍历本地指定目录下的文件，以紧凑形式返回
+     *
+     * @param localDir 本地目录路径
+     * @return 文件列表，路径以 / 开头、相对于本地目录
+     */
+    public FileListing getLocalListing(String localDir) {
+        LocalIndex index = getLocalIndex(localDir);
+        if (index != null) {
+            return index.getListing();
+        }
+        FileListing fileList = new FileListing();
         File directory = new File(localDir);
         if (!directory.exists() || !directory.isDirectory()) {
             System.out.println("Invalid directory: " + localDir);
-            return new ArrayList<>();
+            return fileList;
         }
+        listFilesRecursively(directory, "/", fileList);
+        return fileList;
+    }
 
-        List<FileInfo> fileList = new ArrayList<>();
-        listFilesRecursively(directory, fileList, localDir);
+    /**
+     * 获取本地目录对应的索引，目录与现有索引不同时重新建立
+     *
+     * @param localDir 本地目录路径
+     * @return 本地索引，未启用时返回 null
+     */
+    private synchronized LocalIndex getLocalIndex(String localDir) {
+        if (!localIndexEnabled) {
+            return null;
+        }
+        Path root = Paths.get(localDir).toAbsolutePath().normalize();
+        if (localIndex == null || !localIndex.getRoot().equals(root)) {
+            closeLocalIndex();
+            localIndex = new LocalIndex(root, filter, localVerifyInterval * 1000);
+        }
+        return localIndex;
+    }
 
-        return fileList;
+    private synchronized void closeLocalIndex() {
+        if (localIndex != null) {
+            localIndex.close();
+            localIndex = null;
+        }
     }
 
     /**
@@ -230,33 +820,545 @@ public class FtpManager {
      * @return 是否下载成功
      */
     public boolean downloadFile(String remotePath, String localPath) {
-        if (!isConnected()) {
-            System.out.println("Not connected to FTP server. Attempting to reconnect...");
-            if (!connect()) {
-                System.out.println("Failed to reconnect to FTP server.");
+        return downloadFile(remotePath, localPath, 0, null);
+    }
+
+    /**
+     * 下载 FTP 文件到本地，同时把下载的字节写入另一个输出流
+     *
+     * @param remotePath      FTP 文件路径
+     * @param localPath       本地保存路径
+     * @param remoteModifiedTime 远程文件修改时间（毫秒），用于判断遗留的未完成文件是否过期，未知时为 0
+     * @param tee                同步写入的输出流，为 null 时只写本地文件
+     * @return 是否下载成功
+     */
+    public boolean downloadFile(String remotePath, String localPath, long remoteModifiedTime, OutputStream tee) {
+        sessionLock.lock();
+        try {
+            if (!ensureConnected()) {
                 return false;
             }
+            return downloadFile(ftpClient, remotePath, localPath, remoteModifiedTime, tee);
+        } finally {
+            sessionLock.unlock();
         }
+    }
 
+    /**
+     * 使用指定的 FTP 会话下载文件到本地
+     *
+     * @param client     FTP 会话
+     * @param remotePath FTP 文件路径
+     * @param localPath  本地保存路径
+     * @return 是否下载成功
+     */
+    public boolean downloadFile(FTPClient client, String remotePath, String localPath) {
+        return downloadFile(client, remotePath, localPath, 0, null);
+    }
+
+    /**
+     * 使用指定的 FTP 会话下载文件到本地，同时把下载的字节写入另一个输出流
+     * <p>
+     * 文件先写入 {@link #PARTIAL_SUFFIX} 后缀的未完成文件，完成后再替换目标文件。
+     * 传输中断时重新连接，并用 REST 从未完成文件的当前长度继续下载；
+     * 上次运行遗留的未完成文件只要不早于远程文件的修改时间，也会接着下载。
+     * 下载完成后本地文件的修改时间设为远程文件的修改时间，之后的比较不受两端时钟和时区差异影响。
+     *
+     * @param client             FTP 会话
+     * @param remotePath         FTP 文件路径
+     * @param localPath          本地保存路径
+     * @param remoteModifiedTime 远程文件修改时间（毫秒），未知时为 0
+     * @param tee                同步写入的输出流（例如增量归档条目），为 null 时只写本地文件
+     * @return 是否下载成功
+     */
+    public boolean downloadFile(FTPClient client, String remotePath, String localPath, long remoteModifiedTime,
+                                OutputStream tee) {
         try {
             File localFile = new File(localPath);
             if (!localFile.getParentFile().exists()) {
                 localFile.getParentFile().mkdirs();
             }
-            // 确保文件路径和文件名的编码正确传递
-            String encodedRemotePath = new String(remotePath.getBytes("UTF-8"), "ISO-8859-1");
-            // 修正路径分隔符，确保路径格式正确
-            String normalizedRemotePath = encodedRemotePath.replace("\\", "/");
-            boolean success = ftpClient.retrieveFile(normalizedRemotePath, new java.io.FileOutputStream(localFile));
-            if (!success) {
-                System.out.println("Failed to download file: " + remotePath);
-                return false;
+            String normalizedRemotePath = encodeRemotePath(remotePath);
+            File partFile = partialFile(localPath);
+            File rangesFile = rangesFile(localPath);
+            if (partFile.exists() && partFile.lastModified() < remoteModifiedTime) {
+                // 远程文件在上次写入之后又被修改过，遗留的未完成文件已经过期
+                partFile.delete();
+            }
+            if (rangesFile.exists()) {
+                // 分段下载留下的未完成文件不是连续写入的，不能按文件长度续传
+                partFile.delete();
+                rangesFile.delete();
+            }
+
+            CountingTee counting = new CountingTee(tee, metrics, rateLimiter);
+            for (int attempt = 1; ; attempt++) {
+                long offset = partFile.exists() ? partFile.length() : 0;
+                try {
+                    if (tee != null && counting.count < offset) {
+                        // 未完成文件中已有的数据尚未写入输出流，先从磁盘补齐
+                        counting.copyFrom(partFile, offset);
+                    }
+                    boolean compressed = useModeZ(client, remotePath);
+                    client.setRestartOffset(offset);
+                    boolean success;
+                    try (FileOutputStream out = new FileOutputStream(partFile, true)) {
+                        counting.target = out;
+                        success = compressed
+                                ? ((SyncFtpClient) client).retrieveInflated(normalizedRemotePath, counting)
+                                : client.retrieveFile(normalizedRemotePath, counting);
+                    }
+                    if (success) {
+                        commitPartialFile(partFile, localFile);
+                        if (remoteModifiedTime > 0) {
+                            localFile.setLastModified(remoteModifiedTime);
+                        }
+                        String transfer = "";
+                        if (compressed) {
+                            SyncFtpClient sync = (SyncFtpClient) client;
+                            metrics.addTransferBytesSaved(sync.getInflatedBytes() - sync.getReceivedBytes());
+                            transfer = " (MODE Z, " + sync.getReceivedBytes() + " of " + sync.getInflatedBytes()
+                                    + " bytes transferred)";
+                        }
+                        System.out.println("File downloaded successfully: " + remotePath
+                                + (offset > 0 ? " (resumed at " + offset + ")" : "") + transfer);
+                        return true;
+                    }
+                    if (offset > 0 && tee == null && attempt < downloadRetries) {
+                        // 服务器可能不支持 REST，从头重新下载
+                        System.out.println("Resume rejected, restarting download: " + remotePath);
+                        partFile.delete();
+                        continue;
+                    }
+                    if (partFile.length() == 0) {
+                        partFile.delete();
+                    }
+                    System.out.println("Failed to download file: " + remotePath);
+                    return false;
+                } catch (ZipException e) {
+                    // 压缩数据损坏，已写入的部分不可信，之后改用 MODE S 从头下载
+                    System.out.println("Compressed transfer failed for " + remotePath
+                            + ", falling back to stream mode: " + e.getMessage());
+                    modeZSupported = false;
+                    markFailed(client);
+                    partFile.delete();
+                    if (tee != null || attempt >= downloadRetries || !reconnect(client)) {
+                        return false;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error downloading file: " + remotePath + ": " + e.getMessage());
+                    markFailed(client);
+                    if (attempt >= downloadRetries) {
+                        return false;
+                    }
+                    // 中断后控制连接上可能还有未读的应答，直接重新登录最稳妥
+                    if (!reconnect(client)) {
+                        return false;
+                    }
+                    System.out.println("Resuming download: " + remotePath + " (attempt " + (attempt + 1) + ")");
+                }
             }
-            System.out.println("File downloaded successfully: " + remotePath);
-            return true;
         } catch (Exception e) {
             System.out.println("Error downloading file: " + e.getMessage());
             return false;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 判断下载文件时是否使用 MODE Z，需要时切换会话的传输模式
+     * <p>
+     * 首次调用时通过 FEAT 探测服务器是否支持，服务器拒绝切换时之后不再尝试。
+     *
+     * @param client     FTP 会话
+     * @param remotePath FTP 文件路径
+     * @return 是否使用 MODE Z
+     * @throws IOException 通信过程中发生异常
+     */
+    private boolean useModeZ(FTPClient client, String remotePath) throws IOException {
+        if (!transferCompression || !(client instanceof SyncFtpClient) || !isCompressible(remotePath)) {
+            return false;
+        }
+        Boolean supported = modeZSupported;
+        if (supported == null) {
+            synchronized (modeZProbeLock) {
+                supported = modeZSupported;
+                if (supported == null) {
+                    supported = client.hasFeature("MODE", "Z");
+                    System.out.println(supported ? "Using MODE Z for compressible files."
+                            : "Server does not advertise MODE Z, using stream mode.");
+                    modeZSupported = supported;
+                }
+            }
+        }
+        if (!supported) {
+            return false;
+        }
+        if (!((SyncFtpClient) client).setDeflate(true)) {
+            System.out.println("Server rejected MODE Z, falling back to stream mode: "
+                    + client.getReplyString().trim());
+            modeZSupported = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 判断文件是否值得压缩传输，按扩展名跳过已压缩的格式
+     *
+     * @param remotePath FTP 文件路径
+     * @return 是否压缩传输
+     */
+    private boolean isCompressible(String remotePath) {
+        String name = remotePath.substring(remotePath.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        return dot < 0 || !uncompressedExtensions.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * 下载远程文件的一个字节区间，按位置写入本地文件通道
+     * <p>
+     * 区间未到文件末尾时会提前关闭数据连接，此后会话的控制连接状态不确定，调用方应丢弃该会话。
+     * 区间总是以 MODE S 传输，不使用压缩。
+     *
+     * @param client     FTP 会话
+     * @param remotePath FTP 文件路径
+     * @param channel    本地文件通道
+     * @param start      区间起始位置
+     * @param length     区间长度
+     * @param progress   累加实际写入的字节数，发生异常时也反映已写入的部分
+     * @throws IOException 传输过程中发生异常
+     */
+    void downloadRange(FTPClient client, String remotePath, FileChannel channel, long start, long length,
+                       AtomicLong progress) throws IOException {
+        client.setRestartOffset(start);
+        InputStream in = client.retrieveFileStream(encodeRemotePath(remotePath));
+        if (in == null) {
+            throw new IOException("Failed to open range at " + start + ": " + client.getReplyString());
+        }
+        RateLimiter limiter = rateLimiter;
+        long written = 0;
+        boolean reachedEnd = false;
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            while (written < length) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - written));
+                if (read < 0) {
+                    reachedEnd = true;
+                    break;
+                }
+                if (limiter != null) {
+                    limiter.acquire(read);
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                while (data.hasRemaining()) {
+                    channel.write(data, start + written + data.position());
+                }
+                written += read;
+                progress.addAndGet(read);
+                metrics.addBytesDownloaded(read);
+            }
+            if (!reachedEnd && in.read() < 0) {
+                reachedEnd = true;
+            }
+        } finally {
+            in.close();
+        }
+        if (reachedEnd && !client.completePendingCommand()) {
+            throw new IOException("Range transfer failed: " + client.getReplyString());
+        }
+    }
+
+    /**
+     * 查询远程文件大小
+     *
+     * @param client     FTP 会话
+     * @param remotePath FTP 文件路径
+     * @return 文件大小，服务器不支持 SIZE 时返回 -1
+     */
+    long querySize(FTPClient client, String remotePath) {
+        try {
+            String size = client.getSize(encodeRemotePath(remotePath));
+            return size != null ? Long.parseLong(size.trim()) : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 获取服务器支持的远程校验和算法，首次调用时通过 FEAT 探测
+     * <p>
+     * 优先使用 HASH 命令（必要时用 OPTS HASH 切换算法），其次是 XSHA256、XSHA1、XMD5、XCRC 等非标准命令。
+     *
+     * @return 算法名称（SHA-256、SHA-1、MD5 或 CRC32），不支持时返回 null
+     */
+    public String getHashAlgorithm() {
+        sessionLock.lock();
+        try {
+            if (hashProbed) {
+                return hashAlgorithm;
+            }
+            if (!ensureConnected()) {
+                return null;
+            }
+            return probeHashAlgorithm();
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    private String probeHashAlgorithm() {
+        hashProbed = true;
+        hashCommand = null;
+        hashAlgorithm = null;
+        try {
+            if (!ftpClient.features()) {
+                return null;
+            }
+            String[] values = ftpClient.featureValues("HASH");
+            if (values != null) {
+                for (String[] candidate : HASH_ALGORITHMS) {
+                    for (String value : values) {
+                        for (String token : value.split(";")) {
+                            if (!candidate[0].equalsIgnoreCase(token.replace("*", "").trim())) {
+                                continue;
+                            }
+                            // 带 * 的是当前选中的算法，其余需要先切换
+                            if (token.contains("*")
+                                    || FTPReply.isPositiveCompletion(ftpClient.sendCommand("OPTS", "HASH " + candidate[0]))) {
+                                hashCommand = "HASH";
+                                hashAlgorithm = candidate[0];
+                            }
+                        }
+                    }
+                    if (hashAlgorithm != null) {
+                        break;
+                    }
+                }
+            }
+            if (hashAlgorithm == null) {
+                for (String[] candidate : HASH_ALGORITHMS) {
+                    if (ftpClient.hasFeature(candidate[1])) {
+                        hashCommand = candidate[1];
+                        hashAlgorithm = candidate[0];
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error probing FTP hash support: " + e.getMessage());
+        }
+        if (hashAlgorithm != null) {
+            System.out.println("Using remote checksum: " + hashCommand + " (" + hashAlgorithm + ")");
+        }
+        return hashAlgorithm;
+    }
+
+    /**
+     * 让服务器计算远程文件的校验和
+     *
+     * @param remotePath FTP 文件路径
+     * @return 小写十六进制校验和，服务器不支持或计算失败时返回 null
+     */
+    public String remoteHash(String remotePath) {
+        sessionLock.lock();
+        try {
+            return remoteHashLocked(remotePath);
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    private String remoteHashLocked(String remotePath) {
+        if (!ensureConnected()) {
+            return null;
+        }
+        String algorithm = getHashAlgorithm();
+        if (algorithm == null) {
+            return null;
+        }
+        try {
+            int reply = ftpClient.sendCommand(hashCommand, encodeRemotePath(remotePath));
+            if (!FTPReply.isPositiveCompletion(reply)) {
+                System.out.println("Remote checksum failed for " + remotePath + ": " + ftpClient.getReplyString().trim());
+                return null;
+            }
+            return parseHash(ftpClient.getReplyString(), "CRC32".equals(algorithm) ? 8 : -1, hexLength(algorithm));
+        } catch (IOException e) {
+            System.out.println("Error querying remote checksum: " + remotePath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 从校验和命令的应答中取出十六进制值
+     * <p>
+     * HASH 的应答形如 "213 SHA-256 0-49 169cd2... name"，XMD5 等命令的应答只有校验和本身。
+     *
+     * @param reply     应答文本
+     * @param padLength 不足该长度时左侧补 0（部分服务器的 XCRC 会省略前导 0），-1 表示不补
+     * @param length    校验和的十六进制长度
+     * @return 小写十六进制校验和，找不到时返回 null
+     */
+    private static String parseHash(String reply, int padLength, int length) {
+        String[] tokens = reply.trim().split("\\s+");
+        for (int i = 1; i < tokens.length; i++) {
+            String token = tokens[i].toLowerCase();
+            if (!token.matches("[0-9a-f]+")) {
+                continue;
+            }
+            if (padLength > 0 && token.length() < padLength) {
+                token = "00000000".substring(0, padLength - token.length()) + token;
+            }
+            if (token.length() == length) {
+                return token;
+            }
+        }
+        return null;
+    }
+
+    private static int hexLength(String algorithm) {
+        switch (algorithm) {
+            case "SHA-256":
+                return 64;
+            case "SHA-1":
+                return 40;
+            case "MD5":
+                return 32;
+            default:
+                return 8;
+        }
+    }
+
+    /**
+     * 断开并重新登录指定的会话
+     *
+     * @param client FTP 会话
+     * @return 是否重新登录成功
+     */
+    boolean reconnect(FTPClient client) {
+        try {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+        } catch (IOException ignored) {
+        }
+        System.out.println("Reconnecting FTP session...");
+        if (!login(client)) {
+            return false;
+        }
+        metrics.recordReconnect();
+        return true;
+    }
+
+    /**
+     * 获取本地文件对应的未完成文件
+     *
+     * @param localPath 本地保存路径
+     * @return 未完成文件
+     */
+    static File partialFile(String localPath) {
+        return new File(localPath + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * 获取本地文件对应的分段下载进度文件
+     *
+     * @param localPath 本地保存路径
+     * @return 分段下载进度文件
+     */
+    static File rangesFile(String localPath) {
+        return new File(localPath + RANGES_SUFFIX);
+    }
+
+    /**
+     * 判断文件名是否属于未完成的下载（未完成文件或分段下载进度文件）
+     *
+     * @param name 文件名
+     * @return 是否属于未完成的下载
+     */
+    static boolean isPartialName(String name) {
+        return name.endsWith(PARTIAL_SUFFIX) || name.endsWith(RANGES_SUFFIX);
+    }
+
+    /**
+     * 用下载完成的未完成文件替换目标文件
+     *
+     * @param partFile  未完成文件
+     * @param localFile 目标文件
+     * @throws IOException 替换失败
+     */
+    static void commitPartialFile(File partFile, File localFile) throws IOException {
+        try {
+            Files.move(partFile.toPath(), localFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 转换远程路径的编码和分隔符
+     *
+     * @param remotePath FTP 文件路径
+     * @return 传给 FTP 命令的路径
+     * @throws UnsupportedEncodingException 编码不受支持
+     */
+    String encodeRemotePath(String remotePath) throws UnsupportedEncodingException {
+        // 确保文件路径和文件名的编码正确传递
+        String encodedRemotePath = new String(remotePath.getBytes("UTF-8"), "ISO-8859-1");
+        // 修正路径分隔符，确保路径格式正确
+        return encodedRemotePath.replace("\\", "/");
+    }
+
+    /**
+     * 同时写入本地文件和附加输出流，并统计写入附加输出流的字节数，用于断点续传时对齐两者
+     * <p>
+     * 启用限速时在写入每块数据前获取令牌。
+     */
+    private static class CountingTee extends OutputStream {
+        private final OutputStream tee;
+        private final SyncMetrics metrics;
+        private final RateLimiter limiter;
+        private OutputStream target;
+        private long count = 0;
+
+        private CountingTee(OutputStream tee, SyncMetrics metrics, RateLimiter limiter) {
+            this.tee = tee;
+            this.metrics = metrics;
+            this.limiter = limiter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (limiter != null) {
+                limiter.acquire(len);
+            }
+            target.write(b, off, len);
+            metrics.addBytesDownloaded(len);
+            if (tee != null) {
+                tee.write(b, off, len);
+                count += len;
+            }
+        }
+
+        private void copyFrom(File file, long end) throws IOException {
+            try (InputStream in = new FileInputStream(file)) {
+                in.skipNBytes(count);
+                byte[] buffer = new byte[64 * 1024];
+                while (count < end) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - count));
+                    if (read < 0) {
+                        throw new IOException("Partial file shorter than expected: " + file);
+                    }
+                    tee.write(buffer, 0, read);
+                    count += read;
+                }
+            }
+        }
+    }
+}
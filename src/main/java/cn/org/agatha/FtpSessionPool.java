@@ -0,0 +1,132 @@
+package cn.org.agatha;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * FTP 会话连接池，维护一组有上限的已登录会话，供并发下载等场景复用
+ * <p>
+ * 创建者通过 {@link FtpManager#addSessionPool} 登记后，池中的空闲会话由保活线程定期保活，
+ * 借出时不再探测，失效的会话在归还时关闭；关闭连接池时自动取消登记。
+ */
+public class FtpSessionPool implements AutoCloseable {
+    private final FtpManager ftpManager;
+    private final int maxSessions;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<FTPClient> idleSessions = new LinkedBlockingDeque<>();
+    private volatile boolean closed = false;
+
+    /**
+     * 构造函数
+     *
+     * @param ftpManager  用于创建会话的 FTP 管理器
+     * @param maxSessions 最大会话数
+     */
+    public FtpSessionPool(FtpManager ftpManager, int maxSessions) {
+        this.ftpManager = ftpManager;
+        this.maxSessions = Math.max(1, maxSessions);
+        this.permits = new Semaphore(this.maxSessions, true);
+    }
+
+    /**
+     * 获取最大会话数
+     *
+     * @return 最大会话数
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * 借出一个会话，池中没有空闲会话时新建，达到上限时阻塞等待
+     *
+     * @return 已登录的会话，无法建立连接时返回 null
+     * @throws InterruptedException 等待过程中被中断
+     */
+    public FTPClient borrow() throws InterruptedException {
+        permits.acquire();
+        return takeSession();
+    }
+
+    /**
+     * 尝试借出一个会话，达到上限时立即返回 null 而不等待
+     *
+     * @return 已登录的会话，没有可用名额或无法建立连接时返回 null
+     */
+    public FTPClient tryBorrow() {
+        if (!permits.tryAcquire()) {
+            return null;
+        }
+        return takeSession();
+    }
+
+    /**
+     * 归还会话
+     *
+     * @param client  借出的会话
+     * @param healthy 会话是否仍然可用，不可用时直接关闭
+     */
+    public void release(FTPClient client, boolean healthy) {
+        if (client == null) {
+            return;
+        }
+        if (healthy && !closed && FtpManager.isHealthy(client)) {
+            idleSessions.offerFirst(client);
+        } else {
+            ftpManager.closeSession(client);
+        }
+        permits.release();
+    }
+
+    /**
+     * 关闭连接池及所有空闲会话
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ftpManager.removeSessionPool(this);
+        FTPClient client;
+        while ((client = idleSessions.pollFirst()) != null) {
+            ftpManager.closeSession(client);
+        }
+    }
+
+    /**
+     * 为空闲达到指定时间的会话发送 NOOP，失效的会话直接关闭；保活期间会话从池中取出，不会同时被借出
+     *
+     * @param idleMillis 空闲时间阈值（毫秒）
+     */
+    void keepAlive(long idleMillis) {
+        for (FTPClient client : new ArrayList<>(idleSessions)) {
+            if (!(client instanceof SyncFtpClient) || !idleSessions.remove(client)) {
+                continue;
+            }
+            if (!closed && ((SyncFtpClient) client).keepAlive(idleMillis)) {
+                idleSessions.offerLast(client);
+                if (closed && idleSessions.remove(client)) {
+                    ftpManager.closeSession(client);
+                }
+            } else {
+                ftpManager.closeSession(client);
+            }
+        }
+    }
+
+    private FTPClient takeSession() {
+        FTPClient client;
+        while ((client = idleSessions.pollFirst()) != null) {
+            if (FtpManager.isHealthy(client)) {
+                return client;
+            }
+            ftpManager.closeSession(client);
+        }
+        client = ftpManager.openSession();
+        if (client == null) {
+            permits.release();
+        }
+        return client;
+    }
+}
@@ -0,0 +1,108 @@
+package cn.org.agatha;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * 在元数据检测的基础上用服务器端校验和确认内容是否真的变化
+ * <p>
+ * 元数据判定为变化、但两端大小相同的较大文件，先让服务器用 HASH / XMD5 / XCRC 等命令计算校验和，
+ * 再与本地文件的校验和比较；相同则只把本地修改时间更新为远程修改时间，不再下载。
+ * 服务器不支持任何校验和命令时与元数据检测完全相同。
+ */
+public class HashChangeDetector implements ChangeDetector {
+    public static final long DEFAULT_MIN_SIZE = 1024 * 1024; // 小于该大小的文件直接下载比算校验和更快
+
+    private final ChangeDetector metadata;
+    private final FtpManager ftpManager;
+    private final long minSize;
+
+    /**
+     * 构造函数
+     *
+     * @param metadata   元数据检测方式
+     * @param ftpManager FTP 管理器
+     * @param minSize    使用校验和确认的最小文件大小
+     */
+    public HashChangeDetector(ChangeDetector metadata, FtpManager ftpManager, long minSize) {
+        this.metadata = metadata;
+        this.ftpManager = ftpManager;
+        this.minSize = minSize;
+    }
+
+    @Override
+    public String getName() {
+        return "hash, " + metadata.getName();
+    }
+
+    @Override
+    public boolean hasChanged(FileInfo local, FileInfo remote, File localFile) {
+        if (!metadata.hasChanged(local, remote, localFile)) {
+            return false;
+        }
+        if (local == null || remote.getSize() < minSize || remote.getSize() != local.getSize()) {
+            return true;
+        }
+        String algorithm = ftpManager.getHashAlgorithm();
+        if (algorithm == null) {
+            return true;
+        }
+        String remoteHash = ftpManager.remoteHash(remote.getPath());
+        if (remoteHash == null) {
+            return true;
+        }
+        try {
+            if (!remoteHash.equals(localHash(localFile, algorithm))) {
+                return true;
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println("Error computing local checksum: " + localFile + ": " + e.getMessage());
+            return true;
+        }
+        System.out.println("Content unchanged, skipping: " + remote.getPath());
+        if (remote.getModifiedTime() > 0) {
+            localFile.setLastModified(remote.getModifiedTime());
+        }
+        return false;
+    }
+
+    /**
+     * 计算本地文件的校验和
+     *
+     * @param file      本地文件
+     * @param algorithm 算法名称（SHA-256、SHA-1、MD5 或 CRC32）
+     * @return 小写十六进制校验和
+     * @throws IOException              读取文件失败
+     * @throws NoSuchAlgorithmException 算法不受支持
+     */
+    static String localHash(File file, String algorithm) throws IOException, NoSuchAlgorithmException {
+        byte[] buffer = new byte[64 * 1024];
+        if ("CRC32".equals(algorithm)) {
+            CRC32 crc = new CRC32();
+            try (InputStream in = new FileInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, read);
+                }
+            }
+            return String.format("%08x", crc.getValue());
+        }
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,1007 @@
+package cn.org.agatha;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 增量 ZIP 归档，支持在下载的同时写入条目
+ * <p>
+ * 下载线程通过 {@link #openEntry(String)} 获得一个条目输出流，下载的字节一边写入本地文件一边写入该流，
+ * 在下载线程内完成压缩（较小的条目留在内存中，较大的条目溢写到临时文件）。
+ * 下载成功后提交条目，经有界队列交给唯一的写入线程拼接进 ZIP；下载失败则丢弃条目，不会在归档中留下残缺数据。
+ * 队列满时提交方阻塞，从而限制并发下载时暂存的数据量。
+ * <p>
+ * 每个条目根据 {@link CompressionPolicy} 选择 DEFLATE 或直接存储。直接存储的大条目不再暂存副本，
+ * 写入线程在拼接时直接读取已经落盘的本地文件。
+ * <p>
+ * 启用差异模式后，足够大且本地已有旧版本的文件不再写入完整内容，而是写入名为
+ * "相对路径{@link DeltaEncoder#ENTRY_SUFFIX}" 的块级差异条目，由 {@link DeltaReader} 根据旧版本重建。
+ * 旧版本的块索引必须在下载覆盖本地文件之前建立：流水线模式下在 {@link #openEntry(String)} 时建立，
+ * 下载完成后再压缩时由调用方在下载前调用 {@link #prepareDelta(String)}。
+ * <p>
+ * 在本地移动过的文件写入名为 "新相对路径{@link #RENAME_SUFFIX}" 的改名条目，内容为 UTF-8 编码的原相对路径，
+ * 表示新路径的内容与原路径在这一时刻之前的最新版本相同，原路径从此不再存在。
+ * <p>
+ * 设置 {@link BlobStore} 后启用去重：条目在压缩的同时计算内容的 SHA-256，写入归档时压缩数据存入去重存储
+ * （已有相同内容时不再保存），增量中只写入名为 "相对路径{@link #BLOB_SUFFIX}" 的引用条目，内容为十六进制散列。
+ * 差异条目和小于最小大小的文件不去重。启用后增量不再自包含，还原时需要同一增量目录下的去重存储。
+ * <p>
+ * ZIP 先写入增量目录下以点开头的临时文件，{@link #finish()} 成功后才改名为正式文件名，
+ * 中途退出不会留下残缺的增量，遗留的临时文件由 {@link #cleanupTemporaryFiles(File)} 清理。
+ */
+public class IncrementArchive {
+    private static final int MEMORY_THRESHOLD = 4 * 1024 * 1024; // 单个条目在内存中暂存的上限
+    private static final int BLOCK_SIZE = 1024 * 1024; // 大文件分块并行压缩的块大小
+    private static final int DICTIONARY_SIZE = 32 * 1024; // DEFLATE 窗口大小，用上一块末尾预置字典
+    private static final long LARGE_FILE_THRESHOLD = 8L * 1024 * 1024; // 超过该大小的文件分块并行压缩
+    private static final String PART_SUFFIX = ".part"; // 未写完的 ZIP 临时文件后缀
+    public static final String RENAME_SUFFIX = ".increname"; // 改名条目的后缀
+    public static final String BLOB_SUFFIX = ".incblob"; // 去重引用条目的后缀
+
+    private final String localDir;
+    private final File zipFile;
+    private final File partFile;
+    private final File spoolDir;
+    private final CompressionPolicy policy;
+    private final BlockingQueue<PendingEntry> queue;
+    private final Thread writerThread;
+    private final List<String> files = new ArrayList<>();
+    private final List<ArchivedEntry> entries = new ArrayList<>();
+    private volatile IOException writeError;
+    private ZipStreamWriter zipWriter;
+    private long deltaThreshold = 0; // 不小于该大小的文件写入块级差异，0 表示不启用
+    private final Map<String, DeltaIndex> deltaBases = new ConcurrentHashMap<>();
+    private BlobStore blobStore; // 去重存储，为 null 时不去重
+    private long blobMinSize = BlobStore.DEFAULT_MIN_SIZE;
+    private int dedupedEntries = 0; // 内容已在去重存储中的条目数，只由写入线程修改
+    private long dedupedBytes = 0;
+
+    /**
+     * 已压缩、等待写入归档的条目，数据来自内存、溢写文件或本地源文件之一
+     */
+    private static class PendingEntry {
+        private final String name;
+        private final String localPath;
+        private final int method;
+        private final long modifiedTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final byte[] data;
+        private final File spoolFile;
+        private final File sourceFile;
+        private final String blob; // 内容散列，不为 null 时写入去重存储和引用条目；名称已带引用后缀时原样写入
+
+        private PendingEntry(String name, String localPath, int method, long modifiedTime, long crc,
+                             long compressedSize, long size, byte[] data, File spoolFile, File sourceFile,
+                             String blob) {
+            this.name = name;
+            this.localPath = localPath;
+            this.method = method;
+            this.modifiedTime = modifiedTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.data = data;
+            this.spoolFile = spoolFile;
+            this.sourceFile = sourceFile;
+            this.blob = blob;
+        }
+    }
+
+    /**
+     * 已写入归档的条目信息
+     */
+    public static class ArchivedEntry {
+        private final String name;
+        private final String localPath;
+        private final long size;
+        private final long crc;
+        private final String blob;
+
+        ArchivedEntry(String name, String localPath, long size, long crc) {
+            this(name, localPath, size, crc, null);
+        }
+
+        ArchivedEntry(String name, String localPath, long size, long crc, String blob) {
+            this.name = name;
+            this.localPath = localPath;
+            this.size = size;
+            this.crc = crc;
+            this.blob = blob;
+        }
+
+        /**
+         * 获取条目名称，差异条目带有 {@link DeltaEncoder#ENTRY_SUFFIX} 后缀，改名条目带有 {@link #RENAME_SUFFIX} 后缀，
+         * 去重引用条目带有 {@link #BLOB_SUFFIX} 后缀
+         *
+         * @return 条目名称
+         */
+        public String getName() {
+            return name;
+        }
+
+        public String getLocalPath() {
+            return localPath;
+        }
+
+        /**
+         * 获取条目数据大小（差异条目为差异数据的大小）
+         *
+         * @return 条目数据大小
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * 获取条目数据的 CRC32
+         *
+         * @return CRC32
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * 是否为块级差异条目
+         *
+         * @return 是否为差异条目
+         */
+        public boolean isDelta() {
+            return name.endsWith(DeltaEncoder.ENTRY_SUFFIX);
+        }
+
+        /**
+         * 是否为改名条目
+         *
+         * @return 是否为改名条目
+         */
+        public boolean isRename() {
+            return name.endsWith(RENAME_SUFFIX);
+        }
+
+        /**
+         * 是否为去重引用条目
+         *
+         * @return 是否为引用条目
+         */
+        public boolean isBlob() {
+            return name.endsWith(BLOB_SUFFIX);
+        }
+
+        /**
+         * 获取引用条目指向的内容散列
+         *
+         * @return 内容散列，不是引用条目时返回 null
+         */
+        public String getBlob() {
+            return blob;
+        }
+    }
+
+    private static final PendingEntry END = new PendingEntry(null, null, 0, 0, 0, 0, 0, null, null, null, null);
+
+    /**
+     * 条目输出流，在调用线程中完成 CRC 计算和压缩
+     * <p>
+     * 先缓存开头的一段数据用于选择压缩方式，选定后再按 DEFLATE 或直接存储处理。
+     */
+    public class EntrySink extends OutputStream {
+        private final String name;
+        private final String localPath;
+        private final long modifiedTime;
+        private final CRC32 crc = new CRC32();
+        private byte[] sample = new byte[CompressionPolicy.SAMPLE_SIZE];
+        private int sampleLength = 0;
+        private int method = -1;
+        private Deflater deflater;
+        private byte[] deflateBuffer;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File spoolFile;
+        private OutputStream spool;
+        private boolean fromSource = false;
+        private long size = 0;
+        private long compressedSize = 0;
+        private boolean done = false;
+        private final DeltaEncoder delta;
+        private MessageDigest digest; // 去重时计算内容散列
+        private String blob; // 已知的内容散列，用于原样写入引用条目
+
+        private EntrySink(String name, String localPath, long modifiedTime, DeltaIndex base) {
+            this.name = name;
+            this.localPath = localPath;
+            this.modifiedTime = modifiedTime;
+            this.delta = base != null ? new DeltaEncoder(base, new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    writeEncoded(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    writeEncoded(b, off, len);
+                }
+            }) : null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (delta != null) {
+                delta.write(b, off, len);
+            } else {
+                writeEncoded(b, off, len);
+            }
+        }
+
+        /**
+         * 写入条目数据（差异模式下为差异编码后的数据）
+         */
+        private void writeEncoded(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            crc.update(b, off, len);
+            if (digest != null) {
+                digest.update(b, off, len);
+            }
+            size += len;
+            if (method < 0) {
+                int count = Math.min(len, sample.length - sampleLength);
+                System.arraycopy(b, off, sample, sampleLength, count);
+                sampleLength += count;
+                off += count;
+                len -= count;
+                if (sampleLength < sample.length) {
+                    return;
+                }
+                chooseMethod();
+            }
+            if (len > 0) {
+                append(b, off, len);
+            }
+        }
+
+        /**
+         * 完成条目并提交到归档，队列满时阻塞
+         *
+         * @throws IOException 压缩或暂存过程中发生异常
+         */
+        public void commit() throws IOException {
+            if (done) {
+                return;
+            }
+            if (delta != null) {
+                delta.finish();
+                System.out.println("Delta for " + localPath + ": reused " + delta.getCopiedBytes()
+                        + " of " + delta.getSize() + " bytes");
+            }
+            if (method < 0) {
+                chooseMethod();
+            }
+            if (method == ZipStreamWriter.DEFLATED) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    drain();
+                }
+                deflater.end();
+                if (spool == null && size <= sampleLength && compressedSize >= size) {
+                    // 很小的条目压缩后反而更大，改为直接存储
+                    method = ZipStreamWriter.STORED;
+                    memory.reset();
+                    memory.write(sample, 0, sampleLength);
+                }
+            }
+            if (method == ZipStreamWriter.STORED) {
+                compressedSize = size;
+            }
+            done = true;
+            byte[] data = null;
+            if (spool != null) {
+                spool.close();
+            } else if (!fromSource) {
+                data = memory.toByteArray();
+            }
+            memory = null;
+            sample = null;
+            if (blob == null && digest != null && size >= blobMinSize) {
+                blob = BlobStore.toHex(digest.digest());
+            }
+            enqueue(new PendingEntry(name, localPath, method, modifiedTime, crc.getValue(),
+                    compressedSize, size, data, spoolFile, fromSource ? new File(localPath) : null, blob));
+        }
+
+        /**
+         * 丢弃条目，下载失败时调用
+         */
+        public void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (deflater != null) {
+                deflater.end();
+            }
+            memory = null;
+            sample = null;
+            if (spool != null) {
+                try {
+                    spool.close();
+                } catch (IOException ignored) {
+                }
+            }
+            deleteSpool(spoolFile);
+        }
+
+        private void chooseMethod() throws IOException {
+            method = policy.chooseMethod(name, sample, sampleLength);
+            if (method == ZipStreamWriter.DEFLATED) {
+                deflater = new Deflater(policy.getLevel(), true);
+                deflateBuffer = new byte[64 * 1024];
+            }
+            if (sampleLength > 0) {
+                append(sample, 0, sampleLength);
+            }
+        }
+
+        private void append(byte[] b, int off, int len) throws IOException {
+            if (method == ZipStreamWriter.DEFLATED) {
+                deflater.setInput(b, off, len);
+                while (!deflater.needsInput()) {
+                    drain();
+                }
+            } else if (!fromSource) {
+                if (memory.size() + len > MEMORY_THRESHOLD && localPath != null && delta == null) {
+                    // 直接存储的大条目在写入归档时从本地文件读取，不再保留副本
+                    fromSource = true;
+                    memory = null;
+                } else {
+                    memory.write(b, off, len);
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            int count = deflater.deflate(deflateBuffer);
+            if (count <= 0) {
+                return;
+            }
+            compressedSize += count;
+            if (spool == null && memory.size() + count > MEMORY_THRESHOLD) {
+                spoolFile = File.createTempFile(".spool-", ".tmp", spoolDir);
+                spool = new BufferedOutputStream(new FileOutputStream(spoolFile), 256 * 1024);
+                memory.writeTo(spool);
+                memory = null;
+            }
+            if (spool != null) {
+                spool.write(deflateBuffer, 0, count);
+            } else {
+                memory.write(deflateBuffer, 0, count);
+            }
+        }
+    }
+
+    /**
+     * 构造函数，立即启动写入线程，ZIP 文件在第一个条目写入时才创建
+     *
+     * @param incrementsDir 增量目录
+     * @param localDir      本地同步目录，用于计算条目名称
+     * @param queueCapacity 等待写入的条目队列容量
+     * @param policy        压缩策略
+     */
+    public IncrementArchive(String incrementsDir, String localDir, int queueCapacity, CompressionPolicy policy) {
+        this(new File(incrementsDir + File.separator + new Date().getTime() + ".zip"), localDir, queueCapacity, policy);
+    }
+
+    /**
+     * 构造函数，写入指定的 ZIP 文件，用于合并增量
+     *
+     * @param zipFile       ZIP 文件
+     * @param localDir      本地同步目录，用于计算条目名称
+     * @param queueCapacity 等待写入的条目队列容量
+     * @param policy        压缩策略
+     */
+    IncrementArchive(File zipFile, String localDir, int queueCapacity, CompressionPolicy policy) {
+        this.localDir = localDir;
+        this.policy = policy;
+        this.zipFile = zipFile;
+        this.spoolDir = zipFile.getParentFile();
+        this.partFile = new File(spoolDir, "." + zipFile.getName() + PART_SUFFIX);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.writerThread = new Thread(this::writeLoop, "increment-archive-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * 获取 ZIP 文件路径
+     *
+     * @return ZIP 文件路径
+     */
+    public String getZipFileName() {
+        return zipFile.getPath();
+    }
+
+    /**
+     * 启用差异模式
+     *
+     * @param deltaThreshold 不小于该大小的文件写入块级差异，0 表示不启用
+     */
+    public void setDeltaThreshold(long deltaThreshold) {
+        this.deltaThreshold = deltaThreshold;
+    }
+
+    /**
+     * 启用去重，之后打开的条目都计算内容散列
+     *
+     * @param blobStore 去重存储
+     * @param minSize   不小于该大小的文件才去重
+     */
+    public void setBlobStore(BlobStore blobStore, long minSize) {
+        this.blobStore = blobStore;
+        this.blobMinSize = Math.max(1, minSize);
+    }
+
+    /**
+     * 在下载覆盖本地文件之前为其旧版本建立块索引，之后 {@link #addFile(String)} 写入差异条目
+     *
+     * @param localPath 本地文件路径
+     */
+    public void prepareDelta(String localPath) {
+        DeltaIndex base = buildDeltaIndex(localPath);
+        if (base != null) {
+            deltaBases.put(localPath, base);
+        }
+    }
+
+    /**
+     * 为本地文件打开一个条目输出流，必须在下载覆盖本地文件之前调用
+     *
+     * @param localPath 本地文件路径
+     * @return 条目输出流
+     */
+    public EntrySink openEntry(String localPath) {
+        DeltaIndex base = deltaBases.remove(localPath);
+        return openEntry(localPath, base != null ? base : buildDeltaIndex(localPath));
+    }
+
+    private EntrySink openEntry(String localPath, DeltaIndex base) {
+        if (!spoolDir.exists()) {
+            spoolDir.mkdirs();
+        }
+        String name = entryName(localPath);
+        EntrySink sink = new EntrySink(base != null ? name + DeltaEncoder.ENTRY_SUFFIX : name, localPath,
+                System.currentTimeMillis(), base);
+        if (blobStore != null && base == null) {
+            sink.digest = BlobStore.newDigest();
+        }
+        return sink;
+    }
+
+    /**
+     * 为本地文件的当前版本建立块索引
+     *
+     * @param localPath 本地文件路径
+     * @return 块索引，未启用差异模式、文件不存在或小于阈值时返回 null
+     */
+    private DeltaIndex buildDeltaIndex(String localPath) {
+        File file = new File(localPath);
+        if (deltaThreshold <= 0 || !file.isFile() || file.length() < deltaThreshold) {
+            return null;
+        }
+        try {
+            return DeltaIndex.build(file);
+        } catch (IOException e) {
+            System.out.println("Error indexing " + localPath + " for delta: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 从磁盘读取已下载的本地文件并加入归档
+     *
+     * @param localPath 本地文件路径
+     * @throws IOException 读取或压缩过程中发生异常
+     */
+    public void addFile(String localPath) throws IOException {
+        EntrySink sink = openEntry(localPath, deltaBases.remove(localPath));
+        try (InputStream in = new FileInputStream(localPath)) {
+            byte[] buffer = new byte[64 * 1024];
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                sink.write(buffer, 0, length);
+            }
+            sink.commit();
+        } finally {
+            sink.abort();
+        }
+    }
+
+    /**
+     * 写入一个改名条目，本地文件应已移动到新路径
+     *
+     * @param fromPath 原本地文件路径
+     * @param toPath   新本地文件路径
+     * @throws IOException 写入过程中发生异常
+     */
+    public void addRename(String fromPath, String toPath) throws IOException {
+        if (!spoolDir.exists()) {
+            spoolDir.mkdirs();
+        }
+        EntrySink sink = new EntrySink(entryName(toPath) + RENAME_SUFFIX, toPath, System.currentTimeMillis(), null);
+        try {
+            sink.write(entryName(fromPath).getBytes(StandardCharsets.UTF_8));
+            sink.commit();
+        } finally {
+            sink.abort();
+        }
+    }
+
+    /**
+     * 按给定的条目名称和修改时间写入一个条目，数据不对应本地文件（合并增量时使用）
+     *
+     * @param name         条目名称，差异条目带有 {@link DeltaEncoder#ENTRY_SUFFIX} 后缀
+     * @param modifiedTime 条目修改时间（毫秒）
+     * @param data         条目数据
+     * @throws IOException 读取或压缩过程中发生异常
+     */
+    void addEntry(String name, long modifiedTime, InputStream data) throws IOException {
+        if (!spoolDir.exists()) {
+            spoolDir.mkdirs();
+        }
+        EntrySink sink = new EntrySink(name, null, modifiedTime, null);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int length;
+            while ((length = data.read(buffer)) >= 0) {
+                sink.write(buffer, 0, length);
+            }
+            sink.commit();
+        } finally {
+            sink.abort();
+        }
+    }
+
+    /**
+     * 写入一个去重引用条目，内容已在去重存储中（合并增量时使用）
+     *
+     * @param name         条目名称，带有 {@link #BLOB_SUFFIX} 后缀
+     * @param modifiedTime 条目修改时间（毫秒）
+     * @param blob         内容散列
+     * @throws IOException 写入过程中发生异常
+     */
+    void addBlobReference(String name, long modifiedTime, String blob) throws IOException {
+        if (!spoolDir.exists()) {
+            spoolDir.mkdirs();
+        }
+        EntrySink sink = new EntrySink(name, null, modifiedTime, null);
+        sink.blob = blob;
+        try {
+            sink.write(blob.getBytes(StandardCharsets.UTF_8));
+            sink.commit();
+        } finally {
+            sink.abort();
+        }
+    }
+
+    /**
+     * 使用线程池并行压缩一批本地文件并加入归档
+     * <p>
+     * 普通文件各自在一个工作线程中压缩；需要压缩的大文件由调用线程顺序读取，
+     * 按块分发到线程池并行压缩后按顺序拼接，避免单个大文件只能用一个核心。
+     *
+     * @param localPaths  本地文件路径列表
+     * @param pool        压缩线程池
+     * @param parallelism 线程池并行度
+     * @throws IOException 读取或压缩过程中发生异常
+     */
+    public void addFiles(List<String> localPaths, ExecutorService pool, int parallelism) throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        List<String> largeFiles = new ArrayList<>();
+        for (String localPath : localPaths) {
+            if (new File(localPath).length() >= LARGE_FILE_THRESHOLD && !policy.isStoredByName(entryName(localPath))
+                    && !deltaBases.containsKey(localPath)) {
+                largeFiles.add(localPath);
+            } else {
+                futures.add(pool.submit(() -> {
+                    addFile(localPath);
+                    return null;
+                }));
+            }
+        }
+
+        IOException error = null;
+        for (String localPath : largeFiles) {
+            try {
+                addLargeFile(localPath, pool, parallelism);
+            } catch (IOException e) {
+                error = e;
+                break;
+            }
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new IOException("Interrupted while compressing files", e);
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * 分块并行压缩一个大文件，每块用上一块末尾 32 KB 预置字典，块之间以 SYNC_FLUSH 对齐，
+     * 各块输出直接拼接即为完整的 DEFLATE 流
+     *
+     * @param localPath   本地文件路径
+     * @param pool        压缩线程池
+     * @param parallelism 线程池并行度
+     * @throws IOException 读取或压缩过程中发生异常
+     */
+    private void addLargeFile(String localPath, ExecutorService pool, int parallelism) throws IOException {
+        String name = entryName(localPath);
+        CRC32 crc = new CRC32();
+        MessageDigest digest = blobStore != null ? BlobStore.newDigest() : null;
+        long size = 0;
+        long compressedSize = 0;
+        File spoolFile = null;
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        boolean queued = false;
+
+        try (InputStream in = new FileInputStream(localPath)) {
+            byte[] block = readBlock(in);
+            if (policy.chooseMethod(name, block, Math.min(block.length, CompressionPolicy.SAMPLE_SIZE))
+                    == ZipStreamWriter.STORED) {
+                // 采样判定不可压缩，退回普通流程，直接存储时不会暂存副本
+                addFile(localPath);
+                return;
+            }
+            spoolFile = File.createTempFile(".spool-", ".tmp", spoolDir);
+            try (OutputStream spool = new BufferedOutputStream(new FileOutputStream(spoolFile), 256 * 1024)) {
+                byte[] previous = null;
+                while (true) {
+                    boolean last = block.length == 0;
+                    crc.update(block);
+                    if (digest != null) {
+                        digest.update(block);
+                    }
+                    size += block.length;
+                    byte[] input = block;
+                    byte[] dictionary = previous;
+                    inFlight.add(pool.submit(() -> deflateBlock(input, dictionary, last)));
+                    while (inFlight.size() > parallelism * 2 || (last && !inFlight.isEmpty())) {
+                        byte[] compressed = inFlight.poll().get();
+                        spool.write(compressed);
+                        compressedSize += compressed.length;
+                    }
+                    if (last) {
+                        break;
+                    }
+                    previous = block;
+                    block = readBlock(in);
+                }
+            }
+            String blob = digest != null && size >= blobMinSize ? BlobStore.toHex(digest.digest()) : null;
+            enqueue(new PendingEntry(name, localPath, ZipStreamWriter.DEFLATED, System.currentTimeMillis(),
+                    crc.getValue(), compressedSize, size, null, spoolFile, null, blob));
+            queued = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing " + localPath, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing " + localPath, e.getCause());
+        } finally {
+            inFlight.forEach(future -> future.cancel(true));
+            if (!queued) {
+                deleteSpool(spoolFile);
+            }
+        }
+    }
+
+    private static byte[] readBlock(InputStream in) throws IOException {
+        return in.readNBytes(BLOCK_SIZE);
+    }
+
+    private byte[] deflateBlock(byte[] input, byte[] previous, boolean last) {
+        Deflater deflater = new Deflater(policy.getLevel(), true);
+        try {
+            if (previous != null) {
+                int length = Math.min(DICTIONARY_SIZE, previous.length);
+                deflater.setDictionary(previous, previous.length - length, length);
+            }
+            deflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void enqueue(PendingEntry entry) throws IOException {
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteSpool(entry.spoolFile);
+            throw new IOException("Interrupted while queueing ZIP entry: " + entry.name, e);
+        }
+    }
+
+    /**
+     * 等待所有已提交条目写入并完成 ZIP 文件
+     *
+     * @return 归档中的本地文件路径，顺序与写入顺序一致
+     * @throws IOException 写入过程中发生异常
+     */
+    public List<String> finish() throws IOException {
+        try {
+            queue.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while finishing ZIP archive", e);
+        }
+        if (zipWriter != null) {
+            try {
+                zipWriter.close();
+            } catch (IOException e) {
+                if (writeError == null) {
+                    writeError = e;
+                }
+            }
+        }
+        if (writeError != null) {
+            partFile.delete();
+            throw writeError;
+        }
+        if (dedupedEntries > 0) {
+            System.out.println("Deduplicated " + dedupedEntries + " entries (" + dedupedBytes
+                    + " bytes) against stored blobs");
+        }
+        if (zipWriter != null) {
+            try {
+                Files.move(partFile.toPath(), zipFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partFile.toPath(), zipFile.toPath());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * 获取已写入归档的条目信息，应在 {@link #finish()} 之后调用
+     *
+     * @return 条目信息，顺序与写入顺序一致
+     */
+    public List<ArchivedEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * 计算本地文件在 ZIP 中的条目名称，使用相对路径避免文件名冲突
+     *
+     * @param localPath 本地文件路径
+     * @return 条目名称
+     */
+    public String entryName(String localPath) {
+        // 只去掉开头的本地目录，路径中间再次出现同样的字符串时不能替换
+        String relativePath = localPath.startsWith(localDir) ? localPath.substring(localDir.length()) : localPath;
+        relativePath = relativePath.replace("\\", "/");
+        return relativePath.startsWith("/") ? relativePath.substring(1) : relativePath;
+    }
+
+    /**
+     * 读取已完成的增量 ZIP 中的条目信息
+     *
+     * @param zipFile  ZIP 文件
+     * @param localDir 本地同步目录，用于还原条目对应的本地文件路径
+     * @return 条目信息
+     * @throws IOException 读取失败
+     */
+    public static List<ArchivedEntry> readEntries(File zipFile, String localDir) throws IOException {
+        List<ArchivedEntry> result = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry entry = zipEntries.nextElement();
+                String name = entry.getName();
+                String relativePath = IncrementCatalog.pathOf(name);
+                String localPath = localDir.endsWith("/") || localDir.endsWith(File.separator)
+                        ? localDir + relativePath
+                        : localDir + "/" + relativePath;
+                String blob = name.endsWith(BLOB_SUFFIX) ? readBlobHash(zip, name) : null;
+                result.add(new ArchivedEntry(name, localPath, entry.getSize(), entry.getCrc(), blob));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 读取改名条目记录的原相对路径
+     *
+     * @param zip       增量 ZIP
+     * @param entryName 改名条目名称
+     * @return 原相对路径
+     * @throws IOException 读取失败或条目不存在
+     */
+    static String readRenameSource(ZipFile zip, String entryName) throws IOException {
+        return readString(zip, entryName);
+    }
+
+    /**
+     * 读取去重引用条目记录的内容散列
+     *
+     * @param zip       增量 ZIP
+     * @param entryName 引用条目名称
+     * @return 内容散列
+     * @throws IOException 读取失败或条目不存在
+     */
+    static String readBlobHash(ZipFile zip, String entryName) throws IOException {
+        return readString(zip, entryName).trim();
+    }
+
+    private static String readString(ZipFile zip, String entryName) throws IOException {
+        ZipEntry entry = zip.getEntry(entryName);
+        if (entry == null) {
+            throw new IOException("Entry " + entryName + " missing from " + zip.getName());
+        }
+        try (InputStream in = zip.getInputStream(entry)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 删除中途退出时遗留的未写完 ZIP、条目溢写文件和合并增量用的临时文件（以点开头、以 .tmp 结尾），
+     * 只能在没有归档正在写入时调用
+     *
+     * @param incrementsDir 增量目录
+     */
+    public static void cleanupTemporaryFiles(File incrementsDir) {
+        File[] files = incrementsDir.listFiles((dir, name) -> name.startsWith(".")
+                && (name.endsWith(".tmp") || name.endsWith(".zip" + PART_SUFFIX)));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.delete()) {
+                System.out.println("Removed leftover temporary file: " + file.getName());
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            PendingEntry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                writeError = new IOException("ZIP writer interrupted", e);
+                return;
+            }
+            if (entry == END) {
+                return;
+            }
+            try {
+                if (writeError == null) {
+                    write(entry);
+                }
+            } catch (IOException e) {
+                writeError = e;
+            } finally {
+                deleteSpool(entry.spoolFile);
+            }
+        }
+    }
+
+    private void write(PendingEntry entry) throws IOException {
+        if (zipWriter == null) {
+            zipWriter = new ZipStreamWriter(new BufferedOutputStream(new FileOutputStream(partFile), 256 * 1024));
+        }
+        if (entry.blob != null && !entry.name.endsWith(BLOB_SUFFIX) && writeBlob(entry)) {
+            return;
+        }
+        try (InputStream data = openData(entry)) {
+            zipWriter.writeEntry(entry.name, entry.method, entry.modifiedTime, entry.crc,
+                    entry.compressedSize, entry.size, data);
+        }
+        files.add(entry.localPath);
+        entries.add(new ArchivedEntry(entry.name, entry.localPath, entry.size, entry.crc,
+                entry.name.endsWith(BLOB_SUFFIX) ? entry.blob : null));
+    }
+
+    /**
+     * 把条目的压缩数据存入去重存储，归档中只写入引用条目
+     *
+     * @return 是否成功，存入失败时返回 false，由调用方照常写入完整条目
+     */
+    private boolean writeBlob(PendingEntry entry) throws IOException {
+        boolean stored;
+        try (InputStream data = openData(entry)) {
+            stored = blobStore.put(entry.blob, entry.method, entry.size, entry.crc, data);
+        } catch (IOException e) {
+            System.out.println("Error storing blob for " + entry.name + ", archiving full content: "
+                    + e.getMessage());
+            return false;
+        }
+        if (!stored) {
+            dedupedEntries++;
+            dedupedBytes += entry.compressedSize;
+        }
+        byte[] reference = entry.blob.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(reference);
+        String name = entry.name + BLOB_SUFFIX;
+        zipWriter.writeEntry(name, ZipStreamWriter.STORED, entry.modifiedTime, crc.getValue(),
+                reference.length, reference.length, new ByteArrayInputStream(reference));
+        files.add(entry.localPath);
+        entries.add(new ArchivedEntry(name, entry.localPath, reference.length, crc.getValue(), entry.blob));
+        return true;
+    }
+
+    private static InputStream openData(PendingEntry entry) throws IOException {
+        return entry.data != null
+                ? new ByteArrayInputStream(entry.data)
+                : new FileInputStream(entry.spoolFile != null ? entry.spoolFile : entry.sourceFile);
+    }
+
+    private static void deleteSpool(File spoolFile) {
+        if (spoolFile != null && spoolFile.exists() && !spoolFile.delete()) {
+            spoolFile.deleteOnExit();
+        }
+    }
+}
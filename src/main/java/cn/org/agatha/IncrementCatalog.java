@@ -0,0 +1,728 @@
+package cn.org.agatha;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 增量目录的索引：每个路径在哪些增量中有版本，以及各版本的时间、大小和 CRC32，
+ * 查询时不需要列出增量目录或打开任何 ZIP
+ * <p>
+ * 索引保存在增量目录下的 {@value #CATALOG_FILE}，是只追加的记录文件：每写完一个增量追加一条记录，
+ * 合并增量时追加一条带有被合并增量名称的记录，随后整体重写一次去掉已被合并的记录。
+ * 打开时与目录中实际的 ZIP 对账：
+ * <ul>
+ *     <li>索引缺失或损坏时扫描所有 ZIP 重建</li>
+ *     <li>文件已不存在的增量从索引中删除</li>
+ *     <li>时间范围落在某个合并增量之内的 ZIP 是合并后没来得及删除的旧增量，直接删除</li>
+ *     <li>其余不在索引中的 ZIP 扫描后加入</li>
+ * </ul>
+ * 普通增量名为 "毫秒时间戳.zip"，其中各版本的时间即为该时间戳；
+ * 合并增量名为 "最早时间戳-最晚时间戳.zip"，各版本的时间记录在索引中。
+ * <p>
+ * 去重引用条目的内容散列也记录在索引中，并据此统计 {@link BlobStore} 中每份内容被多少个版本引用；
+ * 增量被合并或删除后引用数降为 0 的内容由 {@link #collectBlobs()} 删除。
+ */
+public class IncrementCatalog implements AutoCloseable {
+    public static final String CATALOG_FILE = ".catalog"; // 增量目录下的索引文件名
+    private static final int MAGIC = 0x49434154; // "ICAT"
+    private static final int VERSION = 2;
+    private static final byte RECORD_ADD = 1;
+    private static final Pattern ZIP_NAME = Pattern.compile("(\\d+)(?:-(\\d+))?\\.zip");
+
+    private final File dir;
+    private final File file;
+    private FileChannel channel;
+    private final Map<String, Increment> increments = new HashMap<>();
+    private final Map<String, List<Version>> versions = new TreeMap<>(); // 路径 -> 按时间排序的版本
+    private final BlobStore blobStore;
+    private final Map<String, Integer> blobReferences = new HashMap<>(); // 内容散列 -> 引用该内容的版本数
+    private final Set<String> releasedBlobs = new HashSet<>(); // 引用数曾降为 0、等待删除的内容
+
+    /**
+     * 一个增量 ZIP
+     */
+    public static class Increment {
+        private final String name;
+        private final File file;
+        private final long firstTimestamp;
+        private final long lastTimestamp;
+        private final List<String> sources;
+        private final List<Version> versions = new ArrayList<>();
+
+        private Increment(File dir, String name, long firstTimestamp, long lastTimestamp, List<String> sources) {
+            this.name = name;
+            this.file = new File(dir, name);
+            this.firstTimestamp = firstTimestamp;
+            this.lastTimestamp = lastTimestamp;
+            this.sources = sources;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * 获取增量覆盖的最早时间，普通增量与最晚时间相同
+         *
+         * @return 时间戳（毫秒）
+         */
+        public long getFirstTimestamp() {
+            return firstTimestamp;
+        }
+
+        /**
+         * 获取增量覆盖的最晚时间
+         *
+         * @return 时间戳（毫秒）
+         */
+        public long getLastTimestamp() {
+            return lastTimestamp;
+        }
+
+        /**
+         * 是否为合并增量
+         *
+         * @return 是否为合并增量
+         */
+        public boolean isCompacted() {
+            return firstTimestamp != lastTimestamp;
+        }
+
+        /**
+         * 获取增量中的所有版本
+         *
+         * @return 版本列表
+         */
+        public List<Version> getVersions() {
+            return Collections.unmodifiableList(versions);
+        }
+
+        private Version addVersion(String entryName, long timestamp, long size, long crc, String blob) {
+            Version version = new Version(this, entryName, timestamp, size, crc, blob);
+            versions.add(version);
+            return version;
+        }
+    }
+
+    /**
+     * 一个路径在某个增量中的版本
+     */
+    public static class Version {
+        private final Increment increment;
+        private final String entryName;
+        private final long timestamp;
+        private final long size;
+        private final long crc;
+        private final String blob;
+
+        private Version(Increment increment, String entryName, long timestamp, long size, long crc, String blob) {
+            this.increment = increment;
+            this.entryName = entryName;
+            this.timestamp = timestamp;
+            this.size = size;
+            this.crc = crc;
+            this.blob = blob;
+        }
+
+        public Increment getIncrement() {
+            return increment;
+        }
+
+        /**
+         * 获取相对路径，即去掉差异、改名或引用后缀的条目名称
+         *
+         * @return 相对路径
+         */
+        public String getPath() {
+            return pathOf(entryName);
+        }
+
+        public String getEntryName() {
+            return entryName;
+        }
+
+        /**
+         * 获取版本的时间
+         *
+         * @return 时间戳（毫秒）
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * 获取条目数据大小（差异条目为差异数据的大小）
+         *
+         * @return 条目数据大小
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * 获取条目数据的 CRC32
+         *
+         * @return CRC32
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * 是否为块级差异条目，需要上一个版本才能重建
+         *
+         * @return 是否为差异条目
+         */
+        public boolean isDelta() {
+            return entryName.endsWith(DeltaEncoder.ENTRY_SUFFIX);
+        }
+
+        /**
+         * 是否为改名条目，内容与原路径在该时刻之前的最新版本相同
+         *
+         * @return 是否为改名条目
+         */
+        public boolean isRename() {
+            return entryName.endsWith(IncrementArchive.RENAME_SUFFIX);
+        }
+
+        /**
+         * 是否为去重引用条目，完整内容在 {@link BlobStore} 中
+         *
+         * @return 是否为引用条目
+         */
+        public boolean isBlob() {
+            return entryName.endsWith(IncrementArchive.BLOB_SUFFIX);
+        }
+
+        /**
+         * 获取引用条目指向的内容散列
+         *
+         * @return 内容散列，不是引用条目时返回 null
+         */
+        public String getBlob() {
+            return blob;
+        }
+    }
+
+    private IncrementCatalog(File dir) {
+        this.dir = dir;
+        this.file = new File(dir, CATALOG_FILE);
+        this.blobStore = new BlobStore(dir);
+    }
+
+    /**
+     * 打开增量目录的索引，与目录中实际的 ZIP 对账，必要时重建
+     *
+     * @param dir 增量目录
+     * @return 增量索引
+     * @throws IOException 无法写入索引文件
+     */
+    public static IncrementCatalog open(File dir) throws IOException {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        IncrementCatalog catalog = new IncrementCatalog(dir);
+        long validLength = catalog.load();
+        boolean changed = validLength < 0;
+        if (changed) {
+            System.out.println("Rebuilding increment catalog: " + dir);
+        }
+
+        for (Increment increment : new ArrayList<>(catalog.increments.values())) {
+            if (!increment.file.isFile()) {
+                System.out.println("Increment missing, removed from catalog: " + increment.name);
+                catalog.remove(increment);
+                changed = true;
+            }
+        }
+
+        // 索引中的增量都已确认存在，目录中落在合并增量时间范围内的 ZIP 是已被合并的旧增量
+        Map<String, long[]> found = new LinkedHashMap<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                long[] range = parseRange(name);
+                if (range != null) {
+                    found.put(name, range);
+                }
+            }
+        }
+        for (String name : new ArrayList<>(found.keySet())) {
+            if (isMerged(name, found.get(name), found)) {
+                Increment increment = catalog.increments.get(name);
+                if (increment != null) {
+                    catalog.remove(increment);
+                }
+                if (new File(dir, name).delete()) {
+                    System.out.println("Removed increment already merged: " + name);
+                }
+                found.remove(name);
+                changed = true;
+            }
+        }
+
+        List<String> unknown = new ArrayList<>();
+        for (String name : found.keySet()) {
+            if (!catalog.increments.containsKey(name)) {
+                unknown.add(name);
+            }
+        }
+        unknown.sort(Comparator.comparingLong(name -> found.get(name)[0]));
+        for (String name : unknown) {
+            long[] range = found.get(name);
+            try {
+                catalog.apply(scan(dir, name, range[0], range[1]));
+                changed = true;
+            } catch (IOException e) {
+                System.out.println("Error reading increment " + name + ", not cataloged: " + e.getMessage());
+            }
+        }
+
+        if (changed) {
+            catalog.rewrite();
+        } else {
+            catalog.channel = FileChannel.open(catalog.file.toPath(), StandardOpenOption.WRITE);
+            catalog.channel.truncate(validLength);
+            catalog.channel.position(validLength);
+        }
+        return catalog;
+    }
+
+    /**
+     * 记录一个刚写完的增量，已在索引中时忽略
+     *
+     * @param zipFile 增量 ZIP
+     * @param entries 增量中的条目
+     */
+    public synchronized void add(File zipFile, List<IncrementArchive.ArchivedEntry> entries) {
+        String name = zipFile.getName();
+        long[] range = parseRange(name);
+        if (range == null || increments.containsKey(name)) {
+            return;
+        }
+        Increment increment = new Increment(dir, name, range[0], range[1], Collections.emptyList());
+        for (IncrementArchive.ArchivedEntry entry : entries) {
+            increment.addVersion(entry.getName(), range[1], entry.getSize(), entry.getCrc(), entry.getBlob());
+        }
+        apply(increment);
+        append(increment, false);
+    }
+
+    /**
+     * 记录一个合并增量并落盘，被合并的增量从索引中删除，之后可以删除其文件
+     *
+     * @param zipFile  合并增量 ZIP
+     * @param sources  被合并的增量
+     * @param entries  合并增量中的条目
+     * @param times    各条目对应版本的时间
+     * @throws IOException 写入索引失败，此时不应删除被合并的增量
+     */
+    synchronized void addCompacted(File zipFile, List<Increment> sources, List<IncrementArchive.ArchivedEntry> entries,
+                                   Map<String, Long> times) throws IOException {
+        long[] range = parseRange(zipFile.getName());
+        if (range == null) {
+            throw new IOException("Not an increment name: " + zipFile.getName());
+        }
+        List<String> sourceNames = new ArrayList<>();
+        for (Increment source : sources) {
+            sourceNames.add(source.name);
+        }
+        Increment increment = new Increment(dir, zipFile.getName(), range[0], range[1], sourceNames);
+        for (IncrementArchive.ArchivedEntry entry : entries) {
+            increment.addVersion(entry.getName(), times.get(entry.getName()), entry.getSize(), entry.getCrc(),
+                    entry.getBlob());
+        }
+        if (!append(increment, true)) {
+            throw new IOException("Error writing increment catalog");
+        }
+        apply(increment);
+    }
+
+    /**
+     * 获取增量目录下的去重存储
+     *
+     * @return 去重存储
+     */
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * 删除引用数已降为 0 的内容，只能在没有归档正在写入时调用
+     *
+     * @return 删除的内容数
+     */
+    public synchronized int collectBlobs() {
+        int removed = 0;
+        for (String hash : releasedBlobs) {
+            if (!blobReferences.containsKey(hash) && blobStore.delete(hash)) {
+                removed++;
+            }
+        }
+        releasedBlobs.clear();
+        if (removed > 0) {
+            System.out.println("Removed " + removed + " unreferenced blobs");
+        }
+        return removed;
+    }
+
+    /**
+     * 扫描整个去重存储，删除没有任何版本引用的内容（例如中途退出的归档已写入的内容）和遗留的临时文件，
+     * 只能在没有归档正在写入时调用
+     *
+     * @return 删除的内容数
+     */
+    public synchronized int sweepBlobs() {
+        blobStore.cleanupTemporaryFiles();
+        int removed = 0;
+        for (String hash : blobStore.list()) {
+            if (!blobReferences.containsKey(hash) && blobStore.delete(hash)) {
+                removed++;
+            }
+        }
+        releasedBlobs.clear();
+        if (removed > 0) {
+            System.out.println("Removed " + removed + " unreferenced blobs");
+        }
+        return removed;
+    }
+
+    /**
+     * 获取所有增量，按时间排序
+     *
+     * @return 增量列表
+     */
+    public synchronized List<Increment> getIncrements() {
+        List<Increment> result = new ArrayList<>(increments.values());
+        result.sort(Comparator.comparingLong((Increment increment) -> increment.firstTimestamp)
+                .thenComparing(increment -> increment.name));
+        return result;
+    }
+
+    /**
+     * 获取所有有版本记录的路径
+     *
+     * @return 相对路径，按路径排序
+     */
+    public synchronized List<String> getPaths() {
+        return new ArrayList<>(versions.keySet());
+    }
+
+    /**
+     * 获取一个路径的所有版本，按时间排序
+     *
+     * @param path 相对路径
+     * @return 版本列表，没有版本时为空
+     */
+    public synchronized List<Version> getVersions(String path) {
+        List<Version> list = versions.get(path);
+        return list != null ? new ArrayList<>(list) : Collections.emptyList();
+    }
+
+    /**
+     * 查找路径匹配的文件，返回每个路径的最新版本
+     *
+     * @param pattern 路径模式
+     * @return 各路径的最新版本，按路径排序
+     */
+    public synchronized List<Version> search(PathPattern pattern) {
+        List<Version> result = new ArrayList<>();
+        for (Map.Entry<String, List<Version>> entry : versions.entrySet()) {
+            if (pattern.matches("/" + entry.getKey())) {
+                List<Version> list = entry.getValue();
+                result.add(list.get(list.size() - 1));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 重写索引文件，去掉已被合并的增量的记录
+     *
+     * @throws IOException 写入失败
+     */
+    public synchronized void rewrite() throws IOException {
+        File tmp = new File(dir, CATALOG_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(header);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            writeFully(out, header.toByteArray());
+            for (Increment increment : getIncrements()) {
+                writeFully(out, encode(increment, false));
+            }
+            out.force(true);
+        }
+        close();
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * 关闭索引文件
+     */
+    @Override
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing increment catalog: " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    /**
+     * 解析增量文件名中的时间范围
+     *
+     * @param name 文件名
+     * @return 最早和最晚时间戳，不是增量文件名时返回 null
+     */
+    static long[] parseRange(String name) {
+        Matcher matcher = ZIP_NAME.matcher(name);
+        if (!matcher.matches()) {
+            return null;
+        }
+        long first = Long.parseLong(matcher.group(1));
+        long last = matcher.group(2) != null ? Long.parseLong(matcher.group(2)) : first;
+        return first <= last ? new long[]{first, last} : null;
+    }
+
+    /**
+     * 去掉差异、改名或引用后缀，得到条目对应的相对路径
+     *
+     * @param entryName 条目名称
+     * @return 相对路径
+     */
+    static String pathOf(String entryName) {
+        if (entryName.endsWith(DeltaEncoder.ENTRY_SUFFIX)) {
+            return entryName.substring(0, entryName.length() - DeltaEncoder.ENTRY_SUFFIX.length());
+        }
+        if (entryName.endsWith(IncrementArchive.RENAME_SUFFIX)) {
+            return entryName.substring(0, entryName.length() - IncrementArchive.RENAME_SUFFIX.length());
+        }
+        if (entryName.endsWith(IncrementArchive.BLOB_SUFFIX)) {
+            return entryName.substring(0, entryName.length() - IncrementArchive.BLOB_SUFFIX.length());
+        }
+        return entryName;
+    }
+
+    /**
+     * 时间范围是否落在目录中另一个合并增量之内
+     */
+    private static boolean isMerged(String name, long[] range, Map<String, long[]> found) {
+        for (Map.Entry<String, long[]> entry : found.entrySet()) {
+            long[] other = entry.getValue();
+            if (other[0] != other[1] && !entry.getKey().equals(name)
+                    && other[0] <= range[0] && range[1] <= other[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 读取索引文件
+     *
+     * @return 有效记录的结束位置，文件不存在或格式不对时返回 -1
+     */
+    private long load() {
+        if (!file.isFile()) {
+            return -1;
+        }
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            System.out.println("Error reading increment catalog: " + e.getMessage());
+            return -1;
+        }
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return -1;
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        long validLength = data.length - bytes.available();
+        try {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type != RECORD_ADD) {
+                    throw new IOException("Unknown catalog record: " + type);
+                }
+                String name = in.readUTF();
+                long first = in.readLong();
+                long last = in.readLong();
+                List<String> sources = new ArrayList<>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    sources.add(in.readUTF());
+                }
+                Increment increment = new Increment(dir, name, first, last, sources);
+                for (int i = in.readInt(); i > 0; i--) {
+                    String entryName = in.readUTF();
+                    long timestamp = in.readLong();
+                    long size = in.readLong();
+                    long crc = in.readLong();
+                    String blob = in.readUTF();
+                    increment.addVersion(entryName, timestamp, size, crc, blob.isEmpty() ? null : blob);
+                }
+                apply(increment);
+                validLength = data.length - bytes.available();
+            }
+        } catch (IOException e) {
+            System.out.println("Truncating increment catalog at " + validLength + ": " + e.getMessage());
+        }
+        return validLength;
+    }
+
+    /**
+     * 扫描一个不在索引中的增量 ZIP，合并增量中各版本的时间取条目的修改时间
+     */
+    private static Increment scan(File dir, String name, long first, long last) throws IOException {
+        Increment increment = new Increment(dir, name, first, last, Collections.emptyList());
+        try (ZipFile zip = new ZipFile(new File(dir, name))) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                long timestamp = first == last ? last : Math.max(first, Math.min(last, entry.getTime()));
+                String blob = entry.getName().endsWith(IncrementArchive.BLOB_SUFFIX)
+                        ? IncrementArchive.readBlobHash(zip, entry.getName()) : null;
+                increment.addVersion(entry.getName(), timestamp, entry.getSize(), entry.getCrc(), blob);
+            }
+        }
+        return increment;
+    }
+
+    private void apply(Increment increment) {
+        for (String source : increment.sources) {
+            Increment merged = increments.get(source);
+            if (merged != null) {
+                remove(merged);
+            }
+        }
+        increments.put(increment.name, increment);
+        for (Version version : increment.versions) {
+            List<Version> list = versions.computeIfAbsent(version.getPath(), key -> new ArrayList<>());
+            int index = list.size();
+            while (index > 0 && list.get(index - 1).timestamp > version.timestamp) {
+                index--;
+            }
+            list.add(index, version);
+            if (version.blob != null) {
+                blobReferences.merge(version.blob, 1, Integer::sum);
+            }
+        }
+    }
+
+    private void remove(Increment increment) {
+        increments.remove(increment.name);
+        for (Version version : increment.versions) {
+            List<Version> list = versions.get(version.getPath());
+            if (list != null) {
+                list.remove(version);
+                if (list.isEmpty()) {
+                    versions.remove(version.getPath());
+                }
+            }
+            if (version.blob != null && blobReferences.merge(version.blob, -1, Integer::sum) <= 0) {
+                blobReferences.remove(version.blob);
+                releasedBlobs.add(version.blob);
+            }
+        }
+    }
+
+    private boolean append(Increment increment, boolean force) {
+        if (channel == null) {
+            return false;
+        }
+        try {
+            writeFully(channel, encode(increment, true));
+            if (force) {
+                channel.force(false);
+            }
+            return true;
+        } catch (IOException e) {
+            // 记录丢失时下次打开会重新扫描该增量
+            System.out.println("Error writing increment catalog: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static byte[] encode(Increment increment, boolean withSources) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(RECORD_ADD);
+        out.writeUTF(increment.name);
+        out.writeLong(increment.firstTimestamp);
+        out.writeLong(increment.lastTimestamp);
+        List<String> sources = withSources ? increment.sources : Collections.emptyList();
+        out.writeInt(sources.size());
+        for (String source : sources) {
+            out.writeUTF(source);
+        }
+        out.writeInt(increment.versions.size());
+        for (Version version : increment.versions) {
+            out.writeUTF(version.entryName);
+            out.writeLong(version.timestamp);
+            out.writeLong(version.size);
+            out.writeLong(version.crc);
+            out.writeUTF(version.blob != null ? version.blob : "");
+        }
+        return record.toByteArray();
+    }
+
+    private static void writeFully(FileChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package cn.org.agatha;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 增量合并：把已经过去的时间窗口内的多个增量合并为一个 "最早时间戳-最晚时间戳.zip"，
+ * 每个路径只保留窗口内的最新版本
+ * <p>
+ * 时间窗口按窗口长度对齐，窗口结束后再过 minAge 才会合并，窗口内少于两个增量时不处理。
+ * 最新版本是完整内容时直接保留；是块级差异时：
+ * <ul>
+ *     <li>窗口内有更早的完整版本：依次应用差异重建出最新版本，以完整内容保存</li>
+ *     <li>窗口内全是差异：把各差异合并为一个以窗口前版本为基准的差异（{@link DeltaComposer}）</li>
+ * </ul>
+ * 去重引用条目只复制引用，内容仍在 {@link BlobStore} 中；合并后不再被引用的内容随即删除。
+ * 改名条目原样保留；窗口内改名之后原路径又有新版本、或改名后的路径又有新版本时，
+ * 合并会丢掉还原改名所需的版本，这样的窗口不合并。
+ * <p>
+ * 合并后的 ZIP 写完并记入 {@link IncrementCatalog} 之后才删除被合并的增量，中途退出时由索引打开时对账清理。
+ * <p>
+ * 已提交但尚未送达的 HTTP 回调仍引用被合并的增量文件名，minAge 应大于回调可能延迟的时间。
+ */
+public class IncrementCompactor {
+    private final IncrementCatalog catalog;
+    private final File dir;
+    private final CompressionPolicy policy;
+    private final long window;
+    private long minAge;
+
+    /**
+     * 构造函数
+     *
+     * @param catalog 增量索引
+     * @param dir     增量目录
+     * @param window  时间窗口长度（毫秒）
+     * @param policy  压缩策略
+     */
+    public IncrementCompactor(IncrementCatalog catalog, File dir, long window, CompressionPolicy policy) {
+        this.catalog = catalog;
+        this.dir = dir;
+        this.window = Math.max(1, window);
+        this.minAge = this.window;
+        this.policy = policy;
+    }
+
+    /**
+     * 设置窗口结束后至少再经过多久才合并，默认与窗口长度相同
+     *
+     * @param minAge 最短间隔（毫秒）
+     */
+    public void setMinAge(long minAge) {
+        this.minAge = Math.max(0, minAge);
+    }
+
+    /**
+     * 合并所有已经过去的时间窗口
+     *
+     * @return 被合并掉的增量数
+     */
+    public int compact() {
+        long now = System.currentTimeMillis();
+        Map<Long, List<IncrementCatalog.Increment>> groups = new TreeMap<>();
+        for (IncrementCatalog.Increment increment : catalog.getIncrements()) {
+            long start = Math.floorDiv(increment.getFirstTimestamp(), window) * window;
+            if (increment.getLastTimestamp() < start + window && start + window + minAge <= now) {
+                groups.computeIfAbsent(start, key -> new ArrayList<>()).add(increment);
+            }
+        }
+
+        int merged = 0;
+        for (List<IncrementCatalog.Increment> group : groups.values()) {
+            if (group.size() < 2) {
+                continue;
+            }
+            try {
+                if (merge(group)) {
+                    merged += group.size();
+                }
+            } catch (IOException e) {
+                System.out.println("Error compacting increments " + group.get(0).getName() + " .. "
+                        + group.get(group.size() - 1).getName() + ": " + e.getMessage());
+            }
+        }
+        if (merged > 0) {
+            try {
+                catalog.rewrite();
+            } catch (IOException e) {
+                System.out.println("Error rewriting increment catalog: " + e.getMessage());
+            }
+            catalog.collectBlobs();
+        }
+        return merged;
+    }
+
+    /**
+     * 合并一个窗口内的增量
+     *
+     * @param group 窗口内的增量，按时间排序
+     * @return 是否已合并，窗口内的改名无法合并时返回 false
+     * @throws IOException 读取或写入失败，此时不删除任何增量
+     */
+    private boolean merge(List<IncrementCatalog.Increment> group) throws IOException {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        Map<String, List<IncrementCatalog.Version>> paths = new TreeMap<>();
+        for (IncrementCatalog.Increment increment : group) {
+            first = Math.min(first, increment.getFirstTimestamp());
+            last = Math.max(last, increment.getLastTimestamp());
+            for (IncrementCatalog.Version version : increment.getVersions()) {
+                paths.computeIfAbsent(version.getPath(), key -> new ArrayList<>()).add(version);
+            }
+        }
+        for (List<IncrementCatalog.Version> versions : paths.values()) {
+            versions.sort((a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+        }
+
+        File target = new File(dir, first + "-" + last + ".zip");
+        if (target.exists()) {
+            throw new IOException("Target already exists: " + target.getName());
+        }
+        Map<String, ZipFile> zips = new HashMap<>();
+        Map<String, Long> times = new LinkedHashMap<>();
+        IncrementArchive archive = null;
+        boolean finished = false;
+        try {
+            for (IncrementCatalog.Increment increment : group) {
+                zips.put(increment.getName(), new ZipFile(increment.getFile()));
+            }
+            if (!renamesMergeable(paths, zips)) {
+                System.out.println("Increments " + group.get(0).getName() + " .. " + group.get(group.size() - 1).getName()
+                        + " contain renames that cannot be merged, skipped.");
+                return false;
+            }
+            archive = new IncrementArchive(target, "", 4, policy);
+            for (Map.Entry<String, List<IncrementCatalog.Version>> entry : paths.entrySet()) {
+                String name = mergePath(entry.getKey(), entry.getValue(), zips, archive);
+                times.put(name, entry.getValue().get(entry.getValue().size() - 1).getTimestamp());
+            }
+            archive.finish();
+            finished = true;
+            catalog.addCompacted(target, group, archive.getEntries(), times);
+        } catch (IOException e) {
+            if (archive != null && !finished) {
+                try {
+                    archive.finish();
+                } catch (IOException ignored) {
+                }
+            }
+            target.delete();
+            throw e;
+        } finally {
+            for (ZipFile zip : zips.values()) {
+                zip.close();
+            }
+        }
+
+        long before = 0;
+        for (IncrementCatalog.Increment increment : group) {
+            before += increment.getFile().length();
+            if (!increment.getFile().delete()) {
+                System.out.println("Failed to delete merged increment: " + increment.getName());
+            }
+        }
+        System.out.println("Compacted " + group.size() + " increments (" + before + " bytes) into "
+                + target.getName() + " (" + target.length() + " bytes)");
+        return true;
+    }
+
+    /**
+     * 检查窗口内的改名在只保留各路径最新版本后是否仍能还原：改名必须是该路径在窗口内的最新版本，
+     * 且原路径在改名之后没有新版本
+     *
+     * @param paths 窗口内各路径的版本，按时间排序
+     * @param zips  已打开的增量 ZIP
+     * @return 是否可以合并
+     * @throws IOException 读取改名条目失败
+     */
+    private static boolean renamesMergeable(Map<String, List<IncrementCatalog.Version>> paths,
+                                            Map<String, ZipFile> zips) throws IOException {
+        for (List<IncrementCatalog.Version> versions : paths.values()) {
+            for (int i = 0; i < versions.size(); i++) {
+                IncrementCatalog.Version version = versions.get(i);
+                if (!version.isRename()) {
+                    continue;
+                }
+                if (i < versions.size() - 1) {
+                    return false;
+                }
+                String source = IncrementArchive.readRenameSource(zips.get(version.getIncrement().getName()),
+                        version.getEntryName());
+                List<IncrementCatalog.Version> sourceVersions = paths.get(source);
+                if (sourceVersions != null
+                        && sourceVersions.get(sourceVersions.size() - 1).getTimestamp() > version.getTimestamp()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把一个路径在窗口内的版本合并为一个条目写入归档
+     *
+     * @return 写入的条目名称
+     */
+    private String mergePath(String path, List<IncrementCatalog.Version> versions, Map<String, ZipFile> zips,
+                             IncrementArchive archive) throws IOException {
+        IncrementCatalog.Version latest = versions.get(versions.size() - 1);
+        if (latest.isBlob()) {
+            archive.addBlobReference(latest.getEntryName(), latest.getTimestamp(), latest.getBlob());
+            return latest.getEntryName();
+        }
+        if (!latest.isDelta() || versions.size() == 1) {
+            try (InputStream in = open(latest, zips)) {
+                archive.addEntry(latest.getEntryName(), latest.getTimestamp(), in);
+            }
+            return latest.getEntryName();
+        }
+
+        int full = versions.size() - 1;
+        while (full >= 0 && versions.get(full).isDelta()) {
+            full--;
+        }
+        List<File> temporary = new ArrayList<>();
+        try {
+            File current = temporaryFile(temporary);
+            if (full >= 0) {
+                // 从窗口内最后一个完整版本开始依次应用差异
+                try (InputStream in = open(versions.get(full), zips)) {
+                    Files.copy(in, current.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                for (int i = full + 1; i < versions.size(); i++) {
+                    File next = temporaryFile(temporary);
+                    try (InputStream delta = open(versions.get(i), zips);
+                         OutputStream out = new FileOutputStream(next)) {
+                        DeltaReader.reconstruct(current, delta, out);
+                    }
+                    current = next;
+                }
+                try (InputStream in = new FileInputStream(current)) {
+                    archive.addEntry(path, latest.getTimestamp(), in);
+                }
+                return path;
+            }
+
+            // 窗口内全是差异，合并为一个以窗口前版本为基准的差异
+            try (InputStream in = open(versions.get(0), zips)) {
+                Files.copy(in, current.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            for (int i = 1; i < versions.size(); i++) {
+                File next = temporaryFile(temporary);
+                try (InputStream composed = new FileInputStream(current);
+                     InputStream delta = open(versions.get(i), zips);
+                     OutputStream out = new FileOutputStream(next)) {
+                    DeltaComposer.compose(composed, delta, out, dir);
+                }
+                current = next;
+            }
+            try (InputStream in = new FileInputStream(current)) {
+                archive.addEntry(latest.getEntryName(), latest.getTimestamp(), in);
+            }
+            return latest.getEntryName();
+        } finally {
+            for (File file : temporary) {
+                file.delete();
+            }
+        }
+    }
+
+    private File temporaryFile(List<File> temporary) throws IOException {
+        File file = File.createTempFile(".compact-", ".tmp", dir);
+        temporary.add(file);
+        return file;
+    }
+
+    private InputStream open(IncrementCatalog.Version version, Map<String, ZipFile> zips) throws IOException {
+        if (version.isBlob()) {
+            return catalog.getBlobStore().open(version.getBlob());
+        }
+        ZipFile zip = zips.get(version.getIncrement().getName());
+        ZipEntry entry = zip.getEntry(version.getEntryName());
+        if (entry == null) {
+            throw new IOException("Entry " + version.getEntryName() + " missing from " + zip.getName());
+        }
+        return zip.getInputStream(entry);
+    }
+}
@@ -0,0 +1,318 @@
+package cn.org.agatha;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 按时间点从增量中还原目录树
+ * <p>
+ * 根据 {@link IncrementCatalog} 为每个路径找出不晚于指定时间的最新版本；该版本是块级差异时，
+ * 向前找到最近的完整版本，取出后依次应用各差异。需要用到的每个增量 ZIP 只打开一次（只读取其中央目录），
+ * 各路径在线程池中并行还原，互不依赖。
+ * <p>
+ * 去重引用条目是完整版本，内容从增量目录下的 {@link BlobStore} 读取。
+ * <p>
+ * 最新版本是改名条目时，按原路径在改名时刻的版本还原；改名时刻不晚于指定时间、此后又没有新版本的原路径不再还原。
+ * <p>
+ * 被合并的时间窗口内只保留了最新版本，还原到窗口内的时间点时得到的是窗口之前的版本；
+ * 窗口之前没有版本的路径（在窗口内新建）无法确定在该时间点是否已存在，按窗口内的最新版本还原，
+ * 逐个打印警告并在结果中统计，而不是悄悄略过。
+ */
+public class IncrementRestorer {
+    private static final int MAX_RENAME_DEPTH = 64; // 连续改名的最大追溯次数
+
+    private final IncrementCatalog catalog;
+    private final int threads;
+
+    /**
+     * 构造函数
+     *
+     * @param catalog 增量索引
+     * @param threads 并行还原的线程数
+     */
+    public IncrementRestorer(IncrementCatalog catalog, int threads) {
+        this.catalog = catalog;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * 还原指定时间点的目录树
+     *
+     * @param timestamp 时间点（毫秒），包含该时间写入的增量
+     * @param targetDir 还原到的目录，已有的同名文件被覆盖
+     * @param filter    只还原匹配的路径，为 null 时还原全部
+     * @return 还原成功的文件数
+     */
+    public int restore(long timestamp, File targetDir, PathPattern filter) {
+        // 增量 ZIP 在确定版本链时按需打开，之后只读取
+        Map<String, ZipFile> zips = new HashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "restore-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int restored = 0;
+        int failed = 0;
+        Set<String> windowed = new LinkedHashSet<>(); // 按合并窗口内的版本近似还原的路径
+        try {
+            Map<String, Long> renamedAway = renamedAway(timestamp, zips);
+
+            // 为每个路径确定版本链：最近的完整版本及其后的差异
+            Map<String, List<IncrementCatalog.Version>> chains = new LinkedHashMap<>();
+            for (String path : catalog.getPaths()) {
+                if (filter != null && !filter.matches("/" + path)) {
+                    continue;
+                }
+                Long renamed = renamedAway.get(path);
+                if (renamed != null && latestTimestamp(path, timestamp) <= renamed) {
+                    continue;
+                }
+                try {
+                    List<IncrementCatalog.Version> chain = chain(path, timestamp, zips, 0, windowed);
+                    if (chain != null) {
+                        chains.put(path, chain);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Cannot restore " + path + ", skipped: " + e.getMessage());
+                    failed++;
+                }
+            }
+            for (String path : windowed) {
+                System.out.println("Warning: " + path + " only has a version compacted over " + timestamp
+                        + ", restoring the latest version of that window");
+            }
+            System.out.println("Restoring " + chains.size() + " files from " + zips.size() + " increments");
+
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (Map.Entry<String, List<IncrementCatalog.Version>> chain : chains.entrySet()) {
+                futures.add(pool.submit(() -> restoreFile(chain.getKey(), chain.getValue(), zips, targetDir)));
+            }
+            for (Future<Boolean> future : futures) {
+                try {
+                    if (future.get()) {
+                        restored++;
+                    } else {
+                        failed++;
+                    }
+                } catch (ExecutionException e) {
+                    System.out.println("Error restoring file: " + e.getCause().getMessage());
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Restore interrupted.");
+        } finally {
+            pool.shutdownNow();
+            for (ZipFile zip : zips.values()) {
+                try {
+                    zip.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        System.out.println("Restored " + restored + " files to " + targetDir + ", " + failed + " failed"
+                + (windowed.isEmpty() ? "." : ", " + windowed.size() + " taken from compacted windows."));
+        return restored;
+    }
+
+    /**
+     * 找出在指定时间之前被改名移走的路径
+     *
+     * @param timestamp 时间点（毫秒）
+     * @param zips      已打开的增量 ZIP，按需加入
+     * @return 原路径到最后一次被移走的时间
+     */
+    private Map<String, Long> renamedAway(long timestamp, Map<String, ZipFile> zips) {
+        Map<String, Long> renamed = new HashMap<>();
+        for (String path : catalog.getPaths()) {
+            for (IncrementCatalog.Version version : catalog.getVersions(path)) {
+                if (!version.isRename() || version.getTimestamp() > timestamp) {
+                    continue;
+                }
+                try {
+                    String source = IncrementArchive.readRenameSource(zip(version, zips), version.getEntryName());
+                    renamed.merge(source, version.getTimestamp(), Math::max);
+                } catch (IOException e) {
+                    System.out.println("Error reading rename " + version.getEntryName() + ": " + e.getMessage());
+                }
+            }
+        }
+        return renamed;
+    }
+
+    private long latestTimestamp(String path, long timestamp) {
+        long latest = Long.MIN_VALUE;
+        for (IncrementCatalog.Version version : catalog.getVersions(path)) {
+            if (version.getTimestamp() <= timestamp) {
+                latest = Math.max(latest, version.getTimestamp());
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * 确定一个路径在指定时间的版本链，最近的完整版本是改名条目时接上原路径在改名时刻的版本链
+     * <p>
+     * 该时间之前没有版本、但最早的版本所在的合并增量覆盖了该时间时，窗口内的中间版本已被合并丢弃，
+     * 改用合并后的版本，并把路径记入 windowed。
+     *
+     * @param path      相对路径
+     * @param timestamp 时间点（毫秒）
+     * @param zips      已打开的增量 ZIP，按需加入
+     * @param depth     已追溯的改名次数
+     * @param windowed  按合并窗口内的版本近似还原的路径
+     * @return 完整版本及其后的差异，该时间之前没有任何版本时返回 null
+     * @throws IOException 版本链不完整或读取改名条目失败
+     */
+    private List<IncrementCatalog.Version> chain(String path, long timestamp, Map<String, ZipFile> zips, int depth,
+                                                 Set<String> windowed) throws IOException {
+        List<IncrementCatalog.Version> versions = catalog.getVersions(path);
+        int last = versions.size() - 1;
+        while (last >= 0 && versions.get(last).getTimestamp() > timestamp) {
+            last--;
+        }
+        if (last < 0) {
+            IncrementCatalog.Increment earliest = versions.isEmpty() ? null : versions.get(0).getIncrement();
+            if (earliest == null || !earliest.isCompacted() || earliest.getFirstTimestamp() > timestamp) {
+                return null;
+            }
+            last = 0;
+            windowed.add(path);
+        }
+        int full = last;
+        while (full >= 0 && versions.get(full).isDelta()) {
+            full--;
+        }
+        if (full < 0) {
+            throw new IOException("No full version to rebuild " + path + " from");
+        }
+        List<IncrementCatalog.Version> chain = new ArrayList<>();
+        IncrementCatalog.Version base = versions.get(full);
+        if (base.isRename()) {
+            if (depth >= MAX_RENAME_DEPTH) {
+                throw new IOException("Too many renames to follow for " + path);
+            }
+            String source = IncrementArchive.readRenameSource(zip(base, zips), base.getEntryName());
+            List<IncrementCatalog.Version> sourceChain = chain(source, base.getTimestamp(), zips, depth + 1,
+                    windowed);
+            if (sourceChain == null) {
+                throw new IOException("Rename source " + source + " has no version");
+            }
+            chain.addAll(sourceChain);
+            full++;
+        }
+        for (IncrementCatalog.Version version : versions.subList(full, last + 1)) {
+            if (!version.isBlob()) {
+                zip(version, zips);
+            }
+            chain.add(version);
+        }
+        return chain;
+    }
+
+    private ZipFile zip(IncrementCatalog.Version version, Map<String, ZipFile> zips) throws IOException {
+        IncrementCatalog.Increment increment = version.getIncrement();
+        ZipFile zip = zips.get(increment.getName());
+        if (zip == null) {
+            try {
+                zip = new ZipFile(increment.getFile());
+            } catch (IOException e) {
+                throw new IOException("Error opening increment " + increment.getName() + ": " + e.getMessage(), e);
+            }
+            zips.put(increment.getName(), zip);
+        }
+        return zip;
+    }
+
+    /**
+     * 还原一个路径：取出完整版本，再依次应用差异，最后改名为目标文件
+     *
+     * @param path      相对路径
+     * @param chain     完整版本及其后的差异
+     * @param zips      已打开的增量 ZIP
+     * @param targetDir 还原到的目录
+     * @return 是否成功
+     */
+    private boolean restoreFile(String path, List<IncrementCatalog.Version> chain, Map<String, ZipFile> zips,
+                                File targetDir) {
+        File target = new File(targetDir, path);
+        try {
+            if (!target.getCanonicalPath().startsWith(targetDir.getCanonicalPath() + File.separator)) {
+                System.out.println("Entry outside target directory, skipped: " + path);
+                return false;
+            }
+        } catch (IOException e) {
+            System.out.println("Error resolving " + path + ": " + e.getMessage());
+            return false;
+        }
+        File parent = target.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+
+        File current = new File(parent, "." + target.getName() + ".restore-0.tmp");
+        File next = new File(parent, "." + target.getName() + ".restore-1.tmp");
+        try {
+            try (InputStream in = open(chain.get(0), zips)) {
+                Files.copy(in, current.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            for (int i = 1; i < chain.size(); i++) {
+                try (InputStream delta = open(chain.get(i), zips);
+                     OutputStream out = new FileOutputStream(next)) {
+                    DeltaReader.reconstruct(current, delta, out);
+                }
+                File swap = current;
+                current = next;
+                next = swap;
+            }
+            try {
+                Files.move(current.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(current.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error restoring " + path + ": " + e.getMessage());
+            return false;
+        } finally {
+            current.delete();
+            next.delete();
+        }
+    }
+
+    private InputStream open(IncrementCatalog.Version version, Map<String, ZipFile> zips) throws IOException {
+        if (version.isBlob()) {
+            return catalog.getBlobStore().open(version.getBlob());
+        }
+        ZipFile zip = zips.get(version.getIncrement().getName());
+        if (zip == null) {
+            throw new IOException("Increment not available: " + version.getIncrement().getName());
+        }
+        ZipEntry entry = zip.getEntry(version.getEntryName());
+        if (entry == null) {
+            throw new IOException("Entry " + version.getEntryName() + " missing from " + zip.getName());
+        }
+        return zip.getInputStream(entry);
+    }
+}
@@ -0,0 +1,171 @@
+package cn.org.agatha;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 多任务配置文件中的一个同步任务
+ * <p>
+ * 配置文件为 UTF-8 的 properties 格式，每个任务的配置项以 "job.任务名." 开头，名称与命令行参数相同：
+ * <pre>
+ * runtime.threads=4
+ * runtime.metrics-port=9100
+ *
+ * job.site-a.ip=10.0.0.1
+ * job.site-a.port=21
+ * job.site-a.account=user
+ * job.site-a.pass=secret
+ * job.site-a.local=/data/site-a/
+ * job.site-a.increments=/data/site-a-inc
+ * job.site-a.callback=http://127.0.0.1:8080/cb
+ * job.site-a.interval=300
+ * job.site-a.connections=2
+ * </pre>
+ * 必须项为 ip、account、pass、local、increments，其余可选。"runtime." 开头的全局配置由 {@link JobRuntime} 读取。
+ */
+public class JobConfig {
+    private static final String PREFIX = "job.";
+
+    private final String name;
+    private final Properties properties;
+
+    private JobConfig(String name, Properties properties) {
+        this.name = name;
+        this.properties = properties;
+    }
+
+    /**
+     * 读取配置文件
+     *
+     * @param file 配置文件
+     * @return 配置文件的全部内容
+     * @throws IOException 读取失败
+     */
+    public static Properties read(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+        return properties;
+    }
+
+    /**
+     * 从配置中取出所有任务，缺少必须项的任务跳过
+     *
+     * @param properties 配置文件内容
+     * @return 任务列表，按任务名排序
+     */
+    public static List<JobConfig> parse(Properties properties) {
+        Set<String> names = new LinkedHashSet<>();
+        for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+            int dot = key.indexOf('.', PREFIX.length());
+            if (key.startsWith(PREFIX) && dot > PREFIX.length()) {
+                names.add(key.substring(PREFIX.length(), dot));
+            }
+        }
+        List<JobConfig> jobs = new ArrayList<>();
+        for (String name : names) {
+            Properties job = new Properties();
+            String prefix = PREFIX + name + ".";
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith(prefix)) {
+                    job.setProperty(key.substring(prefix.length()), properties.getProperty(key).trim());
+                }
+            }
+            JobConfig config = new JobConfig(name, job);
+            String missing = config.missingKey();
+            if (missing != null) {
+                System.out.println("Job " + name + " is missing '" + missing + "', skipped.");
+                continue;
+            }
+            jobs.add(config);
+        }
+        return jobs;
+    }
+
+    private String missingKey() {
+        for (String key : new String[]{"ip", "account", "pass", "local", "increments"}) {
+            if (getString(key, null) == null) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 获取字符串配置项
+     *
+     * @param key          配置项名称
+     * @param defaultValue 未配置时的默认值
+     * @return 配置值
+     */
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    /**
+     * 获取整数配置项，格式错误时使用默认值
+     *
+     * @param key          配置项名称
+     * @param defaultValue 未配置时的默认值
+     * @return 配置值
+     */
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Job " + name + ": invalid " + key + " '" + value + "', using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 获取布尔配置项
+     *
+     * @param key          配置项名称
+     * @param defaultValue 未配置时的默认值
+     * @return 配置值
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * 获取以逗号分隔的列表配置项
+     *
+     * @param key 配置项名称
+     * @return 配置值，未配置时为空列表
+     */
+    public List<String> getList(String key) {
+        List<String> values = new ArrayList<>();
+        String value = getString(key, null);
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
+    }
+}
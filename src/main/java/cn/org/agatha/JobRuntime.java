@@ -0,0 +1,292 @@
+package cn.org.agatha;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多任务运行时：在一个进程中按 {@link JobConfig} 同时同步多个 FTP 源
+ * <p>
+ * 所有任务的同步轮次在同一个固定大小的调度线程池中执行，线程数即同时进行的同步轮次上限；
+ * 到期的轮次超过线程数时排队，调度线程池按到期时间先后取出，等得最久的任务先执行，任何任务都不会被饿死。
+ * 每个任务的下一轮在本轮结束后才调度，单个任务不会占用多个线程。
+ * <p>
+ * 压缩线程池由所有任务共享；每个任务的 FTP 会话数由 connections 限制（并发下载和并发列目录各自不超过该值）。
+ * 全局限速 runtime.rate-limit 由所有任务共同分享，未设置时使用各任务自己的 rate-limit。
+ */
+public class JobRuntime implements AutoCloseable {
+    private final ScheduledExecutorService executor;
+    private final ExecutorService compressionPool;
+    private final int compressionThreads;
+    private final RateLimiter rateLimiter;
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private MetricsServer metricsServer;
+
+    /**
+     * 一个运行中的任务
+     */
+    private static class Job {
+        private final JobConfig config;
+        private final FtpManager ftpManager;
+        private final AutoEngine engine;
+
+        private Job(JobConfig config, FtpManager ftpManager, AutoEngine engine) {
+            this.config = config;
+            this.ftpManager = ftpManager;
+            this.engine = engine;
+        }
+    }
+
+    /**
+     * 构造函数，按 "runtime." 开头的全局配置创建共享线程池
+     * <ul>
+     *     <li>runtime.threads：同时进行的同步轮次上限，默认为 CPU 核数</li>
+     *     <li>runtime.compression-threads：共享压缩线程数，默认为 CPU 核数</li>
+     *     <li>runtime.rate-limit：所有任务共享的下载限速，格式同 --rate-limit</li>
+     *     <li>runtime.metrics-port：指标 HTTP 接口端口，各任务以任务名作为 job 标签</li>
+     * </ul>
+     *
+     * @param properties 配置文件内容
+     */
+    public JobRuntime(Properties properties) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int threads = (int) parseLong(properties, "runtime.threads", processors);
+        this.compressionThreads = (int) Math.max(1, parseLong(properties, "runtime.compression-threads", processors));
+        this.executor = newScheduler(Math.max(1, threads));
+        AtomicInteger workers = new AtomicInteger();
+        this.compressionPool = Executors.newFixedThreadPool(compressionThreads, runnable -> {
+            Thread thread = new Thread(runnable, "compression-worker-" + workers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        RateLimiter limiter = null;
+        String rateLimit = properties.getProperty("runtime.rate-limit");
+        if (rateLimit != null && !rateLimit.trim().isEmpty()) {
+            try {
+                limiter = RateLimiter.parse(rateLimit.trim());
+            } catch (RuntimeException e) {
+                System.out.println("Invalid runtime rate limit, downloads are not limited globally: " + e.getMessage());
+            }
+        }
+        this.rateLimiter = limiter;
+
+        int metricsPort = (int) parseLong(properties, "runtime.metrics-port", 0);
+        if (metricsPort > 0) {
+            try {
+                metricsServer = new MetricsServer(metricsPort);
+                System.out.println("Metrics available at http://127.0.0.1:" + metricsPort + "/metrics");
+            } catch (IOException e) {
+                System.out.println("Failed to start metrics server: " + e.getMessage());
+            }
+        }
+        System.out.println("Job runtime: " + threads + " sync threads, " + compressionThreads
+                + " compression threads");
+    }
+
+    private static ScheduledExecutorService newScheduler(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, "sync-job-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
+    private static long parseLong(Properties properties, String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid " + key + " '" + value + "', using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 创建任务并开始自动同步
+     *
+     * @param config 任务配置
+     * @return 是否成功，任务名重复时返回 false
+     */
+    public synchronized boolean addJob(JobConfig config) {
+        String name = config.getName();
+        if (jobs.containsKey(name)) {
+            System.out.println("Job " + name + " already exists.");
+            return false;
+        }
+        int connections = (int) Math.max(1, config.getLong("connections", 1));
+
+        FtpManager ftpManager = new FtpManager(config.getString("ip", null), (int) config.getLong("port", 21),
+                config.getString("account", null), config.getString("pass", null));
+        ftpManager.setCrawlThreads(connections);
+        ftpManager.setListingMode(config.getString("listing", "auto"));
+        ftpManager.setDownloadRetries((int) config.getLong("download-retries", 3));
+        ftpManager.setKeepAliveInterval(config.getLong("keepalive", 60));
+        ftpManager.setLocalIndex(config.getBoolean("local-index", false),
+                config.getLong("local-verify-interval", 3600));
+        ftpManager.setTransferCompression(config.getBoolean("mode-z", false));
+        if (config.getString("mode-z-skip", null) != null) {
+            ftpManager.setUncompressedExtensions(config.getList("mode-z-skip"));
+        }
+        String increments = config.getString("increments", null);
+        long fullListingInterval = config.getLong("full-listing-interval", 0);
+        if (fullListingInterval > 0) {
+            ftpManager.setListingSnapshot(new File(increments, ".listing.snapshot"), fullListingInterval);
+        }
+        try {
+            SyncFilter filter = new SyncFilter(config.getList("include"), config.getList("exclude"));
+            filter.setSizeRange(SyncFilter.parseSize(config.getString("min-size", "0")),
+                    SyncFilter.parseSize(config.getString("max-size", "0")));
+            filter.setAgeRange(SyncFilter.parseDuration(config.getString("min-age", "0")),
+                    SyncFilter.parseDuration(config.getString("max-age", "0")));
+            ftpManager.setFilter(filter);
+        } catch (NumberFormatException e) {
+            System.out.println("Job " + name + ": invalid filter, not started: " + e.getMessage());
+            return false;
+        }
+        String rateLimit = config.getString("rate-limit", null);
+        if (rateLimiter != null) {
+            ftpManager.setRateLimiter(rateLimiter);
+        } else if (rateLimit != null) {
+            try {
+                ftpManager.setRateLimiter(RateLimiter.parse(rateLimit));
+            } catch (RuntimeException e) {
+                System.out.println("Job " + name + ": invalid rate limit, downloads are not limited: "
+                        + e.getMessage());
+            }
+        }
+
+        AutoEngine engine = new AutoEngine(ftpManager, config.getString("local", null), increments,
+                config.getString("callback", null), executor);
+        engine.setCompressionPool(compressionPool, compressionThreads);
+        engine.setDownloadThreads(connections);
+        engine.setPipelineMode(config.getBoolean("pipeline", false));
+        engine.setSegmentedDownload(config.getLong("segment-threshold", 0) * 1024 * 1024,
+                (int) Math.min(connections, config.getLong("segments", 4)));
+        engine.setChangeDetection(config.getString("change-detection", "metadata"));
+        engine.setDeltaThreshold(config.getLong("delta-threshold", 0) * 1024 * 1024);
+        engine.setRenameDetection(config.getBoolean("detect-renames", false));
+        engine.setDeduplication(config.getBoolean("dedup", false));
+        engine.setCompaction(config.getLong("compact-window", 0) * 3600);
+        engine.setCallbackOptions((int) config.getLong("callback-batch", 20),
+                (int) config.getLong("callback-retries", 6));
+        String compressionLevel = config.getString("compression-level", null);
+        if (compressionLevel != null) {
+            engine.setCompressionLevel((int) config.getLong("compression-level", -1));
+        }
+        engine.getScheduler().setMode("rate".equalsIgnoreCase(config.getString("schedule-mode", "delay"))
+                ? SyncScheduler.Mode.FIXED_RATE : SyncScheduler.Mode.FIXED_DELAY);
+        engine.getScheduler().setIntervalRange(config.getLong("min-interval", 0), config.getLong("max-interval", 0));
+        engine.getScheduler().setJitter(config.getLong("jitter", 10) / 100.0);
+        switch (config.getString("transfer-order", "listing").toLowerCase()) {
+            case "small-first":
+                engine.getTransferScheduler().setOrder(TransferScheduler.Order.SMALL_FIRST);
+                break;
+            case "large-first":
+                engine.getTransferScheduler().setOrder(TransferScheduler.Order.LARGE_FIRST);
+                break;
+            default:
+                engine.getTransferScheduler().setOrder(TransferScheduler.Order.LISTING);
+        }
+        engine.getTransferScheduler().setPriorityPatterns(config.getList("priority"));
+
+        engine.getMetrics().registerMBean(name);
+        if (metricsServer != null) {
+            metricsServer.addJob(name, engine.getMetrics());
+        }
+        jobs.put(name, new Job(config, ftpManager, engine));
+
+        long interval = config.getLong("interval", 300);
+        engine.startAutoSync(interval);
+        System.out.println("Job " + name + " started: " + config.getString("ip", null) + " -> "
+                + config.getString("local", null) + ", interval " + interval + " seconds, "
+                + connections + " connections");
+        return true;
+    }
+
+    /**
+     * 获取所有任务名
+     *
+     * @return 任务名，按加入顺序
+     */
+    public synchronized List<String> getJobNames() {
+        return new ArrayList<>(jobs.keySet());
+    }
+
+    /**
+     * 获取任务的同步引擎
+     *
+     * @param name 任务名
+     * @return 同步引擎，任务不存在时返回 null
+     */
+    public synchronized AutoEngine getEngine(String name) {
+        Job job = jobs.get(name);
+        return job != null ? job.engine : null;
+    }
+
+    /**
+     * 输出各任务的运行状态
+     */
+    public synchronized void printStatus() {
+        for (Job job : jobs.values()) {
+            SyncMetrics metrics = job.engine.getMetrics();
+            System.out.println(job.config.getName() + ": "
+                    + (job.engine.getScheduler().isRunning() ? "running" : "stopped")
+                    + ", cycles " + metrics.getCycles() + " (" + metrics.getFailedCycles() + " failed)"
+                    + ", files synced " + metrics.getFilesSynced()
+                    + ", last cycle " + metrics.getLastCycleMillis() + " ms"
+                    + ", next interval " + metrics.getSyncIntervalMillis() / 1000 + " s");
+        }
+    }
+
+    /**
+     * 停止所有任务，等待正在执行的同步轮次结束后释放连接和线程
+     */
+    @Override
+    public void close() {
+        List<Job> running;
+        synchronized (this) {
+            running = new ArrayList<>(jobs.values());
+            jobs.clear();
+        }
+        for (Job job : running) {
+            job.engine.getScheduler().stop();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.MINUTES)) {
+                System.out.println("Sync cycles still running, giving up waiting.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Job job : running) {
+            job.engine.close();
+            job.ftpManager.disconnect();
+            if (metricsServer != null) {
+                metricsServer.removeJob(job.config.getName());
+            }
+        }
+        compressionPool.shutdownNow();
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package cn.org.agatha;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.IOException;
+
+/**
+ * 使用 LIST 命令逐目录列出，所有服务器都支持
+ */
+public class ListStrategy implements ListingStrategy {
+
+    @Override
+    public String getName() {
+        return "LIST";
+    }
+
+    @Override
+    public FTPFile[] listDirectory(FTPClient client, String directory) throws IOException {
+        return client.listFiles(directory);
+    }
+}
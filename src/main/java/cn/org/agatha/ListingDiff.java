@@ -0,0 +1,67 @@
+package cn.org.agatha;
+
+/**
+ * 归并比较本地和远程两个 {@link FileListing}
+ * <p>
+ * 两个列表先各自排序，再像归并排序一样同时向前扫描，每个路径只访问一次；
+ * 不需要为任何一侧建立按路径查找的哈希表，只在回调时为当前路径临时构造 {@link FileInfo}。
+ * 同一目录下的文件连续出现，目录路径的比较结果在整个目录内复用。
+ */
+public class ListingDiff {
+    /**
+     * 比较结果回调
+     */
+    public interface Visitor {
+        /**
+         * 访问一个路径
+         *
+         * @param local  本地文件信息，本地不存在时为 null
+         * @param remote 远程文件信息，远程不存在时为 null
+         */
+        void visit(FileInfo local, FileInfo remote);
+    }
+
+    private ListingDiff() {
+    }
+
+    /**
+     * 按路径顺序比较两个列表
+     *
+     * @param local   本地文件列表
+     * @param remote  远程文件列表
+     * @param visitor 结果回调，按排序后的路径顺序调用
+     */
+    public static void diff(FileListing local, FileListing remote, Visitor visitor) {
+        local.sort();
+        remote.sort();
+        int i = 0;
+        int j = 0;
+        String lastLocalDirectory = null;
+        String lastRemoteDirectory = null;
+        int directoryOrder = 0;
+        while (i < local.size() || j < remote.size()) {
+            int order;
+            if (i >= local.size()) {
+                order = 1;
+            } else if (j >= remote.size()) {
+                order = -1;
+            } else {
+                String localDirectory = local.directoryOf(i);
+                String remoteDirectory = remote.directoryOf(j);
+                if (localDirectory != lastLocalDirectory || remoteDirectory != lastRemoteDirectory) {
+                    directoryOrder = localDirectory.compareTo(remoteDirectory);
+                    lastLocalDirectory = localDirectory;
+                    lastRemoteDirectory = remoteDirectory;
+                }
+                order = directoryOrder != 0 ? directoryOrder : local.compareName(i, remote, j);
+            }
+            if (order < 0) {
+                visitor.visit(local.get(i++), null);
+            } else if (order > 0) {
+                visitor.visit(null, remote.get(j++));
+            } else {
+                visitor.visit(local.get(i++), remote.get(j++));
+            }
+        }
+    }
+}
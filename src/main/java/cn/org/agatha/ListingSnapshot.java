@@ -0,0 +1,242 @@
+package cn.org.agatha;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 远程目录列表快照，记录每个目录自身的修改时间及其条目
+ * <p>
+ * 爬取时如果某个目录的修改时间与上次快照一致，则直接复用快照中的条目而不再列出。
+ * 目录修改时间只反映其直接条目的变化，子目录内的变化不会体现在父目录上，所以复用只省去该目录自身的列表，
+ * 其子目录仍然逐个判断。子目录的修改时间来自本轮实际列出的父目录；父目录复用了快照时，快照中记录的子目录时间已经过期，
+ * 此时用 MLST 查询子目录自身的修改时间（见 {@link ListingStrategy#probeDirectory}），不支持时重新列出子目录。
+ * 目录修改时间只反映条目的增删改名，文件原地改写不会体现，所以按配置的间隔定期执行一次完整列表。
+ */
+public class ListingSnapshot {
+    private static final int MAGIC = 0x4C534E50; // "LSNP"
+    private static final int VERSION = 1;
+    // LIST 返回的时间戳通常只精确到分钟，目录在列出后的同一分钟内再次变化时时间戳不变，
+    // 因此只有列出时间与目录时间戳相差超过该值时才信任快照
+    private static final long PRECISION_SLACK_MILLIS = 120_000L;
+
+    private final File file;
+    private final Map<String, Listing> previous;
+    private final Map<String, Listing> current = new ConcurrentHashMap<>();
+    private final Map<String, Long> directoryTimestamps = new ConcurrentHashMap<>();
+    private final long lastFullListing;
+    private final boolean fullListing;
+    private final AtomicInteger listed = new AtomicInteger();
+    private final AtomicInteger reused = new AtomicInteger();
+    private final AtomicInteger probed = new AtomicInteger();
+
+    /**
+     * 单个目录的列表记录
+     */
+    private static class Listing {
+        private final long timestamp;
+        private final long listedAt;
+        private final FTPFile[] entries;
+
+        private Listing(long timestamp, long listedAt, FTPFile[] entries) {
+            this.timestamp = timestamp;
+            this.listedAt = listedAt;
+            this.entries = entries;
+        }
+    }
+
+    private ListingSnapshot(File file, Map<String, Listing> previous, long lastFullListing, long fullListingInterval) {
+        this.file = file;
+        this.previous = previous;
+        long now = System.currentTimeMillis();
+        this.fullListing = previous.isEmpty() || now - lastFullListing >= fullListingInterval * 1000;
+        this.lastFullListing = fullListing ? now : lastFullListing;
+    }
+
+    /**
+     * 加载快照文件，开始新一轮爬取
+     *
+     * @param file                快照文件
+     * @param fullListingInterval 完整列表的间隔（秒）
+     * @return 快照，文件不存在或损坏时返回空快照
+     */
+    public static ListingSnapshot load(File file, long fullListingInterval) {
+        Map<String, Listing> listings = new HashMap<>();
+        long lastFullListing = 0;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new GZIPInputStream(new FileInputStream(file))))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("unsupported snapshot format");
+                }
+                lastFullListing = in.readLong();
+                int directories = in.readInt();
+                for (int i = 0; i < directories; i++) {
+                    String path = in.readUTF();
+                    long timestamp = in.readLong();
+                    long listedAt = in.readLong();
+                    FTPFile[] entries = new FTPFile[in.readInt()];
+                    for (int j = 0; j < entries.length; j++) {
+                        entries[j] = readEntry(in);
+                    }
+                    listings.put(path, new Listing(timestamp, listedAt, entries));
+                }
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable listing snapshot: " + e.getMessage());
+                listings.clear();
+                lastFullListing = 0;
+            }
+        }
+        return new ListingSnapshot(file, listings, lastFullListing, fullListingInterval);
+    }
+
+    /**
+     * 本轮是否为完整列表
+     *
+     * @return 是否完整列表
+     */
+    public boolean isFullListing() {
+        return fullListing;
+    }
+
+    /**
+     * 记录本轮实际列出的父目录中看到的子目录修改时间，复用快照得到的条目不能用于此处
+     *
+     * @param directory 子目录路径，以 / 结尾
+     * @param timestamp 修改时间（毫秒），未知时为 -1
+     */
+    public void noteDirectory(String directory, long timestamp) {
+        directoryTimestamps.put(directory, timestamp);
+    }
+
+    /**
+     * 是否已知目录在本轮的修改时间
+     *
+     * @param directory 目录路径，以 / 结尾
+     * @return 是否已知
+     */
+    public boolean hasTimestamp(String directory) {
+        return directoryTimestamps.containsKey(directory);
+    }
+
+    /**
+     * 记录单独查询到的目录修改时间
+     *
+     * @param directory 目录路径，以 / 结尾
+     * @param timestamp 修改时间（毫秒），未知时为 -1
+     */
+    public void noteProbed(String directory, long timestamp) {
+        directoryTimestamps.put(directory, timestamp);
+        probed.incrementAndGet();
+    }
+
+    /**
+     * 查找可以复用的目录条目
+     *
+     * @param directory 目录路径，以 / 结尾
+     * @return 快照中的条目，目录已变化或不可信时返回 null
+     */
+    public FTPFile[] reuse(String directory) {
+        if (fullListing) {
+            return null;
+        }
+        Long timestamp = directoryTimestamps.get(directory);
+        Listing listing = previous.get(directory);
+        if (timestamp == null || timestamp < 0 || listing == null || listing.timestamp != timestamp
+                || listing.listedAt - timestamp < PRECISION_SLACK_MILLIS) {
+            return null;
+        }
+        current.put(directory, listing);
+        reused.incrementAndGet();
+        return listing.entries;
+    }
+
+    /**
+     * 记录实际列出的目录条目
+     *
+     * @param directory 目录路径，以 / 结尾
+     * @param entries   目录条目
+     */
+    public void record(String directory, FTPFile[] entries) {
+        long timestamp = directoryTimestamps.getOrDefault(directory, -1L);
+        current.put(directory, new Listing(timestamp, System.currentTimeMillis(), entries));
+        listed.incrementAndGet();
+    }
+
+    /**
+     * 将本轮爬取结果写回快照文件，仅应在爬取完整结束后调用
+     */
+    public void save() {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(temp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(lastFullListing);
+            out.writeInt(current.size());
+            for (Map.Entry<String, Listing> entry : current.entrySet()) {
+                Listing listing = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(listing.timestamp);
+                out.writeLong(listing.listedAt);
+                out.writeInt(listing.entries.length);
+                for (FTPFile ftpFile : listing.entries) {
+                    writeEntry(out, ftpFile);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error saving listing snapshot: " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                System.out.println("Error replacing listing snapshot: " + file);
+            }
+        }
+        System.out.println("Listing snapshot saved: " + listed.get() + " directories listed, "
+                + reused.get() + " reused" + (probed.get() > 0 ? ", " + probed.get() + " probed with MLST" : "")
+                + (fullListing ? " (full listing)" : ""));
+    }
+
+    private static void writeEntry(DataOutputStream out, FTPFile ftpFile) throws IOException {
+        out.writeUTF(ftpFile.getName());
+        out.writeByte(ftpFile.getType());
+        out.writeLong(ftpFile.getSize());
+        out.writeLong(ftpFile.getTimestamp() != null ? ftpFile.getTimestamp().getTimeInMillis() : -1);
+    }
+
+    private static FTPFile readEntry(DataInputStream in) throws IOException {
+        FTPFile ftpFile = new FTPFile();
+        ftpFile.setName(in.readUTF());
+        ftpFile.setType(in.readByte());
+        ftpFile.setSize(in.readLong());
+        long timestamp = in.readLong();
+        if (timestamp >= 0) {
+            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            calendar.setTimeInMillis(timestamp);
+            ftpFile.setTimestamp(calendar);
+        }
+        return ftpFile;
+    }
+}
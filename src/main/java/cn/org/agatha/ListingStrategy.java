@@ -0,0 +1,55 @@
+package cn.org.agatha;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+/**
+ * 远程目录列表策略
+ */
+public interface ListingStrategy {
+
+    /**
+     * 获取策略名称
+     *
+     * @return 策略名称
+     */
+    String getName();
+
+    /**
+     * 列出单个目录的直接条目
+     *
+     * @param client    FTP 会话
+     * @param directory 目录路径，以 / 结尾
+     * @return 目录条目
+     * @throws IOException 列目录过程中发生异常
+     */
+    FTPFile[] listDirectory(FTPClient client, String directory) throws IOException;
+
+    /**
+     * 查询目录自身的修改时间，不打开数据连接
+     *
+     * @param client    FTP 会话
+     * @param directory 目录路径，以 / 结尾
+     * @return 目录自身的信息，不支持或查询失败时返回 null
+     * @throws IOException 通信过程中发生异常
+     */
+    default FTPFile probeDirectory(FTPClient client, String directory) throws IOException {
+        return null;
+    }
+
+    /**
+     * 一次请求递归列出整棵子树，按目录逐个回调，父目录总是先于子目录回调
+     *
+     * @param client   FTP 会话
+     * @param root     起始目录，以 / 结尾
+     * @param consumer 目录回调，参数为目录路径（以 / 结尾）和该目录的条目
+     * @return 是否完成递归列表，返回 false 时调用方应改为逐目录列出
+     * @throws IOException 列目录过程中发生异常
+     */
+    default boolean listTree(FTPClient client, String root, BiConsumer<String, FTPFile[]> consumer) throws IOException {
+        return false;
+    }
+}
@@ -0,0 +1,376 @@
+package cn.org.agatha;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本地目录树的常驻索引，取代每轮同步对整个本地目录的递归遍历
+ * <p>
+ * 首次使用时并行遍历建立索引：每个目录用深度为 1 的 {@link Files#walkFileTree} 读取，文件属性随目录项一起返回，
+ * 子目录交给线程池并发读取，慢速磁盘上可以同时等待多个目录的 I/O。读取过的目录注册到 {@link WatchService}，
+ * 后台线程只把收到事件的目录标记为待更新，每轮 {@link #getListing()} 只重新读取这些目录；
+ * 新出现的子目录整棵读取，消失的子目录连同其下的目录一起移出索引。事件溢出时重新读取全部目录。
+ * <p>
+ * 事件可能丢失（网络文件系统、监视数达到系统上限等），每隔一段时间重新读取全部目录，并报告索引遗漏的变化。
+ * 无法监视时每轮都重新读取全部目录，仍然是并行遍历。刚发生的变化可能还没有送达，最晚在下一轮同步时反映。
+ * <p>
+ * 目录过滤规则在读取时应用，被排除的目录不读取也不监视；文件过滤规则（包括按修改时间的范围）在每次生成列表时应用。
+ */
+public class LocalIndex implements Closeable {
+    private static final int SCAN_THREADS = 8; // 并发读取目录的线程数，主要用于重叠磁盘 I/O 等待，与 CPU 数无关
+
+    private final Path root;
+    private final SyncFilter filter;
+    private final long verifyIntervalMillis;
+    private final Map<String, Directory> directories = new ConcurrentHashMap<>(); // 相对路径（以 / 开头和结尾）→ 目录内容
+    private final Map<WatchKey, String> watchKeys = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet(); // 收到事件、待重新读取的目录
+    private final ForkJoinPool pool = new ForkJoinPool(SCAN_THREADS);
+    private volatile boolean rescanAll = true; // 需要重新读取全部目录：尚未建立或事件溢出
+    private volatile WatchService watchService; // 为 null 时不监视
+    private volatile boolean watchUnavailable = false; // 无法监视，每轮完整读取
+    private long lastFullScan = 0;
+
+    /**
+     * 一个目录的内容，文件按名称排序
+     */
+    private static class Directory {
+        final String[] names;
+        final long[] sizes;
+        final long[] times;
+        final Set<String> subdirectories; // 未被过滤规则排除的子目录名
+        final WatchKey key;
+
+        Directory(String[] names, long[] sizes, long[] times, Set<String> subdirectories, WatchKey key) {
+            this.names = names;
+            this.sizes = sizes;
+            this.times = times;
+            this.subdirectories = subdirectories;
+            this.key = key;
+        }
+
+        boolean sameAs(Directory other) {
+            return Arrays.equals(names, other.names) && Arrays.equals(sizes, other.sizes)
+                    && Arrays.equals(times, other.times) && subdirectories.equals(other.subdirectories);
+        }
+    }
+
+    /**
+     * 构造函数，索引在第一次 {@link #getListing()} 时建立
+     *
+     * @param root                 本地同步目录
+     * @param filter               同步范围过滤规则，为 null 时包含所有文件
+     * @param verifyIntervalMillis 完整重新读取的间隔（毫秒），0 表示只在无法监视或事件溢出时重新读取
+     */
+    public LocalIndex(Path root, SyncFilter filter, long verifyIntervalMillis) {
+        this.root = root;
+        this.filter = filter;
+        this.verifyIntervalMillis = verifyIntervalMillis;
+    }
+
+    /**
+     * 获取索引对应的本地目录
+     *
+     * @return 本地同步目录
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * 更新收到事件的目录，生成本地文件列表
+     *
+     * @return 文件列表，路径以 / 开头、相对于本地目录
+     */
+    public synchronized FileListing getListing() {
+        FileListing fileList = new FileListing();
+        if (!Files.isDirectory(root)) {
+            System.out.println("Invalid directory: " + root);
+            return fileList;
+        }
+        startWatching();
+
+        long now = System.currentTimeMillis();
+        boolean initial = directories.isEmpty();
+        boolean verify = !initial && verifyIntervalMillis > 0 && now - lastFullScan >= verifyIntervalMillis;
+        boolean full = rescanAll || watchService == null || verify;
+        rescanAll = false;
+        Set<String> pending = new HashSet<>(dirty);
+        dirty.removeAll(pending);
+
+        long start = System.nanoTime();
+        AtomicInteger changed = new AtomicInteger();
+        if (full) {
+            // 验证时只统计事件没有反映出来的变化
+            pool.invoke(new ScanTask("/", true, verify ? pending : null, changed));
+            lastFullScan = now;
+        } else if (!pending.isEmpty()) {
+            List<ScanTask> tasks = new ArrayList<>();
+            for (String relative : pending) {
+                tasks.add(new ScanTask(relative, false, null, changed));
+            }
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+
+        int files = 0;
+        for (Map.Entry<String, Directory> entry : directories.entrySet()) {
+            String relative = entry.getKey();
+            Directory directory = entry.getValue();
+            for (int i = 0; i < directory.names.length; i++) {
+                if (filter == null || filter.includesFile(relative + directory.names[i], directory.sizes[i],
+                        directory.times[i])) {
+                    fileList.add(relative, directory.names[i], directory.sizes[i], directory.times[i]);
+                }
+            }
+            files += directory.names.length;
+        }
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        if (initial) {
+            System.out.println("Local index built: " + files + " files in " + directories.size() + " directories ("
+                    + elapsed + " ms)" + (watchService == null ? ", changes are not watched" : ""));
+        } else if (verify) {
+            System.out.println("Local index verified in " + elapsed + " ms" + (changed.get() > 0
+                    ? ", " + changed.get() + " directories had changes missed by the watcher" : ""));
+        }
+        return fileList;
+    }
+
+    /**
+     * 停止监视并释放线程
+     */
+    @Override
+    public synchronized void close() {
+        stopWatching();
+        pool.shutdownNow();
+    }
+
+    private void startWatching() {
+        if (watchService != null || watchUnavailable) {
+            return;
+        }
+        try {
+            WatchService service = root.getFileSystem().newWatchService();
+            watchService = service;
+            Thread thread = new Thread(() -> processEvents(service), "local-index-watch");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("Cannot watch local directory, scanning it every cycle: " + e.getMessage());
+            watchUnavailable = true;
+        }
+    }
+
+    private void stopWatching() {
+        WatchService service = watchService;
+        watchService = null;
+        watchKeys.clear();
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 后台线程：把收到事件的目录标记为待更新，不在这里读取磁盘
+     *
+     * @param service 监视服务
+     */
+    private void processEvents(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rescanAll = true;
+                }
+            }
+            String relative = watchKeys.get(key);
+            if (relative != null) {
+                dirty.add(relative);
+            }
+            if (!key.reset()) {
+                // 目录已被删除，重新读取时移出索引
+                watchKeys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * 注册目录的变化监视，失败（通常是监视数达到系统上限）时停止监视，之后每轮完整读取
+     *
+     * @param dir      目录
+     * @param relative 相对路径
+     * @return 监视键，不监视时为 null
+     */
+    private WatchKey watch(Path dir, String relative) {
+        WatchService service = watchService;
+        if (service == null) {
+            return null;
+        }
+        try {
+            WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchKeys.put(key, relative);
+            return key;
+        } catch (IOException | ClosedWatchServiceException | UnsupportedOperationException e) {
+            synchronized (watchKeys) {
+                if (watchService != null) {
+                    System.out.println("Cannot watch local directory " + dir + ", scanning it every cycle: "
+                            + e.getMessage());
+                    watchUnavailable = true;
+                    stopWatching();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 把一个目录及其下的所有目录移出索引
+     *
+     * @param relative 相对路径
+     */
+    private void removeTree(String relative) {
+        directories.keySet().removeIf(path -> {
+            if (!path.startsWith(relative)) {
+                return false;
+            }
+            Directory removed = directories.get(path);
+            if (removed != null && removed.key != null) {
+                removed.key.cancel();
+                watchKeys.remove(removed.key);
+            }
+            return true;
+        });
+    }
+
+    /**
+     * 读取一个目录，再并发读取需要读取的子目录
+     */
+    @SuppressWarnings("serial") // 任务只在本进程的线程池中执行，不会被序列化
+    private class ScanTask extends RecursiveAction {
+        private final String relative;
+        private final boolean recursive; // 是否重新读取已在索引中的子目录
+        private final Set<String> expected; // 验证时已收到事件的目录，为 null 时不统计
+        private final AtomicInteger changed;
+
+        ScanTask(String relative, boolean recursive, Set<String> expected, AtomicInteger changed) {
+            this.relative = relative;
+            this.recursive = recursive;
+            this.expected = expected;
+            this.changed = changed;
+        }
+
+        @Override
+        protected void compute() {
+            Path dir = "/".equals(relative) ? root : root.resolve(relative.substring(1));
+            Directory previous = directories.get(relative);
+            if (!Files.isDirectory(dir)) {
+                removeTree(relative);
+                return;
+            }
+            if (previous != null && previous.key != null && !previous.key.isValid()) {
+                // 目录被删除后又重新创建，原来的监视已经失效，整棵重新读取
+                removeTree(relative);
+                previous = null;
+            }
+            Directory current;
+            try {
+                current = read(dir, previous != null && previous.key != null ? previous.key : watch(dir, relative));
+            } catch (IOException e) {
+                System.out.println("Error reading local directory " + dir + ": " + e.getMessage());
+                return;
+            }
+            directories.put(relative, current);
+            if (expected != null && previous != null && !current.sameAs(previous) && !expected.contains(relative)) {
+                changed.incrementAndGet();
+            }
+
+            List<ScanTask> subtasks = new ArrayList<>();
+            for (String name : current.subdirectories) {
+                String subdirectory = relative + name + "/";
+                if (recursive || previous == null || !directories.containsKey(subdirectory)) {
+                    subtasks.add(new ScanTask(subdirectory, recursive, expected, changed));
+                }
+            }
+            if (previous != null) {
+                for (String name : previous.subdirectories) {
+                    if (!current.subdirectories.contains(name)) {
+                        removeTree(relative + name + "/");
+                    }
+                }
+            }
+            invokeAll(subtasks);
+        }
+
+        private Directory read(Path dir, WatchKey key) throws IOException {
+            TreeMap<String, BasicFileAttributes> files = new TreeMap<>();
+            Set<String> subdirectories = new HashSet<>();
+            // 深度为 1 时子目录也通过 visitFile 返回，属性随目录项一起读取
+            Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String name = file.getFileName().toString();
+                    if (!attrs.isDirectory()) {
+                        if (!FtpManager.isPartialName(name)) {
+                            files.put(name, attrs); // 未完成的下载不作为本地文件
+                        }
+                    } else if (filter == null || filter.includesDirectory(relative + name + "/")) {
+                        subdirectories.add(name); // 被排除的目录不再进入
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            String[] names = new String[files.size()];
+            long[] sizes = new long[names.length];
+            long[] times = new long[names.length];
+            int i = 0;
+            for (Map.Entry<String, BasicFileAttributes> entry : files.entrySet()) {
+                names[i] = entry.getKey();
+                sizes[i] = entry.getValue().size();
+                times[i] = entry.getValue().lastModifiedTime().toMillis();
+                i++;
+            }
+            return new Directory(names, sizes, times, subdirectories, key);
+        }
+    }
+}
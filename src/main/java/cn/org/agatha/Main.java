@@ -1,7 +1,15 @@
 package cn.org.agatha;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Properties;
 import java.util.Scanner;
 
 public class Main {
@@ -13,6 +21,43 @@ public class Main {
         String local = null;
         String increments = null;
         String callbackUrl = null; // 新增：回调地址
+        int threads = 1; // 并发下载会话数
+        int crawlThreads = 1; // 并发列目录会话数
+        long fullListingInterval = 0; // 完整列表间隔（秒），大于 0 时启用列表快照
+        String listingMode = "auto"; // 远程列表方式
+        boolean pipeline = false; // 边下载边写入增量 ZIP
+        Integer compressionLevel = null; // 增量 ZIP 压缩级别
+        Integer compressionThreads = null; // 增量 ZIP 压缩线程数
+        long segmentThreshold = 0; // 分段下载阈值（MB）
+        int segments = 4; // 单个文件的最大分段数
+        int downloadRetries = 3; // 单个文件下载的最大尝试次数
+        long keepAlive = 60; // 空闲 FTP 会话的保活间隔（秒），0 表示不保活
+        boolean modeZ = false; // 服务器支持时用 MODE Z 压缩传输
+        String modeZSkip = null; // 不使用 MODE Z 的扩展名，逗号分隔，null 表示默认列表
+        boolean localIndex = false; // 用常驻索引和目录监视代替每轮遍历本地目录
+        long localVerifyInterval = 3600; // 本地索引完整检查的间隔（秒）
+        String changeDetection = "metadata"; // 变更检测方式：timestamp / metadata / hash
+        long deltaThreshold = 0; // 差异阈值（MB），0 表示不启用
+        boolean detectRenames = false; // 检测远程改名和移动，在本地移动而不重新下载
+        boolean dedup = false; // 相同内容在增量目录中只保存一次
+        String scheduleMode = "delay"; // 自动同步调度方式：delay / rate
+        long minInterval = 0; // 自适应间隔下限（秒），0 表示与同步间隔相同
+        long maxInterval = 0; // 自适应间隔上限（秒），0 表示与同步间隔相同
+        int jitter = 10; // 间隔随机抖动（百分比）
+        int callbackBatch = 20; // 一次回调最多合并的增量数
+        int callbackRetries = 6; // 单次回调的最大尝试次数
+        int metricsPort = 0; // 指标 HTTP 接口端口，0 表示不启用
+        String rateLimit = null; // 下载限速（KB/s），可按时段设置
+        String transferOrder = "listing"; // 下载顺序：listing / small-first / large-first
+        List<String> priorityPatterns = new ArrayList<>(); // 优先下载的路径模式
+        long compactWindow = 0; // 合并增量的时间窗口（小时），0 表示不自动合并
+        String jobsFile = null; // 多任务配置文件，指定时忽略其余参数
+        List<String> includePatterns = new ArrayList<>(); // 只同步匹配的路径
+        List<String> excludePatterns = new ArrayList<>(); // 跳过匹配的路径和目录
+        long minSize = 0; // 文件大小下限（字节），0 表示不限
+        long maxSize = 0; // 文件大小上限（字节），0 表示不限
+        long minAge = 0; // 修改后至少经过的时间（毫秒），0 表示不限
+        long maxAge = 0; // 修改后至多经过的时间（毫秒），0 表示不限
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -45,11 +90,128 @@ public class Main {
                         }
                     }
                     break;
+                case "--threads":
+                    if (i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--crawl-threads":
+                    if (i + 1 < args.length) crawlThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "--full-listing-interval":
+                    if (i + 1 < args.length) fullListingInterval = Long.parseLong(args[++i]);
+                    break;
+                case "--listing":
+                    if (i + 1 < args.length) listingMode = args[++i];
+                    break;
+                case "--pipeline":
+                    pipeline = true;
+                    break;
+                case "--detect-renames":
+                    detectRenames = true;
+                    break;
+                case "--dedup":
+                    dedup = true;
+                    break;
+                case "--compression-level":
+                    if (i + 1 < args.length) compressionLevel = Integer.parseInt(args[++i]);
+                    break;
+                case "--compression-threads":
+                    if (i + 1 < args.length) compressionThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "--segment-threshold":
+                    if (i + 1 < args.length) segmentThreshold = Long.parseLong(args[++i]);
+                    break;
+                case "--segments":
+                    if (i + 1 < args.length) segments = Integer.parseInt(args[++i]);
+                    break;
+                case "--download-retries":
+                    if (i + 1 < args.length) downloadRetries = Integer.parseInt(args[++i]);
+                    break;
+                case "--keepalive":
+                    if (i + 1 < args.length) keepAlive = Long.parseLong(args[++i]);
+                    break;
+                case "--mode-z":
+                    modeZ = true;
+                    break;
+                case "--mode-z-skip":
+                    if (i + 1 < args.length) modeZSkip = args[++i];
+                    break;
+                case "--local-index":
+                    localIndex = true;
+                    break;
+                case "--local-verify-interval":
+                    if (i + 1 < args.length) localVerifyInterval = Long.parseLong(args[++i]);
+                    break;
+                case "--delta-threshold":
+                    if (i + 1 < args.length) deltaThreshold = Long.parseLong(args[++i]);
+                    break;
+                case "--schedule-mode":
+                    if (i + 1 < args.length) scheduleMode = args[++i];
+                    break;
+                case "--min-interval":
+                    if (i + 1 < args.length) minInterval = Long.parseLong(args[++i]);
+                    break;
+                case "--max-interval":
+                    if (i + 1 < args.length) maxInterval = Long.parseLong(args[++i]);
+                    break;
+                case "--jitter":
+                    if (i + 1 < args.length) jitter = Integer.parseInt(args[++i]);
+                    break;
+                case "--callback-batch":
+                    if (i + 1 < args.length) callbackBatch = Integer.parseInt(args[++i]);
+                    break;
+                case "--callback-retries":
+                    if (i + 1 < args.length) callbackRetries = Integer.parseInt(args[++i]);
+                    break;
+                case "--change-detection":
+                    if (i + 1 < args.length) changeDetection = args[++i];
+                    break;
+                case "--metrics-port":
+                    if (i + 1 < args.length) metricsPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate-limit":
+                    if (i + 1 < args.length) rateLimit = args[++i];
+                    break;
+                case "--transfer-order":
+                    if (i + 1 < args.length) transferOrder = args[++i];
+                    break;
+                case "--priority": // 可重复，先出现的模式优先级更高
+                    if (i + 1 < args.length) priorityPatterns.add(args[++i]);
+                    break;
+                case "--compact-window":
+                    if (i + 1 < args.length) compactWindow = Long.parseLong(args[++i]);
+                    break;
+                case "--jobs":
+                    if (i + 1 < args.length) jobsFile = args[++i];
+                    break;
+                case "--include": // 可重复
+                    if (i + 1 < args.length) includePatterns.add(args[++i]);
+                    break;
+                case "--exclude": // 可重复
+                    if (i + 1 < args.length) excludePatterns.add(args[++i]);
+                    break;
+                case "--min-size":
+                    if (i + 1 < args.length) minSize = SyncFilter.parseSize(args[++i]);
+                    break;
+                case "--max-size":
+                    if (i + 1 < args.length) maxSize = SyncFilter.parseSize(args[++i]);
+                    break;
+                case "--min-age":
+                    if (i + 1 < args.length) minAge = SyncFilter.parseDuration(args[++i]);
+                    break;
+                case "--max-age":
+                    if (i + 1 < args.length) maxAge = SyncFilter.parseDuration(args[++i]);
+                    break;
                 default:
                     System.out.println("Unknown argument: " + args[i]);
             }
         }
 
+        if (jobsFile != null) {
+            runJobs(jobsFile);
+            System.out.println("Program exited.");
+            return;
+        }
+
         // 输出参数值（不包括密码）
         System.out.println("IP: " + ip);
         System.out.println("Account: " + account);
@@ -57,14 +219,109 @@ public class Main {
         System.out.println("Local: " + local);
         System.out.println("Increments: " + increments);
         System.out.println("Callback URL: " + callbackUrl); // 输出回调地址
+        System.out.println("Threads: " + threads);
+        System.out.println("Crawl Threads: " + crawlThreads);
+        System.out.println("Full Listing Interval: " + fullListingInterval);
+        System.out.println("Listing Mode: " + listingMode);
+        System.out.println("Keepalive (seconds): " + keepAlive);
+        System.out.println("MODE Z: " + modeZ);
+        System.out.println("MODE Z Skip: " + (modeZSkip != null ? modeZSkip : "default"));
+        System.out.println("Local Index: " + localIndex);
+        System.out.println("Local Verify Interval (seconds): " + localVerifyInterval);
+        System.out.println("Pipeline: " + pipeline);
+        System.out.println("Compression Level: " + compressionLevel);
+        System.out.println("Compression Threads: " + compressionThreads);
+        System.out.println("Segment Threshold (MB): " + segmentThreshold);
+        System.out.println("Change Detection: " + changeDetection);
+        System.out.println("Delta Threshold (MB): " + deltaThreshold);
+        System.out.println("Detect Renames: " + detectRenames);
+        System.out.println("Deduplicate: " + dedup);
+        System.out.println("Schedule Mode: " + scheduleMode);
+        System.out.println("Interval Range: " + minInterval + " - " + maxInterval);
+        System.out.println("Jitter (%): " + jitter);
+        System.out.println("Callback Batch: " + callbackBatch);
+        System.out.println("Callback Retries: " + callbackRetries);
+        System.out.println("Metrics Port: " + metricsPort);
+        System.out.println("Rate Limit (KB/s): " + rateLimit);
+        System.out.println("Transfer Order: " + transferOrder);
+        System.out.println("Priority Patterns: " + priorityPatterns);
+        System.out.println("Compact Window (hours): " + compactWindow);
+
+        SyncFilter filter = new SyncFilter(includePatterns, excludePatterns);
+        filter.setSizeRange(minSize, maxSize);
+        filter.setAgeRange(minAge, maxAge);
+        System.out.println("Filter: " + filter);
 
         // 创建 FTP 管理器并连接
         FtpManager ftpManager = new FtpManager(ip, port, account, pass);
+        ftpManager.setFilter(filter);
+        ftpManager.setLocalIndex(localIndex, localVerifyInterval);
+        ftpManager.setCrawlThreads(crawlThreads);
+        ftpManager.setListingMode(listingMode);
+        ftpManager.setDownloadRetries(downloadRetries);
+        ftpManager.setKeepAliveInterval(keepAlive);
+        ftpManager.setTransferCompression(modeZ);
+        if (modeZSkip != null) {
+            ftpManager.setUncompressedExtensions(Arrays.asList(modeZSkip.split(",")));
+        }
+        if (rateLimit != null) {
+            try {
+                ftpManager.setRateLimiter(RateLimiter.parse(rateLimit));
+            } catch (RuntimeException e) {
+                System.out.println("Invalid rate limit, downloads are not limited: " + e.getMessage());
+            }
+        }
+        if (fullListingInterval > 0 && increments != null) {
+            ftpManager.setListingSnapshot(new File(increments, ".listing.snapshot"), fullListingInterval);
+        }
         if (ftpManager.connect()) {
             System.out.println("FTP connection established.");
 
             // 创建 AutoEngine 实例，传入回调地址
             AutoEngine autoEngine = new AutoEngine(ftpManager, local, increments, callbackUrl);
+            autoEngine.setDownloadThreads(threads);
+            autoEngine.setPipelineMode(pipeline);
+            autoEngine.setSegmentedDownload(segmentThreshold * 1024 * 1024, segments);
+            autoEngine.setChangeDetection(changeDetection);
+            autoEngine.setDeltaThreshold(deltaThreshold * 1024 * 1024);
+            autoEngine.setRenameDetection(detectRenames);
+            autoEngine.setDeduplication(dedup);
+            autoEngine.getScheduler().setMode("rate".equalsIgnoreCase(scheduleMode)
+                    ? SyncScheduler.Mode.FIXED_RATE : SyncScheduler.Mode.FIXED_DELAY);
+            autoEngine.getScheduler().setIntervalRange(minInterval, maxInterval);
+            autoEngine.getScheduler().setJitter(jitter / 100.0);
+            autoEngine.setCallbackOptions(callbackBatch, callbackRetries);
+            switch (transferOrder.toLowerCase()) {
+                case "small-first":
+                    autoEngine.getTransferScheduler().setOrder(TransferScheduler.Order.SMALL_FIRST);
+                    break;
+                case "large-first":
+                    autoEngine.getTransferScheduler().setOrder(TransferScheduler.Order.LARGE_FIRST);
+                    break;
+                default:
+                    autoEngine.getTransferScheduler().setOrder(TransferScheduler.Order.LISTING);
+            }
+            autoEngine.getTransferScheduler().setPriorityPatterns(priorityPatterns);
+            autoEngine.setCompaction(compactWindow * 3600);
+            if (compressionLevel != null) {
+                autoEngine.setCompressionLevel(compressionLevel);
+            }
+            if (compressionThreads != null) {
+                autoEngine.setCompressionThreads(compressionThreads);
+            }
+
+            // 指标注册到 JMX，指定端口时同时提供 Prometheus 格式的本地 HTTP 接口
+            autoEngine.getMetrics().registerMBean("default");
+            MetricsServer metricsServer = null;
+            if (metricsPort > 0) {
+                try {
+                    metricsServer = new MetricsServer(metricsPort);
+                    metricsServer.addJob("default", autoEngine.getMetrics());
+                    System.out.println("Metrics available at http://127.0.0.1:" + metricsPort + "/metrics");
+                } catch (IOException e) {
+                    System.out.println("Failed to start metrics server: " + e.getMessage());
+                }
+            }
 
             // 监听用户输入
             Scanner scanner = new Scanner(System.in);
@@ -74,6 +331,8 @@ public class Main {
             System.out.println("Type 'sync' to synchronize files.");
             System.out.println("Type 'auto start <interval>' to start auto sync.");
             System.out.println("Type 'auto stop' to stop auto sync.");
+            System.out.println("Type 'compact [hours]' to merge increments older than the window.");
+            System.out.println("Type 'restore <time> <dir> [pattern]' to rebuild the tree as of a time.");
 
             while (true) {
                 String input = scanner.nextLine();
@@ -114,6 +373,33 @@ public class Main {
                     } else {
                         System.out.println("Usage: auto start <interval>");
                     }
+                } else if (input.toLowerCase().startsWith("compact")) {
+                    // 合并增量，未指定窗口时使用启动参数，均未指定时按天合并
+                    String[] parts = input.split("\\s+");
+                    try {
+                        long hours = parts.length == 2 ? Long.parseLong(parts[1])
+                                : compactWindow > 0 ? compactWindow : 24;
+                        int merged = autoEngine.compactIncrements(hours * 3600);
+                        System.out.println("Merged " + merged + " increments.");
+                    } catch (NumberFormatException e) {
+                        System.out.println("Usage: compact [hours]");
+                    }
+                } else if (input.toLowerCase().startsWith("restore")) {
+                    // 时间可以是毫秒时间戳或本地时间 yyyy-MM-ddTHH:mm:ss
+                    String[] parts = input.split("\\s+");
+                    if (parts.length == 3 || parts.length == 4) {
+                        try {
+                            long time = parts[1].matches("\\d+") ? Long.parseLong(parts[1])
+                                    : LocalDateTime.parse(parts[1]).atZone(ZoneId.systemDefault())
+                                    .toInstant().toEpochMilli();
+                            PathPattern pattern = parts.length == 4 ? PathPattern.compile(parts[3]) : null;
+                            autoEngine.restore(time, parts[2], pattern);
+                        } catch (DateTimeParseException e) {
+                            System.out.println("Invalid time: " + parts[1]);
+                        }
+                    } else {
+                        System.out.println("Usage: restore <time> <dir> [pattern]");
+                    }
                 } else if ("auto stop".equalsIgnoreCase(input)) {
                     // 停止自动同步
                     autoEngine.stopAutoSync(); // 调用 AutoEngine 的 stopAutoSync 方法
@@ -124,6 +410,11 @@ public class Main {
             }
 
             // 关闭 FTP 连接
+            autoEngine.stopAutoSync();
+            autoEngine.close();
+            if (metricsServer != null) {
+                metricsServer.close();
+            }
             ftpManager.disconnect();
             System.out.println("FTP connection closed.");
         } else {
@@ -133,4 +424,54 @@ public class Main {
         // 关闭程序
         System.out.println("Program exited.");
     }
-}
\ No newline at end of file
+
+    /**
+     * 多任务模式：按配置文件同时同步多个 FTP 源
+     *
+     * @param jobsFile 多任务配置文件
+     */
+    private static void runJobs(String jobsFile) {
+        System.out.println("Jobs File: " + jobsFile);
+        Properties properties;
+        try {
+            properties = JobConfig.read(new File(jobsFile));
+        } catch (IOException e) {
+            System.out.println("Failed to read jobs file: " + e.getMessage());
+            return;
+        }
+        List<JobConfig> configs = JobConfig.parse(properties);
+        if (configs.isEmpty()) {
+            System.out.println("No jobs configured.");
+            return;
+        }
+
+        JobRuntime runtime = new JobRuntime(properties);
+        for (JobConfig config : configs) {
+            runtime.addJob(config);
+        }
+
+        // 监听用户输入
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("Type 'stop' to exit the program.");
+        System.out.println("Type 'status' to show all jobs.");
+        System.out.println("Type 'sync <job>' to synchronize one job now.");
+        while (scanner.hasNextLine()) {
+            String input = scanner.nextLine().trim();
+            if ("stop".equalsIgnoreCase(input)) {
+                break;
+            } else if ("status".equalsIgnoreCase(input)) {
+                runtime.printStatus();
+            } else if (input.toLowerCase().startsWith("sync ")) {
+                AutoEngine engine = runtime.getEngine(input.substring(5).trim());
+                if (engine != null) {
+                    engine.syncFiles();
+                } else {
+                    System.out.println("Unknown job. Jobs: " + runtime.getJobNames());
+                }
+            } else {
+                System.out.println("Unknown command: " + input);
+            }
+        }
+        runtime.close();
+    }
+}
@@ -0,0 +1,68 @@
+package cn.org.agatha;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 比较文件大小和毫秒级修改时间
+ * <p>
+ * 大小不同一定需要下载；大小相同时，远程修改时间晚于本地超过容差才下载。
+ * 下载完成后本地文件的修改时间会设为远程修改时间，因此比较的两端都来自服务器时钟，
+ * 不会因为两端时钟或时区不一致而反复下载；MLSD 提供的精确时间还能发现同一秒内的改写。
+ * 容差取本地文件系统能保存的时间精度，避免写入后被截断的毫秒部分造成误判。
+ */
+public class MetadataChangeDetector implements ChangeDetector {
+    private final long toleranceMillis;
+
+    /**
+     * 构造函数
+     *
+     * @param toleranceMillis 修改时间的比较容差（毫秒）
+     */
+    public MetadataChangeDetector(long toleranceMillis) {
+        this.toleranceMillis = toleranceMillis;
+    }
+
+    @Override
+    public String getName() {
+        return "metadata (tolerance " + toleranceMillis + " ms)";
+    }
+
+    @Override
+    public boolean hasChanged(FileInfo local, FileInfo remote, File localFile) {
+        if (local == null) {
+            return true;
+        }
+        if (remote.getSize() >= 0 && local.getSize() >= 0 && remote.getSize() != local.getSize()) {
+            return true;
+        }
+        return remote.getModifiedTime() > local.getModifiedTime() + toleranceMillis;
+    }
+
+    /**
+     * 探测本地文件系统保存修改时间的精度
+     *
+     * @param directory 本地目录
+     * @return 精度（毫秒），0 表示能精确保存毫秒，无法探测时按 1 秒处理
+     */
+    public static long probeTimestampPrecision(File directory) {
+        File probe = null;
+        try {
+            directory.mkdirs();
+            probe = File.createTempFile(".incsync-mtime", ".tmp", directory);
+            // 选一个奇数秒加 999 毫秒的时间，秒级和两秒级的文件系统都会截断出明显差值
+            long time = System.currentTimeMillis() / 10000 * 10000 - 10000 + 1999;
+            if (!probe.setLastModified(time)) {
+                return 1000;
+            }
+            long difference = Math.abs(time - probe.lastModified());
+            return difference == 0 ? 0 : (difference + 999) / 1000 * 1000;
+        } catch (IOException e) {
+            return 1000;
+        } finally {
+            if (probe != null) {
+                probe.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package cn.org.agatha;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地 HTTP 指标接口，以 Prometheus 文本格式在 /metrics 输出各同步任务的 {@link SyncMetrics}
+ * <p>
+ * 默认只监听回环地址，由本机的 Prometheus 或 node exporter 采集。构造时即注册处理器并开始监听，因此不允许继承。
+ */
+public final class MetricsServer implements AutoCloseable {
+    private final HttpServer server;
+    private final Map<String, SyncMetrics> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * 构造函数，立即开始监听
+     *
+     * @param port 监听端口
+     * @throws IOException 端口无法监听
+     */
+    public MetricsServer(int port) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * 构造函数，立即开始监听
+     *
+     * @param address 监听地址
+     * @throws IOException 端口无法监听
+     */
+    public MetricsServer(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+    }
+
+    /**
+     * 添加一个同步任务的指标
+     *
+     * @param job     任务名，作为 job 标签
+     * @param metrics 指标
+     */
+    public void addJob(String job, SyncMetrics metrics) {
+        jobs.put(job, metrics);
+    }
+
+    /**
+     * 移除一个同步任务的指标
+     *
+     * @param job 任务名
+     */
+    public void removeJob(String job) {
+        jobs.remove(job);
+    }
+
+    /**
+     * 获取实际监听的端口
+     *
+     * @return 端口
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    /**
+     * 生成 Prometheus 文本格式的指标，同名指标的各任务样本写在一起
+     *
+     * @return 指标文本
+     */
+    String render() {
+        StringBuilder out = new StringBuilder();
+        for (SyncMetrics.Metric metric : SyncMetrics.Metric.values()) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            for (Map.Entry<String, SyncMetrics> job : jobs.entrySet()) {
+                out.append(metric.name).append("{job=\"").append(escapeLabel(job.getKey())).append("\"} ")
+                        .append(metric.value(job.getValue())).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,35 @@
+package cn.org.agatha;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.IOException;
+
+/**
+ * 使用 MLSD 命令逐目录列出，返回格式统一且 modify 时间精确到秒以下（UTC）
+ */
+public class MlsdStrategy implements ListingStrategy {
+
+    @Override
+    public String getName() {
+        return "MLSD";
+    }
+
+    @Override
+    public FTPFile[] listDirectory(FTPClient client, String directory) throws IOException {
+        // 过滤代表当前目录和上级目录的 cdir / pdir 条目
+        return client.mlistDir(directory, file -> {
+            if (file == null) {
+                return false;
+            }
+            String raw = file.getRawListing() != null ? file.getRawListing().toLowerCase() : "";
+            return !raw.contains("type=cdir") && !raw.contains("type=pdir");
+        });
+    }
+
+    @Override
+    public FTPFile probeDirectory(FTPClient client, String directory) throws IOException {
+        // MLST 的结果在控制连接上返回，比列出整个目录便宜得多
+        return client.mlistFile(directory);
+    }
+}
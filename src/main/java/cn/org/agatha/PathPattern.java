@@ -0,0 +1,121 @@
+package cn.org.agatha;
+
+import java.util.regex.Pattern;
+
+/**
+ * 远程路径的通配符模式，编译为正则表达式后复用
+ * <ul>
+ *     <li>{@code *} 匹配不含 / 的任意字符，{@code ?} 匹配不是 / 的单个字符</li>
+ *     <li>{@code **} 匹配任意层目录，例如 {@code /conf/**} 或 {@code **}{@code /*.yml}</li>
+ *     <li>{@code {a,b}} 匹配其中任意一个</li>
+ *     <li>不含 / 的模式只匹配文件名，例如 {@code *.conf} 匹配任意目录下的 .conf 文件</li>
+ * </ul>
+ */
+public class PathPattern {
+    private final String glob;
+    private final Pattern regex;
+    private final boolean nameOnly;
+
+    private PathPattern(String glob, Pattern regex, boolean nameOnly) {
+        this.glob = glob;
+        this.regex = regex;
+        this.nameOnly = nameOnly;
+    }
+
+    /**
+     * 编译通配符模式
+     *
+     * @param glob 通配符模式
+     * @return 路径模式
+     */
+    public static PathPattern compile(String glob) {
+        boolean nameOnly = glob.indexOf('/') < 0;
+        String path = nameOnly || glob.startsWith("/") ? glob : "/" + glob;
+        return new PathPattern(glob, Pattern.compile(toRegex(path)), nameOnly);
+    }
+
+    /**
+     * 判断路径是否匹配
+     *
+     * @param path 以 / 开头的远程路径
+     * @return 是否匹配
+     */
+    public boolean matches(String path) {
+        String target = nameOnly ? path.substring(path.lastIndexOf('/') + 1) : path;
+        return regex.matcher(target).matches();
+    }
+
+    /**
+     * 是否只匹配文件名
+     *
+     * @return 模式中不含 / 时为 true
+     */
+    boolean isNameOnly() {
+        return nameOnly;
+    }
+
+    /**
+     * 获取编译后的正则表达式，用于把多个模式合并为一个
+     *
+     * @return 正则表达式
+     */
+    String getRegex() {
+        return regex.pattern();
+    }
+
+    @Override
+    public String toString() {
+        return glob;
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int braces = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                            // "**/" 也匹配零层目录
+                            i++;
+                            regex.append("(?:.*/)?");
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '{':
+                    braces++;
+                    regex.append("(?:");
+                    break;
+                case '}':
+                    if (braces > 0) {
+                        braces--;
+                        regex.append(')');
+                    } else {
+                        regex.append("\\}");
+                    }
+                    break;
+                case ',':
+                    regex.append(braces > 0 ? "|" : ",");
+                    break;
+                default:
+                    if ("\\.[]()^$+|".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+            }
+        }
+        for (; braces > 0; braces--) {
+            regex.append(')');
+        }
+        return regex.toString();
+    }
+}
@@ -0,0 +1,139 @@
+package cn.org.agatha;
+
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 全局下载限速（令牌桶），所有下载会话和分段共用同一个桶
+ * <p>
+ * 速率可以按一天中的时段设置，例如 "08:00-20:00=512,2048" 表示白天限速 512KB/s，其余时间 2048KB/s；
+ * 时段可以跨零点（"22:00-06:00=0"），速率 0 表示不限速。令牌桶最多积累一秒的令牌，
+ * 空闲后恢复传输时的突发不超过一秒的配额。
+ * <p>
+ * 调用方在写入每块数据前获取令牌，令牌不足时在当前线程休眠，通过 TCP 流控让服务器放慢发送。
+ */
+public class RateLimiter {
+    private final long defaultRate;
+    private final List<Window> windows;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long currentRate = -1;
+
+    /**
+     * 一个时段的速率
+     */
+    private static class Window {
+        private final LocalTime start;
+        private final LocalTime end;
+        private final long rate;
+
+        private Window(LocalTime start, LocalTime end, long rate) {
+            this.start = start;
+            this.end = end;
+            this.rate = rate;
+        }
+
+        private boolean contains(LocalTime time) {
+            return start.isBefore(end)
+                    ? !time.isBefore(start) && time.isBefore(end)
+                    : !time.isBefore(start) || time.isBefore(end);
+        }
+    }
+
+    /**
+     * 构造函数，固定速率
+     *
+     * @param bytesPerSecond 每秒字节数，0 表示不限速
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, new ArrayList<>());
+    }
+
+    private RateLimiter(long defaultRate, List<Window> windows) {
+        this.defaultRate = defaultRate;
+        this.windows = windows;
+    }
+
+    /**
+     * 解析限速配置，逗号分隔，"HH:mm-HH:mm=KB/s" 为时段速率，单独的数字为其余时间的速率
+     *
+     * @param spec 限速配置
+     * @return 限速器
+     * @throws IllegalArgumentException 配置格式错误
+     */
+    public static RateLimiter parse(String spec) {
+        long defaultRate = 0;
+        List<Window> windows = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) {
+                continue;
+            }
+            int equals = part.indexOf('=');
+            if (equals < 0) {
+                defaultRate = Long.parseLong(part) * 1024;
+                continue;
+            }
+            String[] range = part.substring(0, equals).split("-");
+            if (range.length != 2) {
+                throw new IllegalArgumentException("Invalid rate limit window: " + part);
+            }
+            windows.add(new Window(LocalTime.parse(range[0].trim()), LocalTime.parse(range[1].trim()),
+                    Long.parseLong(part.substring(equals + 1).trim()) * 1024));
+        }
+        return new RateLimiter(defaultRate, windows);
+    }
+
+    /**
+     * 获取当前时段的速率
+     *
+     * @return 每秒字节数，0 表示不限速
+     */
+    public long getCurrentRate() {
+        LocalTime now = LocalTime.now();
+        for (Window window : windows) {
+            if (window.contains(now)) {
+                return window.rate;
+            }
+        }
+        return defaultRate;
+    }
+
+    /**
+     * 获取传输指定字节数所需的令牌，不足时阻塞
+     *
+     * @param bytes 字节数
+     * @throws InterruptedIOException 等待时被中断
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long rate = getCurrentRate();
+            if (rate != currentRate) {
+                // 时段切换时重新开始计数，避免沿用上一时段的欠额或积累
+                currentRate = rate;
+                tokens = rate;
+                lastRefill = System.nanoTime();
+            }
+            if (rate <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            // 先扣除令牌再在锁外等待，多个线程按获取顺序依次等待，总速率不超过限制
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+        }
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for download rate limit");
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package cn.org.agatha;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
+import org.apache.commons.net.ftp.parser.DefaultFTPFileEntryParserFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * 使用 LIST -R 一次请求列出整棵目录树，边读取边解析，不支持时退回到逐目录列出
+ * <p>
+ * 递归列表的输出由若干段组成，每段以 "路径:" 开头（第一段可能省略），随后是该目录的条目。
+ * 不同服务器的段头格式不同（"./a/b:"、"a/b:"、"/root/a/b:"），统一换算为相对起始目录的路径。
+ */
+public class RecursiveListStrategy implements ListingStrategy {
+    private final ListingStrategy fallback;
+
+    /**
+     * 构造函数
+     *
+     * @param fallback 逐目录列出时使用的策略
+     */
+    public RecursiveListStrategy(ListingStrategy fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * 获取逐目录列出时使用的策略
+     *
+     * @return 逐目录列出策略
+     */
+    public ListingStrategy getFallback() {
+        return fallback;
+    }
+
+    @Override
+    public String getName() {
+        return "LIST -R (" + fallback.getName() + ")";
+    }
+
+    @Override
+    public FTPFile[] listDirectory(FTPClient client, String directory) throws IOException {
+        return fallback.listDirectory(client, directory);
+    }
+
+    @Override
+    public FTPFile probeDirectory(FTPClient client, String directory) throws IOException {
+        return fallback.probeDirectory(client, directory);
+    }
+
+    @Override
+    public boolean listTree(FTPClient client, String root, BiConsumer<String, FTPFile[]> consumer) throws IOException {
+        if (!(client instanceof SyncFtpClient)) {
+            return false;
+        }
+        FTPFileEntryParser parser = new DefaultFTPFileEntryParserFactory().createFileEntryParser(client.getSystemType());
+        Socket socket = ((SyncFtpClient) client).openDataConnection("LIST", "-R " + root);
+        if (socket == null) {
+            return false;
+        }
+
+        // 在看到第二个段头、确认服务器确实按递归格式输出之前不回调任何目录，
+        // 避免把忽略了 -R 的普通列表当成完整结果
+        boolean recursive = false;
+        boolean labelled = false;
+        boolean sawSubdirectory = false;
+        String currentDirectory = root;
+        List<FTPFile> currentEntries = new ArrayList<>();
+        boolean previousBlank = true;
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), client.getControlEncoding()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    previousBlank = true;
+                    continue;
+                }
+                FTPFile entry = parser.parseFTPEntry(line);
+                if (entry == null && previousBlank && line.endsWith(":")) {
+                    String directory = toDirectory(root, line.substring(0, line.length() - 1));
+                    if (!labelled && !recursive && currentEntries.isEmpty()) {
+                        // 输出以段头开头，该段头标记的就是起始目录本身
+                        labelled = true;
+                    } else {
+                        consumer.accept(currentDirectory, currentEntries.toArray(new FTPFile[0]));
+                        currentEntries = new ArrayList<>();
+                        recursive = true;
+                    }
+                    currentDirectory = directory;
+                    previousBlank = false;
+                    continue;
+                }
+                previousBlank = false;
+                if (entry == null || entry.getName() == null
+                        || ".".equals(entry.getName()) || "..".equals(entry.getName())) {
+                    continue;
+                }
+                if (entry.isDirectory()) {
+                    sawSubdirectory = true;
+                }
+                currentEntries.add(entry);
+            }
+        } finally {
+            socket.close();
+        }
+        if (!client.completePendingCommand()) {
+            return false;
+        }
+
+        if (!recursive && sawSubdirectory) {
+            // 有子目录却只有一段输出，说明服务器忽略了 -R
+            return false;
+        }
+        consumer.accept(currentDirectory, currentEntries.toArray(new FTPFile[0]));
+        return true;
+    }
+
+    /**
+     * 将段头中的路径换算为以 / 结尾的绝对目录路径
+     *
+     * @param root   起始目录，以 / 结尾
+     * @param header 段头路径
+     * @return 目录路径
+     */
+    private static String toDirectory(String root, String header) {
+        String path = header.replace("\\", "/");
+        if (path.startsWith(root)) {
+            path = path.substring(root.length());
+        } else if (path.startsWith("./")) {
+            path = path.substring(2);
+        } else if (".".equals(path)) {
+            path = "";
+        }
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if (path.isEmpty()) {
+            return root;
+        }
+        return path.endsWith("/") ? root + path : root + path + "/";
+    }
+}
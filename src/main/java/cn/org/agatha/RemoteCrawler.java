@@ -0,0 +1,157 @@
+package cn.org.agatha;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 并行远程目录爬取器，多个会话同时列出互不相关的目录
+ * <p>
+ * 每个工作线程维护自己的目录队列，新发现的子目录压入自己的队尾并优先处理，
+ * 队列为空时从其他线程的队头窃取目录，从而在目录树不均衡时保持所有会话忙碌。
+ */
+public class RemoteCrawler {
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final FtpManager ftpManager;
+    private final int threads;
+    private final ListingSnapshot snapshot;
+    private final List<ConcurrentLinkedDeque<String>> queues = new ArrayList<>();
+    private final List<FileListing> results = new ArrayList<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    /**
+     * 构造函数
+     *
+     * @param ftpManager FTP 管理器
+     * @param threads    并发会话数
+     * @param snapshot   目录列表快照，未启用时为 null
+     */
+    public RemoteCrawler(FtpManager ftpManager, int threads, ListingSnapshot snapshot) {
+        this.ftpManager = ftpManager;
+        this.threads = Math.max(1, threads);
+        this.snapshot = snapshot;
+        for (int i = 0; i < this.threads; i++) {
+            queues.add(new ConcurrentLinkedDeque<>());
+            results.add(new FileListing());
+        }
+    }
+
+    /**
+     * 从指定目录开始并行爬取整棵目录树
+     *
+     * @param root 起始目录，以 / 结尾
+     * @return 文件列表
+     * @throws IOException 某个目录多次重试后仍无法列出
+     */
+    public FileListing crawl(String root) throws IOException {
+        pending.set(1);
+        queues.get(0).add(root);
+
+        try (FtpSessionPool pool = new FtpSessionPool(ftpManager, threads)) {
+            ftpManager.addSessionPool(pool);
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int index = i;
+                Thread worker = new Thread(() -> work(index, pool), "crawl-worker-" + i);
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        }
+
+        Exception error = failure.get();
+        if (error != null) {
+            throw error instanceof IOException ? (IOException) error : new IOException(error);
+        }
+        return getFiles();
+    }
+
+    /**
+     * 获取已经收集到的文件信息，爬取失败时为部分结果
+     *
+     * @return 文件列表
+     */
+    public FileListing getFiles() {
+        FileListing files = new FileListing();
+        for (FileListing result : results) {
+            files.addAll(result);
+        }
+        return files;
+    }
+
+    private void work(int index, FtpSessionPool pool) {
+        ConcurrentLinkedDeque<String> ownQueue = queues.get(index);
+        FileListing fileList = results.get(index);
+        FTPClient client = null;
+        try {
+            while (failure.get() == null) {
+                String directory = ownQueue.pollLast();
+                if (directory == null) {
+                    directory = steal(index);
+                }
+                if (directory == null) {
+                    if (pending.get() == 0) {
+                        return;
+                    }
+                    LockSupport.parkNanos(1_000_000L);
+                    continue;
+                }
+
+                for (int attempt = 1; ; attempt++) {
+                    if (client == null) {
+                        client = pool.borrow();
+                        if (client == null) {
+                            failure.compareAndSet(null, new IOException("No FTP session available for crawl."));
+                            return;
+                        }
+                    }
+                    try {
+                        ftpManager.listDirectory(client, directory, snapshot, fileList, subdirectory -> {
+                            pending.incrementAndGet();
+                            ownQueue.addLast(subdirectory);
+                        });
+                        break;
+                    } catch (IOException e) {
+                        System.out.println("Error listing " + directory + ": " + e.getMessage());
+                        pool.release(client, false);
+                        client = null;
+                        if (attempt >= MAX_ATTEMPTS) {
+                            failure.compareAndSet(null, e);
+                            return;
+                        }
+                    }
+                }
+                pending.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        } finally {
+            pool.release(client, true);
+        }
+    }
+
+    private String steal(int index) {
+        for (int i = 1; i < threads; i++) {
+            String directory = queues.get((index + i) % threads).pollFirst();
+            if (directory != null) {
+                return directory;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,162 @@
+package cn.org.agatha;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 改名和移动检测：把远程已经消失的本地文件与远程新出现的路径按大小和修改时间配对，
+ * 配对成功时直接在本地移动文件，不再重新下载
+ * <p>
+ * 只有远程列表完整时才能判断路径已经消失。每个新路径必须恰好匹配一个消失的文件；
+ * 服务器支持校验和命令时再用校验和确认，并以此区分多个大小和时间都相同的候选，仍无法唯一确定的照常下载。
+ * 小文件直接下载的代价很低，不参与配对。
+ */
+public class RenameDetector {
+    public static final long DEFAULT_MIN_SIZE = 64 * 1024; // 小于该大小的文件直接下载
+    private static final long TIME_TOLERANCE = 2000; // 修改时间的比较容差（毫秒），覆盖两秒精度的文件系统
+
+    private final FtpManager ftpManager;
+    private final String localDir;
+    private final long minSize;
+
+    /**
+     * 一次改名或移动
+     */
+    public static class Rename {
+        private final String fromPath;
+        private final String toPath;
+
+        /**
+         * 构造函数
+         *
+         * @param fromPath 原本地文件路径
+         * @param toPath   新本地文件路径
+         */
+        public Rename(String fromPath, String toPath) {
+            this.fromPath = fromPath;
+            this.toPath = toPath;
+        }
+
+        public String getFromPath() {
+            return fromPath;
+        }
+
+        public String getToPath() {
+            return toPath;
+        }
+
+        @Override
+        public String toString() {
+            return fromPath + " -> " + toPath;
+        }
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param ftpManager FTP 管理器，用于查询远程校验和
+     * @param localDir   本地同步目录
+     * @param minSize    参与配对的最小文件大小
+     */
+    public RenameDetector(FtpManager ftpManager, String localDir, long minSize) {
+        this.ftpManager = ftpManager;
+        this.localDir = localDir;
+        this.minSize = Math.max(1, minSize);
+    }
+
+    /**
+     * 为下载任务中的新路径寻找对应的已消失本地文件
+     *
+     * @param tasks       下载任务列表
+     * @param disappeared 远程已经不存在的本地文件，键为以 / 开头的路径
+     * @return 配对成功的改名，每个本地文件最多出现一次
+     */
+    public List<Rename> detect(List<DownloadEngine.Task> tasks, Map<String, FileInfo> disappeared) {
+        List<Rename> renames = new ArrayList<>();
+        Map<Long, List<FileInfo>> bySize = new HashMap<>();
+        for (FileInfo info : disappeared.values()) {
+            if (info.getSize() >= minSize && info.getModifiedTime() > 0) {
+                bySize.computeIfAbsent(info.getSize(), key -> new ArrayList<>()).add(info);
+            }
+        }
+        if (bySize.isEmpty()) {
+            return renames;
+        }
+
+        Set<String> used = new HashSet<>();
+        Map<String, String> localHashes = new HashMap<>();
+        for (DownloadEngine.Task task : tasks) {
+            List<FileInfo> sameSize = bySize.get(task.getSize());
+            if (sameSize == null || task.getModifiedTime() <= 0 || new File(task.getLocalPath()).exists()) {
+                continue;
+            }
+            List<FileInfo> candidates = new ArrayList<>();
+            for (FileInfo info : sameSize) {
+                if (!used.contains(info.getPath())
+                        && Math.abs(info.getModifiedTime() - task.getModifiedTime()) <= TIME_TOLERANCE) {
+                    candidates.add(info);
+                }
+            }
+            if (candidates.isEmpty()) {
+                continue;
+            }
+            candidates = confirmByHash(task, candidates, localHashes);
+            if (candidates.isEmpty()) {
+                continue;
+            }
+            if (candidates.size() > 1) {
+                System.out.println("Ambiguous rename source for " + task.getRemotePath() + ", downloading.");
+                continue;
+            }
+            FileInfo source = candidates.get(0);
+            used.add(source.getPath());
+            renames.add(new Rename(localPath(source.getPath()), task.getLocalPath()));
+            System.out.println("Detected rename: " + source.getPath() + " -> " + task.getRemotePath());
+        }
+        return renames;
+    }
+
+    /**
+     * 服务器支持校验和时只保留内容与远程新路径一致的候选，无法取得远程校验和时原样返回
+     */
+    private List<FileInfo> confirmByHash(DownloadEngine.Task task, List<FileInfo> candidates,
+                                         Map<String, String> localHashes) {
+        String algorithm = ftpManager.getHashAlgorithm();
+        if (algorithm == null) {
+            return candidates;
+        }
+        String remoteHash = ftpManager.remoteHash(task.getRemotePath());
+        if (remoteHash == null) {
+            return candidates;
+        }
+        List<FileInfo> confirmed = new ArrayList<>();
+        for (FileInfo candidate : candidates) {
+            String localHash = localHashes.get(candidate.getPath());
+            if (localHash == null) {
+                try {
+                    localHash = HashChangeDetector.localHash(new File(localPath(candidate.getPath())), algorithm);
+                } catch (IOException | NoSuchAlgorithmException e) {
+                    System.out.println("Error computing local checksum: " + candidate.getPath() + ": "
+                            + e.getMessage());
+                    continue;
+                }
+                localHashes.put(candidate.getPath(), localHash);
+            }
+            if (remoteHash.equals(localHash)) {
+                confirmed.add(candidate);
+            }
+        }
+        return confirmed;
+    }
+
+    private String localPath(String path) {
+        return localDir.endsWith("/") ? localDir + path.substring(1) : localDir + path;
+    }
+}
@@ -0,0 +1,245 @@
+package cn.org.agatha;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * 同步范围过滤规则，在列目录时使用，被排除的目录不会被列出，其下的文件也不会被读取属性
+ * <ul>
+ *     <li>排除模式：匹配的文件不同步，匹配的目录整棵跳过，例如 {@code cache}、{@code *.tmp}、{@code /logs/**}</li>
+ *     <li>包含模式：设置后只同步匹配的文件；以固定目录开头的包含模式（如 {@code /data/**}）
+ *     还会跳过不可能包含匹配文件的目录</li>
+ *     <li>大小范围和修改时间范围：只作用于文件</li>
+ * </ul>
+ * 模式语法见 {@link PathPattern}。所有模式在构造时按"只匹配文件名"和"匹配完整路径"两类分别合并为一个正则表达式，
+ * 每个路径最多匹配两次。
+ */
+public class SyncFilter {
+    private final Pattern excludePaths;
+    private final Pattern excludeNames;
+    private final Pattern includePaths;
+    private final Pattern includeNames;
+    private final List<String> includePrefixes; // 包含模式的固定目录前缀，为 null 时不按目录裁剪
+    private final boolean empty;
+    private final String description;
+    private long minSize = 0;
+    private long maxSize = 0;
+    private long minAge = 0;
+    private long maxAge = 0;
+
+    /**
+     * 构造函数，编译包含和排除模式
+     *
+     * @param includes 包含模式，为空时包含所有文件
+     * @param excludes 排除模式
+     */
+    public SyncFilter(List<String> includes, List<String> excludes) {
+        List<PathPattern> include = compileAll(includes);
+        List<PathPattern> exclude = compileAll(excludes);
+        this.excludePaths = combine(exclude, false);
+        this.excludeNames = combine(exclude, true);
+        this.includePaths = combine(include, false);
+        this.includeNames = combine(include, true);
+        this.includePrefixes = include.isEmpty() ? null : prefixes(include);
+        this.empty = include.isEmpty() && exclude.isEmpty();
+        this.description = "include " + include + ", exclude " + exclude;
+    }
+
+    private static List<PathPattern> compileAll(List<String> globs) {
+        List<PathPattern> patterns = new ArrayList<>();
+        if (globs != null) {
+            for (String glob : globs) {
+                patterns.add(PathPattern.compile(glob));
+            }
+        }
+        return patterns;
+    }
+
+    /**
+     * 把同一类模式合并为一个正则表达式
+     */
+    private static Pattern combine(List<PathPattern> patterns, boolean nameOnly) {
+        StringBuilder regex = new StringBuilder();
+        for (PathPattern pattern : patterns) {
+            if (pattern.isNameOnly() == nameOnly) {
+                if (regex.length() > 0) {
+                    regex.append('|');
+                }
+                regex.append("(?:").append(pattern.getRegex()).append(')');
+            }
+        }
+        return regex.length() > 0 ? Pattern.compile(regex.toString()) : null;
+    }
+
+    /**
+     * 计算包含模式的固定目录前缀，有任意一个模式不以固定目录开头时不裁剪
+     */
+    private static List<String> prefixes(List<PathPattern> patterns) {
+        List<String> prefixes = new ArrayList<>();
+        for (PathPattern pattern : patterns) {
+            if (pattern.isNameOnly()) {
+                return null;
+            }
+            String glob = pattern.toString().startsWith("/") ? pattern.toString() : "/" + pattern;
+            int wildcard = glob.length();
+            for (int i = 0; i < glob.length(); i++) {
+                if ("*?{".indexOf(glob.charAt(i)) >= 0) {
+                    wildcard = i;
+                    break;
+                }
+            }
+            String prefix = glob.substring(0, glob.lastIndexOf('/', wildcard - 1) + 1);
+            if (prefix.equals("/")) {
+                return null;
+            }
+            prefixes.add(prefix);
+        }
+        return prefixes;
+    }
+
+    /**
+     * 设置文件大小范围
+     *
+     * @param minSize 最小大小（字节），0 表示不限
+     * @param maxSize 最大大小（字节），0 表示不限
+     */
+    public void setSizeRange(long minSize, long maxSize) {
+        this.minSize = Math.max(0, minSize);
+        this.maxSize = Math.max(0, maxSize);
+    }
+
+    /**
+     * 设置文件修改时间范围，修改时间未知的文件不受限制
+     *
+     * @param minAge 修改后至少经过的时间（毫秒），用于跳过正在写入的文件，0 表示不限
+     * @param maxAge 修改后至多经过的时间（毫秒），用于跳过很久未变的旧文件，0 表示不限
+     */
+    public void setAgeRange(long minAge, long maxAge) {
+        this.minAge = Math.max(0, minAge);
+        this.maxAge = Math.max(0, maxAge);
+    }
+
+    /**
+     * 是否没有任何规则
+     *
+     * @return 是否为空
+     */
+    public boolean isEmpty() {
+        return empty && minSize == 0 && maxSize == 0 && minAge == 0 && maxAge == 0;
+    }
+
+    /**
+     * 判断是否需要列出一个目录
+     *
+     * @param directory 以 / 开头和结尾的目录路径
+     * @return 是否列出
+     */
+    public boolean includesDirectory(String directory) {
+        if ("/".equals(directory)) {
+            return true;
+        }
+        String path = directory.endsWith("/") ? directory.substring(0, directory.length() - 1) : directory;
+        if (excludePaths != null && (excludePaths.matcher(path).matches()
+                || excludePaths.matcher(path + "/").matches())) {
+            return false;
+        }
+        if (excludeNames != null && excludeNames.matcher(path.substring(path.lastIndexOf('/') + 1)).matches()) {
+            return false;
+        }
+        if (includePrefixes != null) {
+            String withSlash = path + "/";
+            for (String prefix : includePrefixes) {
+                if (withSlash.startsWith(prefix) || prefix.startsWith(withSlash)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 判断一个目录及其所有上级目录是否都需要列出，用于一次性递归列表中逐个目录返回的结果
+     *
+     * @param directory 以 / 开头和结尾的目录路径
+     * @return 是否列出
+     */
+    public boolean includesTree(String directory) {
+        for (int end = directory.indexOf('/', 1); end > 0; end = directory.indexOf('/', end + 1)) {
+            if (!includesDirectory(directory.substring(0, end + 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 判断是否同步一个文件
+     *
+     * @param path         以 / 开头的文件路径
+     * @param size         文件大小
+     * @param modifiedTime 修改时间（毫秒），0 表示未知
+     * @return 是否同步
+     */
+    public boolean includesFile(String path, long size, long modifiedTime) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        if (excludePaths != null && excludePaths.matcher(path).matches()
+                || excludeNames != null && excludeNames.matcher(name).matches()) {
+            return false;
+        }
+        if ((includePaths != null || includeNames != null)
+                && !(includePaths != null && includePaths.matcher(path).matches()
+                || includeNames != null && includeNames.matcher(name).matches())) {
+            return false;
+        }
+        if (size < minSize || maxSize > 0 && size > maxSize) {
+            return false;
+        }
+        if (modifiedTime > 0 && (minAge > 0 || maxAge > 0)) {
+            long age = System.currentTimeMillis() - modifiedTime;
+            return age >= minAge && (maxAge == 0 || age <= maxAge);
+        }
+        return true;
+    }
+
+    /**
+     * 解析大小，支持 K、M、G 后缀（1024 进制）
+     *
+     * @param value 例如 "512K"、"10M"、"1048576"
+     * @return 字节数
+     * @throws NumberFormatException 格式错误
+     */
+    public static long parseSize(String value) {
+        return parseWithUnit(value, "KMG", new long[]{1024L, 1024L * 1024, 1024L * 1024 * 1024}, 1);
+    }
+
+    /**
+     * 解析时长，支持 s、m、h、d 后缀，没有后缀时为秒
+     *
+     * @param value 例如 "30s"、"10m"、"7d"
+     * @return 毫秒数
+     * @throws NumberFormatException 格式错误
+     */
+    public static long parseDuration(String value) {
+        return parseWithUnit(value, "SMHD", new long[]{1000L, 60_000L, 3_600_000L, 86_400_000L}, 1000L);
+    }
+
+    private static long parseWithUnit(String value, String units, long[] factors, long defaultFactor) {
+        String text = value.trim().toUpperCase();
+        if (text.isEmpty()) {
+            throw new NumberFormatException("Empty value");
+        }
+        int unit = units.indexOf(text.charAt(text.length() - 1));
+        if (unit >= 0) {
+            return Long.parseLong(text.substring(0, text.length() - 1).trim()) * factors[unit];
+        }
+        return Long.parseLong(text) * defaultFactor;
+    }
+
+    @Override
+    public String toString() {
+        return description + ", size " + minSize + "-" + (maxSize > 0 ? maxSize : "") + ", age " + minAge / 1000
+                + "s-" + (maxAge > 0 ? maxAge / 1000 + "s" : "");
+    }
+}
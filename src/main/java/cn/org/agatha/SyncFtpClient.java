@@ -0,0 +1,235 @@
+package cn.org.agatha;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 同步使用的 FTP 客户端，在 {@link FTPClient} 基础上开放原始数据连接，
+ * 用于以流方式读取递归列表等 commons-net 未直接提供的命令
+ * <p>
+ * 同时根据实际命令的结果跟踪会话是否可用：收到应答即说明控制连接正常，发生 I/O 异常后标记为失效，
+ * 不需要在每次操作前发送 NOOP 探测。空闲过久的会话由 {@link #keepAlive(long)} 发送 NOOP 保持连接。
+ * <p>
+ * 支持 MODE Z（数据连接上传输 zlib 压缩流），commons-net 本身只发送 MODE 命令而不解压数据。
+ * 只有 {@link #retrieveInflated} 在 MODE Z 下接收数据，其他数据连接（列目录、分段下载等）打开前自动切回 MODE S；
+ * 连续下载多个压缩文件时不必每次切换。
+ */
+public class SyncFtpClient extends FTPClient {
+    private static final Duration KEEPALIVE_TIMEOUT = Duration.ofSeconds(30); // 保活 NOOP 等待应答的上限
+
+    private volatile long lastActivity = System.nanoTime(); // 最近一次收到应答的时间
+    private volatile boolean failed = false; // 是否发生过使会话失效的异常
+    private boolean deflate = false; // 服务器当前的传输模式是否为 MODE Z
+    private boolean inflating = false; // 正在打开 MODE Z 下载的数据连接
+    private long receivedBytes; // 最近一次 MODE Z 下载在数据连接上收到的字节数
+    private long inflatedBytes; // 最近一次 MODE Z 下载解压后的字节数
+
+    /**
+     * 发送命令并打开对应的数据连接，调用方读取完毕后需关闭连接并调用 {@link #completePendingCommand()}
+     *
+     * @param command FTP 命令
+     * @param arg     命令参数
+     * @return 数据连接，服务器拒绝时返回 null
+     * @throws IOException 通信过程中发生异常
+     */
+    public Socket openDataConnection(String command, String arg) throws IOException {
+        return _openDataConnection_(command, arg);
+    }
+
+    @Override
+    protected void _connectAction_() throws IOException {
+        failed = false;
+        deflate = false;
+        lastActivity = System.nanoTime();
+        super._connectAction_();
+    }
+
+    @Override
+    public int sendCommand(String command, String args) throws IOException {
+        try {
+            int reply = super.sendCommand(command, args);
+            lastActivity = System.nanoTime();
+            return reply;
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public int getReply() throws IOException {
+        try {
+            int reply = super.getReply();
+            lastActivity = System.nanoTime();
+            return reply;
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    @Override
+    protected Socket _openDataConnection_(String command, String arg) throws IOException {
+        if (deflate && !inflating && !setDeflate(false)) {
+            throw new IOException("Failed to switch back to stream mode: " + getReplyString().trim());
+        }
+        return super._openDataConnection_(command, arg);
+    }
+
+    /**
+     * 切换传输模式，与当前模式相同时不发送命令
+     *
+     * @param enabled true 切换到 MODE Z，false 切换到 MODE S
+     * @return 服务器是否接受
+     * @throws IOException 通信过程中发生异常
+     */
+    public boolean setDeflate(boolean enabled) throws IOException {
+        if (enabled == deflate) {
+            return true;
+        }
+        if (!FTPReply.isPositiveCompletion(sendCommand("MODE", enabled ? "Z" : "S"))) {
+            return false;
+        }
+        deflate = enabled;
+        return true;
+    }
+
+    /**
+     * 下载文件，MODE Z 下边接收边解压，否则与 {@link #retrieveFile(String, OutputStream)} 相同
+     * <p>
+     * 压缩流不完整时抛出 {@link EOFException}，数据损坏时抛出 {@link java.util.zip.ZipException}。
+     * REST 设置的起始位置按解压后的数据计算。
+     *
+     * @param remote 远程文件路径（已编码）
+     * @param local  输出流
+     * @return 是否下载成功
+     * @throws IOException 通信或解压过程中发生异常
+     */
+    public boolean retrieveInflated(String remote, OutputStream local) throws IOException {
+        if (!deflate) {
+            return retrieveFile(remote, local);
+        }
+        receivedBytes = 0;
+        inflatedBytes = 0;
+        Socket socket;
+        inflating = true;
+        try {
+            socket = _openDataConnection_("RETR", remote);
+        } finally {
+            inflating = false;
+        }
+        if (socket == null) {
+            return false;
+        }
+        Inflater inflater = new Inflater();
+        try (InputStream in = new InflaterInputStream(new FilterInputStream(socket.getInputStream()) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    receivedBytes += read;
+                }
+                return read;
+            }
+        }, inflater, 64 * 1024)) {
+            byte[] buffer = new byte[Math.max(getBufferSize(), 8192)];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                local.write(buffer, 0, read);
+                inflatedBytes += read;
+            }
+        } catch (EOFException e) {
+            // 部分服务器对空文件不发送任何数据
+            if (receivedBytes > 0) {
+                throw e;
+            }
+        } finally {
+            inflater.end();
+            socket.close();
+        }
+        return completePendingCommand();
+    }
+
+    /**
+     * 获取最近一次 MODE Z 下载在数据连接上收到的字节数
+     *
+     * @return 压缩后的字节数
+     */
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * 获取最近一次 MODE Z 下载解压后的字节数
+     *
+     * @return 解压后的字节数
+     */
+    public long getInflatedBytes() {
+        return inflatedBytes;
+    }
+
+    /**
+     * 标记会话失效，例如数据传输中断后控制连接上可能还有未读的应答
+     */
+    public void markFailed() {
+        failed = true;
+    }
+
+    /**
+     * 会话是否可用：已连接且没有发生过使会话失效的异常，不与服务器通信
+     *
+     * @return 是否可用
+     */
+    public boolean isHealthy() {
+        return !failed && isConnected();
+    }
+
+    /**
+     * 获取会话已空闲的时间
+     *
+     * @return 距最近一次收到应答的毫秒数
+     */
+    public long getIdleMillis() {
+        return (System.nanoTime() - lastActivity) / 1_000_000;
+    }
+
+    /**
+     * 会话空闲达到指定时间时发送 NOOP，避免服务器因空闲超时断开连接；调用方需保证会话此时没有被其他线程使用
+     *
+     * @param idleMillis 空闲时间阈值（毫秒）
+     * @return 会话是否仍然可用
+     */
+    public boolean keepAlive(long idleMillis) {
+        if (!isHealthy()) {
+            return false;
+        }
+        if (getIdleMillis() < idleMillis) {
+            return true;
+        }
+        try {
+            int timeout = getSoTimeout();
+            setSoTimeout((int) KEEPALIVE_TIMEOUT.toMillis());
+            try {
+                if (!sendNoOp()) {
+                    failed = true;
+                }
+                return isHealthy();
+            } finally {
+                setSoTimeout(timeout);
+            }
+        } catch (IOException e) {
+            failed = true;
+            return false;
+        }
+    }
+}
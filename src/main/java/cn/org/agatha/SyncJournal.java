@@ -0,0 +1,294 @@
+package cn.org.agatha;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 同步日志（预写日志），记录一轮同步的下载计划、已完成的下载和归档进度，进程中途退出后据此继续
+ * <p>
+ * 一轮同步确定下载任务后先写入完整计划并落盘，每个文件下载并替换完成后追加一条记录，
+ * 本地移动改名的文件之前追加改名记录并落盘，增量 ZIP 写完后追加归档记录，回调提交后删除日志。重启后日志仍在时：
+ * <ul>
+ *     <li>已有归档记录：ZIP 已经完整，只需重新提交回调</li>
+ *     <li>否则：不再爬取，补做尚未完成的改名，只下载计划中尚未完成的文件，
+ *     再把本轮所有改名和已下载的文件写入增量 ZIP</li>
+ * </ul>
+ * 没有日志时，中途退出前已下载的文件修改时间已与远程一致，之后不会再被同步，也不会出现在任何增量中。
+ * <p>
+ * 下载完成记录直接写入文件而不逐条落盘：进程退出不会丢失已交给操作系统的数据，
+ * 断电时丢失的最后几条记录只会让这些文件被重新下载。恢复时截掉不完整的尾部记录。
+ */
+public class SyncJournal implements AutoCloseable {
+    private static final int MAGIC = 0x494A524E; // "IJRN"
+    private static final int VERSION = 1;
+    private static final byte RECORD_DOWNLOADED = 1;
+    private static final byte RECORD_ARCHIVED = 2;
+    private static final byte RECORD_RENAMED = 3;
+
+    private final File file;
+    private final FileChannel channel;
+    private final List<DownloadEngine.Task> plannedTasks;
+    private final Set<String> downloadedFiles;
+    private final List<RenameDetector.Rename> renames;
+    private String archivedZip;
+
+    private SyncJournal(File file, FileChannel channel, List<DownloadEngine.Task> plannedTasks,
+                        Set<String> downloadedFiles, List<RenameDetector.Rename> renames, String archivedZip) {
+        this.file = file;
+        this.channel = channel;
+        this.plannedTasks = plannedTasks;
+        this.downloadedFiles = downloadedFiles;
+        this.renames = renames;
+        this.archivedZip = archivedZip;
+    }
+
+    /**
+     * 开始一轮同步的日志，写入下载计划并落盘
+     *
+     * @param file  日志文件
+     * @param tasks 下载任务
+     * @return 同步日志
+     * @throws IOException 写入失败
+     */
+    public static SyncJournal create(File file, List<DownloadEngine.Task> tasks) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(tasks.size());
+        for (DownloadEngine.Task task : tasks) {
+            out.writeUTF(task.getRemotePath());
+            out.writeUTF(task.getLocalPath());
+            out.writeLong(task.getModifiedTime());
+            out.writeLong(task.getSize());
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            writeFully(channel, header.toByteArray());
+            channel.force(true);
+        } catch (IOException e) {
+            channel.close();
+            file.delete();
+            throw e;
+        }
+        return new SyncJournal(file, channel, new ArrayList<>(tasks), new LinkedHashSet<>(), new ArrayList<>(), null);
+    }
+
+    /**
+     * 读取上次中途退出时留下的日志，并打开以继续追加
+     *
+     * @param file 日志文件
+     * @return 同步日志，日志不存在或计划本身不完整时返回 null
+     */
+    public static SyncJournal recover(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            System.out.println("Error reading sync journal: " + e.getMessage());
+            return null;
+        }
+
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        List<DownloadEngine.Task> tasks = new ArrayList<>();
+        Set<String> downloaded = new LinkedHashSet<>();
+        List<RenameDetector.Rename> renamed = new ArrayList<>();
+        String archived = null;
+        long validLength;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown sync journal format");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                tasks.add(new DownloadEngine.Task(in.readUTF(), in.readUTF(), in.readLong(), in.readLong()));
+            }
+        } catch (IOException e) {
+            // 计划在开始下载之前已经落盘，计划不完整说明本轮还没有下载任何文件
+            System.out.println("Discarding incomplete sync journal: " + e.getMessage());
+            file.delete();
+            return null;
+        }
+        validLength = data.length - bytes.available();
+        try {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == RECORD_DOWNLOADED) {
+                    downloaded.add(in.readUTF());
+                } else if (type == RECORD_ARCHIVED) {
+                    archived = in.readUTF();
+                } else if (type == RECORD_RENAMED) {
+                    renamed.add(new RenameDetector.Rename(in.readUTF(), in.readUTF()));
+                } else {
+                    throw new IOException("Unknown sync journal record: " + type);
+                }
+                validLength = data.length - bytes.available();
+            }
+        } catch (IOException e) {
+            System.out.println("Truncating sync journal at " + validLength + ": " + e.getMessage());
+        }
+
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            channel.truncate(validLength);
+            channel.position(validLength);
+            return new SyncJournal(file, channel, tasks, downloaded, renamed, archived);
+        } catch (IOException e) {
+            System.out.println("Error reopening sync journal: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 获取本轮计划的全部下载任务
+     *
+     * @return 下载任务
+     */
+    public List<DownloadEngine.Task> getPlannedTasks() {
+        return Collections.unmodifiableList(plannedTasks);
+    }
+
+    /**
+     * 获取计划中尚未完成的下载任务
+     *
+     * @return 下载任务
+     */
+    public synchronized List<DownloadEngine.Task> getRemainingTasks() {
+        List<DownloadEngine.Task> remaining = new ArrayList<>();
+        for (DownloadEngine.Task task : plannedTasks) {
+            if (!downloadedFiles.contains(task.getLocalPath())) {
+                remaining.add(task);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * 获取已完成下载的本地文件路径，顺序与完成顺序一致
+     *
+     * @return 本地文件路径
+     */
+    public synchronized List<String> getDownloadedFiles() {
+        return new ArrayList<>(downloadedFiles);
+    }
+
+    /**
+     * 获取本轮已记录的改名，顺序与记录顺序一致
+     *
+     * @return 改名列表
+     */
+    public synchronized List<RenameDetector.Rename> getRenames() {
+        return new ArrayList<>(renames);
+    }
+
+    /**
+     * 获取已完整写入的增量 ZIP
+     *
+     * @return ZIP 文件路径，尚未写完时为 null
+     */
+    public synchronized String getArchivedZip() {
+        return archivedZip;
+    }
+
+    /**
+     * 记录一个文件已下载并替换了本地文件
+     *
+     * @param localPath 本地文件路径
+     */
+    public synchronized void recordDownloaded(String localPath) {
+        if (downloadedFiles.add(localPath)) {
+            append(RECORD_DOWNLOADED, false, localPath);
+        }
+    }
+
+    /**
+     * 在本地移动文件之前记录一次改名，并落盘，保证移动过的文件一定会进入增量
+     *
+     * @param rename 改名
+     */
+    public synchronized void recordRenamed(RenameDetector.Rename rename) {
+        renames.add(rename);
+        append(RECORD_RENAMED, true, rename.getFromPath(), rename.getToPath());
+    }
+
+    /**
+     * 记录增量 ZIP 已完整写入，并落盘
+     *
+     * @param zipFileName ZIP 文件路径
+     */
+    public synchronized void recordArchived(String zipFileName) {
+        archivedZip = zipFileName;
+        append(RECORD_ARCHIVED, true, zipFileName);
+    }
+
+    /**
+     * 本轮全部完成，删除日志
+     */
+    public void complete() {
+        close();
+        if (!file.delete() && file.exists()) {
+            System.out.println("Failed to delete sync journal: " + file);
+        }
+    }
+
+    /**
+     * 关闭日志文件但保留，下一轮同步从中恢复
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing sync journal: " + e.getMessage());
+        }
+    }
+
+    private void append(byte type, boolean force, String... values) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(type);
+            for (String value : values) {
+                out.writeUTF(value);
+            }
+            writeFully(channel, record.toByteArray());
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            // 记录丢失只会在恢复时多下载或多归档，不影响本轮同步
+            System.out.println("Error writing sync journal: " + e.getMessage());
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package cn.org.agatha;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 同步过程的指标：累计计数，以及最近一轮同步的耗时、吞吐、压缩比等
+ * <p>
+ * 计数在下载线程、压缩线程和回调线程中并发累加，{@link #beginCycle()} 记录一轮开始时的计数，
+ * {@link #endCycle} 据此计算本轮的增量。通过 JMX（{@link #registerMBean}）和 {@link MetricsServer}
+ * 的 Prometheus 文本格式对外提供。
+ * <p>
+ * lastCycleIntervalRatio 是最近一轮耗时与同步间隔之比，接近 1 说明同步已经跟不上间隔。
+ */
+public class SyncMetrics implements SyncMetricsMBean {
+    private final LongAdder cycles = new LongAdder();
+    private final LongAdder failedCycles = new LongAdder();
+    private final LongAdder directoriesListed = new LongAdder();
+    private final LongAdder filesCompared = new LongAdder();
+    private final LongAdder filesSynced = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder transferBytesSaved = new LongAdder();
+    private final LongAdder callbacksDelivered = new LongAdder();
+    private final LongAdder callbacksFailed = new LongAdder();
+
+    private volatile long cycleStartNanos;
+    private volatile long cycleStartDirectories;
+    private volatile long cycleStartBytes;
+    private volatile long lastCycleMillis;
+    private volatile long lastCrawlMillis;
+    private volatile long lastDirectoriesListed;
+    private volatile long lastFilesCompared;
+    private volatile long lastBytesDownloaded;
+    private volatile double lastThroughput;
+    private volatile long lastCompressionMillis;
+    private volatile double lastCompressionRatio;
+    private volatile long lastCallbackLatencyMillis;
+    private volatile long syncIntervalMillis;
+    private ObjectName objectName;
+
+    /**
+     * 记录一轮同步开始
+     */
+    public void beginCycle() {
+        cycleStartNanos = System.nanoTime();
+        cycleStartDirectories = directoriesListed.sum();
+        cycleStartBytes = bytesDownloaded.sum();
+        lastCompressionMillis = 0;
+        lastCompressionRatio = 0;
+    }
+
+    /**
+     * 记录一轮同步结束，计算本轮的增量
+     *
+     * @param result 本轮结果，发生未处理异常时为 null
+     */
+    public void endCycle(AutoEngine.SyncResult result) {
+        long elapsedNanos = System.nanoTime() - cycleStartNanos;
+        cycles.increment();
+        if (result == null || result.isFailed()) {
+            failedCycles.increment();
+        }
+        if (result != null) {
+            filesSynced.add(result.getSyncedFiles());
+            filesFailed.add(result.getFailedFiles());
+        }
+        lastCycleMillis = elapsedNanos / 1_000_000;
+        lastDirectoriesListed = directoriesListed.sum() - cycleStartDirectories;
+        lastBytesDownloaded = bytesDownloaded.sum() - cycleStartBytes;
+        lastThroughput = elapsedNanos > 0 ? lastBytesDownloaded * 1e9 / elapsedNanos : 0;
+    }
+
+    /**
+     * 记录本轮的目录遍历
+     *
+     * @param elapsedMillis 本地和远程遍历的耗时（毫秒）
+     * @param files         参与比较的远程文件数
+     */
+    public void recordCrawl(long elapsedMillis, int files) {
+        lastCrawlMillis = elapsedMillis;
+        lastFilesCompared = files;
+        filesCompared.add(files);
+    }
+
+    /**
+     * 记录从服务器列出一个目录
+     */
+    public void recordDirectoryListed() {
+        directoriesListed.increment();
+    }
+
+    /**
+     * 累加下载的字节数
+     *
+     * @param bytes 字节数
+     */
+    public void addBytesDownloaded(long bytes) {
+        bytesDownloaded.add(bytes);
+    }
+
+    /**
+     * 累加 MODE Z 传输节省的字节数
+     *
+     * @param bytes 解压后与实际传输的字节数之差
+     */
+    public void addTransferBytesSaved(long bytes) {
+        transferBytesSaved.add(bytes);
+    }
+
+    /**
+     * 记录一次重新连接
+     */
+    public void recordReconnect() {
+        reconnects.increment();
+    }
+
+    /**
+     * 记录本轮的增量归档
+     *
+     * @param elapsedMillis 压缩耗时（毫秒）
+     * @param inputBytes    归档文件的原始大小
+     * @param outputBytes   ZIP 文件大小
+     */
+    public void recordCompression(long elapsedMillis, long inputBytes, long outputBytes) {
+        lastCompressionMillis = elapsedMillis;
+        lastCompressionRatio = outputBytes > 0 ? (double) inputBytes / outputBytes : 0;
+    }
+
+    /**
+     * 记录一次回调发送
+     *
+     * @param latencyMillis 请求耗时（毫秒）
+     * @param delivered     是否送达
+     */
+    public void recordCallback(long latencyMillis, boolean delivered) {
+        lastCallbackLatencyMillis = latencyMillis;
+        if (delivered) {
+            callbacksDelivered.increment();
+        } else {
+            callbacksFailed.increment();
+        }
+    }
+
+    /**
+     * 记录调度器当前使用的同步间隔
+     *
+     * @param intervalMillis 间隔（毫秒）
+     */
+    public void setSyncInterval(long intervalMillis) {
+        syncIntervalMillis = intervalMillis;
+    }
+
+    @Override
+    public long getCycles() {
+        return cycles.sum();
+    }
+
+    @Override
+    public long getFailedCycles() {
+        return failedCycles.sum();
+    }
+
+    @Override
+    public long getDirectoriesListed() {
+        return directoriesListed.sum();
+    }
+
+    @Override
+    public long getFilesCompared() {
+        return filesCompared.sum();
+    }
+
+    @Override
+    public long getFilesSynced() {
+        return filesSynced.sum();
+    }
+
+    @Override
+    public long getFilesFailed() {
+        return filesFailed.sum();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    @Override
+    public long getTransferBytesSaved() {
+        return transferBytesSaved.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public long getCallbacksDelivered() {
+        return callbacksDelivered.sum();
+    }
+
+    @Override
+    public long getCallbacksFailed() {
+        return callbacksFailed.sum();
+    }
+
+    @Override
+    public long getLastCycleMillis() {
+        return lastCycleMillis;
+    }
+
+    @Override
+    public long getLastCrawlMillis() {
+        return lastCrawlMillis;
+    }
+
+    @Override
+    public long getLastDirectoriesListed() {
+        return lastDirectoriesListed;
+    }
+
+    @Override
+    public long getLastFilesCompared() {
+        return lastFilesCompared;
+    }
+
+    @Override
+    public long getLastBytesDownloaded() {
+        return lastBytesDownloaded;
+    }
+
+    @Override
+    public double getLastThroughputBytesPerSecond() {
+        return lastThroughput;
+    }
+
+    @Override
+    public long getLastCompressionMillis() {
+        return lastCompressionMillis;
+    }
+
+    @Override
+    public double getLastCompressionRatio() {
+        return lastCompressionRatio;
+    }
+
+    @Override
+    public long getLastCallbackLatencyMillis() {
+        return lastCallbackLatencyMillis;
+    }
+
+    @Override
+    public long getSyncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+
+    @Override
+    public double getLastCycleIntervalRatio() {
+        long interval = syncIntervalMillis;
+        return interval > 0 ? (double) lastCycleMillis / interval : 0;
+    }
+
+    /**
+     * 注册到平台 MBeanServer，对象名为 cn.org.agatha:type=SyncMetrics,name=任务名
+     *
+     * @param name 任务名
+     * @return 是否注册成功
+     */
+    public synchronized boolean registerMBean(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("cn.org.agatha:type=SyncMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+            return true;
+        } catch (JMException e) {
+            System.out.println("Error registering metrics MBean: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 从平台 MBeanServer 注销
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            System.out.println("Error unregistering metrics MBean: " + e.getMessage());
+        }
+        objectName = null;
+    }
+
+    /**
+     * 指标的 Prometheus 名称、类型、说明和取值，时间统一换算为秒
+     */
+    enum Metric {
+        CYCLES("incsync_cycles_total", "counter", "Sync cycles run", SyncMetrics::getCycles),
+        FAILED_CYCLES("incsync_failed_cycles_total", "counter", "Sync cycles that failed",
+                SyncMetrics::getFailedCycles),
+        DIRECTORIES_LISTED("incsync_directories_listed_total", "counter", "Remote directories listed",
+                SyncMetrics::getDirectoriesListed),
+        FILES_COMPARED("incsync_files_compared_total", "counter", "Remote files compared with local files",
+                SyncMetrics::getFilesCompared),
+        FILES_SYNCED("incsync_files_synced_total", "counter", "Files downloaded successfully",
+                SyncMetrics::getFilesSynced),
+        FILES_FAILED("incsync_files_failed_total", "counter", "Files that failed to download",
+                SyncMetrics::getFilesFailed),
+        BYTES_DOWNLOADED("incsync_downloaded_bytes_total", "counter", "Bytes downloaded",
+                SyncMetrics::getBytesDownloaded),
+        TRANSFER_BYTES_SAVED("incsync_transfer_saved_bytes_total", "counter",
+                "Bytes not sent over the network thanks to MODE Z transfers", SyncMetrics::getTransferBytesSaved),
+        RECONNECTS("incsync_reconnects_total", "counter", "FTP reconnections", SyncMetrics::getReconnects),
+        CALLBACKS_DELIVERED("incsync_callbacks_delivered_total", "counter", "HTTP callback requests delivered",
+                SyncMetrics::getCallbacksDelivered),
+        CALLBACKS_FAILED("incsync_callbacks_failed_total", "counter", "HTTP callback requests that failed",
+                SyncMetrics::getCallbacksFailed),
+        LAST_CYCLE("incsync_last_cycle_seconds", "gauge", "Duration of the last sync cycle",
+                metrics -> metrics.getLastCycleMillis() / 1000.0),
+        LAST_CRAWL("incsync_last_crawl_seconds", "gauge", "Local and remote listing time of the last cycle",
+                metrics -> metrics.getLastCrawlMillis() / 1000.0),
+        LAST_DIRECTORIES("incsync_last_directories_listed", "gauge", "Remote directories listed in the last cycle",
+                SyncMetrics::getLastDirectoriesListed),
+        LAST_FILES_COMPARED("incsync_last_files_compared", "gauge", "Remote files compared in the last cycle",
+                SyncMetrics::getLastFilesCompared),
+        LAST_BYTES("incsync_last_downloaded_bytes", "gauge", "Bytes downloaded in the last cycle",
+                SyncMetrics::getLastBytesDownloaded),
+        LAST_THROUGHPUT("incsync_last_throughput_bytes_per_second", "gauge",
+                "Bytes downloaded per second of the last cycle", SyncMetrics::getLastThroughputBytesPerSecond),
+        LAST_COMPRESSION("incsync_last_compression_seconds", "gauge", "Archive writing time of the last cycle",
+                metrics -> metrics.getLastCompressionMillis() / 1000.0),
+        LAST_COMPRESSION_RATIO("incsync_last_compression_ratio", "gauge",
+                "Original size divided by archive size in the last cycle", SyncMetrics::getLastCompressionRatio),
+        LAST_CALLBACK_LATENCY("incsync_last_callback_latency_seconds", "gauge", "Latency of the last HTTP callback",
+                metrics -> metrics.getLastCallbackLatencyMillis() / 1000.0),
+        SYNC_INTERVAL("incsync_sync_interval_seconds", "gauge", "Current auto sync interval",
+                metrics -> metrics.getSyncIntervalMillis() / 1000.0),
+        CYCLE_INTERVAL_RATIO("incsync_last_cycle_interval_ratio", "gauge",
+                "Last cycle duration divided by the sync interval", SyncMetrics::getLastCycleIntervalRatio);
+
+        final String name;
+        final String type;
+        final String help;
+        private final Function<SyncMetrics, Number> value;
+
+        Metric(String name, String type, String help, Function<SyncMetrics, Number> value) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+
+        String value(SyncMetrics metrics) {
+            return value.apply(metrics).toString();
+        }
+    }
+}
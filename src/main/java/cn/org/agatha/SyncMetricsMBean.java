@@ -0,0 +1,50 @@
+package cn.org.agatha;
+
+/**
+ * 同步指标的 JMX 接口，属性与 {@link MetricsServer} 在 /metrics 输出的指标一一对应
+ */
+public interface SyncMetricsMBean {
+    long getCycles();
+
+    long getFailedCycles();
+
+    long getDirectoriesListed();
+
+    long getFilesCompared();
+
+    long getFilesSynced();
+
+    long getFilesFailed();
+
+    long getBytesDownloaded();
+
+    long getTransferBytesSaved();
+
+    long getReconnects();
+
+    long getCallbacksDelivered();
+
+    long getCallbacksFailed();
+
+    long getLastCycleMillis();
+
+    long getLastCrawlMillis();
+
+    long getLastDirectoriesListed();
+
+    long getLastFilesCompared();
+
+    long getLastBytesDownloaded();
+
+    double getLastThroughputBytesPerSecond();
+
+    long getLastCompressionMillis();
+
+    double getLastCompressionRatio();
+
+    long getLastCallbackLatencyMillis();
+
+    long getSyncIntervalMillis();
+
+    double getLastCycleIntervalRatio();
+}
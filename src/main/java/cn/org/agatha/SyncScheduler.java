@@ -0,0 +1,229 @@
+package cn.org.agatha;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 自动同步调度器，上一轮结束后才调度下一轮，不会重叠执行
+ * <p>
+ * 每轮结束后根据结果计算下一轮的间隔：
+ * <ul>
+ *     <li>有文件变化时间隔减半（不低于最小间隔），繁忙时段增量更及时</li>
+ *     <li>没有变化时间隔逐步放大到最大间隔，空闲时段减少对服务器的请求</li>
+ *     <li>同步失败时按失败次数指数退避，直到最大间隔</li>
+ * </ul>
+ * 最小、最大间隔与基础间隔相同时即为固定间隔。间隔会加上随机抖动，避免多个任务同时请求服务器。
+ * 停止时不中断正在传输的文件，而是通知同步引擎在下一个安全点提前结束本轮。
+ */
+public class SyncScheduler implements AutoCloseable {
+    /**
+     * 调度方式
+     */
+    public enum Mode {
+        /**
+         * 固定频率：间隔从上一轮开始时计算，上一轮超时则立即开始下一轮
+         */
+        FIXED_RATE,
+        /**
+         * 固定延迟：间隔从上一轮结束时计算
+         */
+        FIXED_DELAY
+    }
+
+    private static final double IDLE_GROWTH = 1.5; // 无变化时间隔的放大倍数
+
+    private final AutoEngine engine;
+    private final ScheduledExecutorService executor;
+    private final boolean ownExecutor;
+    private Mode mode = Mode.FIXED_DELAY;
+    private long intervalMillis;
+    private long minIntervalMillis;
+    private long maxIntervalMillis;
+    private double jitter = 0.1;
+    private long currentIntervalMillis;
+    private int consecutiveFailures = 0;
+    private ScheduledFuture<?> nextCycle;
+    private boolean running = false;
+    private long generation = 0; // 每次启动加一，停止后仍在执行的旧一轮不会再调度下一轮
+
+    /**
+     * 构造函数，使用独立的调度线程
+     *
+     * @param engine 同步引擎
+     */
+    public SyncScheduler(AutoEngine engine) {
+        this(engine, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "auto-sync");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * 构造函数，使用共享的调度线程池
+     *
+     * @param engine   同步引擎
+     * @param executor 调度线程池
+     */
+    public SyncScheduler(AutoEngine engine, ScheduledExecutorService executor) {
+        this(engine, executor, false);
+    }
+
+    private SyncScheduler(AutoEngine engine, ScheduledExecutorService executor, boolean ownExecutor) {
+        this.engine = engine;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    /**
+     * 设置调度方式
+     *
+     * @param mode 调度方式
+     */
+    public synchronized void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * 设置自适应间隔的范围，不设置时使用固定间隔
+     *
+     * @param minIntervalSeconds 最小间隔（秒），0 表示与基础间隔相同
+     * @param maxIntervalSeconds 最大间隔（秒），0 表示与基础间隔相同
+     */
+    public synchronized void setIntervalRange(long minIntervalSeconds, long maxIntervalSeconds) {
+        this.minIntervalMillis = minIntervalSeconds * 1000;
+        this.maxIntervalMillis = maxIntervalSeconds * 1000;
+    }
+
+    /**
+     * 设置间隔的随机抖动比例
+     *
+     * @param jitter 抖动比例（0-1），例如 0.1 表示上下浮动 10%
+     */
+    public synchronized void setJitter(double jitter) {
+        this.jitter = Math.max(0, Math.min(1, jitter));
+    }
+
+    /**
+     * 是否正在运行
+     *
+     * @return 是否正在运行
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 立即开始第一轮同步，之后按间隔调度
+     *
+     * @param intervalSeconds 基础间隔（秒）
+     * @return 是否成功启动，已在运行时返回 false
+     */
+    public synchronized boolean start(long intervalSeconds) {
+        if (running) {
+            return false;
+        }
+        intervalMillis = Math.max(1, intervalSeconds) * 1000;
+        currentIntervalMillis = intervalMillis;
+        consecutiveFailures = 0;
+        engine.getMetrics().setSyncInterval(intervalMillis);
+        running = true;
+        long current = ++generation;
+        nextCycle = executor.schedule(() -> runCycle(current), 0, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * 停止调度，取消尚未开始的一轮，并请求正在执行的一轮尽快结束
+     *
+     * @return 是否停止，未在运行时返回 false
+     */
+    public synchronized boolean stop() {
+        if (!running) {
+            return false;
+        }
+        running = false;
+        if (nextCycle != null) {
+            nextCycle.cancel(false);
+            nextCycle = null;
+        }
+        engine.cancelSync();
+        return true;
+    }
+
+    /**
+     * 停止调度并等待正在执行的一轮结束
+     */
+    @Override
+    public void close() {
+        stop();
+        if (!ownExecutor) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.MINUTES)) {
+                System.out.println("Auto sync cycle still running, giving up waiting.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runCycle(long cycleGeneration) {
+        long startedAt = System.currentTimeMillis();
+        AutoEngine.SyncResult result;
+        try {
+            result = engine.syncFiles();
+        } catch (RuntimeException e) {
+            System.out.println("Auto sync cycle failed: " + e.getMessage());
+            result = null;
+        }
+
+        synchronized (this) {
+            if (!running || cycleGeneration != generation) {
+                return;
+            }
+            long delay = nextInterval(result);
+            engine.getMetrics().setSyncInterval(delay);
+            if (mode == Mode.FIXED_RATE) {
+                delay = Math.max(0, startedAt + delay - System.currentTimeMillis());
+            }
+            System.out.println("Next auto sync in " + delay / 1000 + " seconds");
+            nextCycle = executor.schedule(() -> runCycle(cycleGeneration), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 根据本轮结果计算下一轮的间隔
+     *
+     * @param result 本轮结果，发生未处理异常时为 null
+     * @return 间隔（毫秒）
+     */
+    private long nextInterval(AutoEngine.SyncResult result) {
+        long min = minIntervalMillis > 0 ? Math.min(minIntervalMillis, intervalMillis) : intervalMillis;
+        long max = maxIntervalMillis > 0 ? Math.max(maxIntervalMillis, intervalMillis) : intervalMillis;
+        long next;
+        if (result == null || result.isFailed()) {
+            consecutiveFailures++;
+            // 失败时不改变正常间隔，只在其基础上退避
+            next = currentIntervalMillis << Math.min(consecutiveFailures, 20);
+            next = Math.min(max, Math.max(next, currentIntervalMillis));
+        } else {
+            consecutiveFailures = 0;
+            if (result.getSyncedFiles() > 0) {
+                currentIntervalMillis = Math.max(min, currentIntervalMillis / 2);
+            } else {
+                currentIntervalMillis = Math.min(max, (long) (currentIntervalMillis * IDLE_GROWTH));
+            }
+            next = currentIntervalMillis;
+        }
+        if (jitter > 0) {
+            next += (long) (next * jitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+        }
+        return Math.max(0, next);
+    }
+}
@@ -0,0 +1,18 @@
+package cn.org.agatha;
+
+import java.io.File;
+
+/**
+ * 仅比较秒级修改时间：本地不存在或早于远程文件时下载
+ */
+public class TimestampChangeDetector implements ChangeDetector {
+    @Override
+    public String getName() {
+        return "timestamp";
+    }
+
+    @Override
+    public boolean hasChanged(FileInfo local, FileInfo remote, File localFile) {
+        return local == null || local.getTimestamp() < remote.getTimestamp();
+    }
+}
@@ -0,0 +1,89 @@
+package cn.org.agatha;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 下载顺序策略：优先路径模式在前，其余按配置的顺序排列
+ * <p>
+ * 下载任务按排好的顺序提交给下载会话，例如小文件优先时大量配置文件的改动会先进入增量，
+ * 不会被排在前面的大文件拖住。
+ */
+public class TransferScheduler {
+    /**
+     * 排序方式
+     */
+    public enum Order {
+        /**
+         * 远程列表顺序
+         */
+        LISTING,
+        /**
+         * 小文件优先，大小未知的文件排在最后
+         */
+        SMALL_FIRST,
+        /**
+         * 大文件优先，尽早开始耗时最长的传输
+         */
+        LARGE_FIRST
+    }
+
+    private volatile Order order = Order.LISTING;
+    private volatile List<PathPattern> priorityPatterns = new ArrayList<>();
+
+    /**
+     * 设置排序方式
+     *
+     * @param order 排序方式
+     */
+    public void setOrder(Order order) {
+        this.order = order;
+    }
+
+    /**
+     * 设置优先下载的路径模式，靠前的模式优先级更高
+     *
+     * @param patterns 通配符模式，语法见 {@link PathPattern}
+     */
+    public void setPriorityPatterns(List<String> patterns) {
+        List<PathPattern> compiled = new ArrayList<>();
+        for (String pattern : patterns) {
+            compiled.add(PathPattern.compile(pattern));
+        }
+        this.priorityPatterns = compiled;
+    }
+
+    /**
+     * 按策略排列下载任务，相同优先级的任务保持原有顺序
+     *
+     * @param tasks 下载任务列表
+     * @return 排好序的新列表
+     */
+    public List<DownloadEngine.Task> schedule(List<DownloadEngine.Task> tasks) {
+        List<DownloadEngine.Task> ordered = new ArrayList<>(tasks);
+        Comparator<DownloadEngine.Task> comparator = Comparator.comparingInt(this::priority);
+        if (order == Order.SMALL_FIRST) {
+            comparator = comparator.thenComparingLong(task -> task.getSize() < 0 ? Long.MAX_VALUE : task.getSize());
+        } else if (order == Order.LARGE_FIRST) {
+            comparator = comparator.thenComparingLong(task -> -task.getSize());
+        }
+        ordered.sort(comparator);
+        return ordered;
+    }
+
+    /**
+     * 计算任务的优先级，匹配的第一个模式的序号，都不匹配时排在最后
+     *
+     * @param task 下载任务
+     * @return 优先级，越小越先下载
+     */
+    private int priority(DownloadEngine.Task task) {
+        for (int i = 0; i < priorityPatterns.size(); i++) {
+            if (priorityPatterns.get(i).matches(task.getRemotePath())) {
+                return i;
+            }
+        }
+        return priorityPatterns.size();
+    }
+}
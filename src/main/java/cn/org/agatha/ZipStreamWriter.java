@@ -0,0 +1,272 @@
+package cn.org.agatha;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 直接写入已压缩数据的 ZIP 写入器
+ * <p>
+ * 与 {@link java.util.zip.ZipOutputStream} 不同，条目数据由调用方预先压缩好（并已知 CRC 和大小），
+ * 写入器只负责拼接本地文件头、数据和中央目录，因此压缩可以在其他线程中完成。
+ * 条目大小或偏移超过 4 GB、条目数超过 65535 时自动使用 ZIP64 格式。
+ */
+public class ZipStreamWriter implements Closeable {
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private final OutputStream out;
+    private final List<CentralEntry> entries = new ArrayList<>();
+    private long offset = 0;
+    private boolean finished = false;
+
+    /**
+     * 中央目录记录
+     */
+    private static class CentralEntry {
+        private final byte[] name;
+        private final int method;
+        private final long dosTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        private CentralEntry(byte[] name, int method, long dosTime, long crc,
+                             long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param out 输出流，写入器不会对其做额外缓冲
+     */
+    public ZipStreamWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * 获取已写入的条目数
+     *
+     * @return 条目数
+     */
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * 获取已写入的字节数
+     *
+     * @return 字节数
+     */
+    public long getBytesWritten() {
+        return offset;
+    }
+
+    /**
+     * 写入一个条目
+     *
+     * @param name           条目名称
+     * @param method         压缩方式，{@link #STORED} 或 {@link #DEFLATED}
+     * @param modifiedTime   修改时间（毫秒）
+     * @param crc            原始数据的 CRC32
+     * @param compressedSize 压缩后数据大小
+     * @param size           原始数据大小
+     * @param data           压缩后的数据，恰好包含 compressedSize 字节
+     * @throws IOException 写入过程中发生异常
+     */
+    public void writeEntry(String name, int method, long modifiedTime, long crc, long compressedSize, long size,
+                           InputStream data) throws IOException {
+        if (finished) {
+            throw new IOException("ZIP archive already finished");
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long dosTime = toDosTime(modifiedTime);
+        long headerOffset = offset;
+        boolean zip64 = size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT;
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(30 + nameBytes.length + 20);
+        writeInt(header, 0x04034b50L);
+        writeShort(header, zip64 ? 45 : 20);
+        writeShort(header, FLAG_UTF8);
+        writeShort(header, method);
+        writeInt(header, dosTime);
+        writeInt(header, crc);
+        writeInt(header, zip64 ? ZIP64_LIMIT : compressedSize);
+        writeInt(header, zip64 ? ZIP64_LIMIT : size);
+        writeShort(header, nameBytes.length);
+        writeShort(header, zip64 ? 20 : 0);
+        header.write(nameBytes);
+        if (zip64) {
+            writeShort(header, 0x0001);
+            writeShort(header, 16);
+            writeLong(header, size);
+            writeLong(header, compressedSize);
+        }
+        header.writeTo(out);
+        offset += header.size();
+
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = compressedSize;
+        while (remaining > 0) {
+            int read = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Unexpected end of data for ZIP entry: " + name);
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+        offset += compressedSize;
+
+        entries.add(new CentralEntry(nameBytes, method, dosTime, crc, compressedSize, size, headerOffset));
+    }
+
+    /**
+     * 写入中央目录，完成 ZIP 文件
+     *
+     * @throws IOException 写入过程中发生异常
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        long centralOffset = offset;
+        ByteArrayOutputStream central = new ByteArrayOutputStream();
+        for (CentralEntry entry : entries) {
+            boolean sizes64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+            boolean offset64 = entry.localHeaderOffset >= ZIP64_LIMIT;
+            int extraLength = sizes64 || offset64 ? 4 + (sizes64 ? 16 : 0) + (offset64 ? 8 : 0) : 0;
+
+            writeInt(central, 0x02014b50L);
+            writeShort(central, extraLength > 0 ? 45 : 20);
+            writeShort(central, extraLength > 0 ? 45 : 20);
+            writeShort(central, FLAG_UTF8);
+            writeShort(central, entry.method);
+            writeInt(central, entry.dosTime);
+            writeInt(central, entry.crc);
+            writeInt(central, sizes64 ? ZIP64_LIMIT : entry.compressedSize);
+            writeInt(central, sizes64 ? ZIP64_LIMIT : entry.size);
+            writeShort(central, entry.name.length);
+            writeShort(central, extraLength);
+            writeShort(central, 0); // 注释长度
+            writeShort(central, 0); // 磁盘号
+            writeShort(central, 0); // 内部属性
+            writeInt(central, 0); // 外部属性
+            writeInt(central, offset64 ? ZIP64_LIMIT : entry.localHeaderOffset);
+            central.write(entry.name);
+            if (extraLength > 0) {
+                writeShort(central, 0x0001);
+                writeShort(central, extraLength - 4);
+                if (sizes64) {
+                    writeLong(central, entry.size);
+                    writeLong(central, entry.compressedSize);
+                }
+                if (offset64) {
+                    writeLong(central, entry.localHeaderOffset);
+                }
+            }
+            if (central.size() >= 1 << 20) {
+                central.writeTo(out);
+                offset += central.size();
+                central.reset();
+            }
+        }
+        central.writeTo(out);
+        offset += central.size();
+        long centralSize = offset - centralOffset;
+
+        ByteArrayOutputStream end = new ByteArrayOutputStream();
+        boolean zip64 = entries.size() >= ZIP64_ENTRY_LIMIT || centralOffset >= ZIP64_LIMIT || centralSize >= ZIP64_LIMIT;
+        if (zip64) {
+            long zip64EndOffset = offset;
+            writeInt(end, 0x06064b50L);
+            writeLong(end, 44);
+            writeShort(end, 45);
+            writeShort(end, 45);
+            writeInt(end, 0);
+            writeInt(end, 0);
+            writeLong(end, entries.size());
+            writeLong(end, entries.size());
+            writeLong(end, centralSize);
+            writeLong(end, centralOffset);
+
+            writeInt(end, 0x07064b50L);
+            writeInt(end, 0);
+            writeLong(end, zip64EndOffset);
+            writeInt(end, 1);
+        }
+        writeInt(end, 0x06054b50L);
+        writeShort(end, 0);
+        writeShort(end, 0);
+        writeShort(end, zip64 ? ZIP64_ENTRY_LIMIT : entries.size());
+        writeShort(end, zip64 ? ZIP64_ENTRY_LIMIT : entries.size());
+        writeInt(end, zip64 ? ZIP64_LIMIT : centralSize);
+        writeInt(end, zip64 ? ZIP64_LIMIT : centralOffset);
+        writeShort(end, 0);
+        end.writeTo(out);
+        offset += end.size();
+        out.flush();
+    }
+
+    /**
+     * 完成并关闭底层输出流
+     *
+     * @throws IOException 写入过程中发生异常
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long toDosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (time.getYear() - 1980) << 25)
+                | ((long) time.getMonthValue() << 21)
+                | ((long) time.getDayOfMonth() << 16)
+                | ((long) time.getHour() << 11)
+                | ((long) time.getMinute() << 5)
+                | ((long) time.getSecond() >> 1);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        writeShort(out, (int) (value & 0xFFFF));
+        writeShort(out, (int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        writeInt(out, value & 0xFFFFFFFFL);
+        writeInt(out, value >>> 32);
+    }
+}